@@ -24,7 +24,8 @@ javac -encoding UTF-8 -d bin ^
     src/client/*.java ^
     src/client/ui/*.java ^
     src/client/utils/*.java ^
-    src/client/files/*.java
+    src/client/files/*.java ^
+    src/bench/*.java
 
 if %ERRORLEVEL% NEQ 0 (
     echo ERROR: Compilation failed!
@@ -0,0 +1,29 @@
+@echo off
+REM Run three Enhanced Chat Server nodes on this machine as one cluster (Windows)
+REM Node N listens for clients on port 8887+N and for the other nodes on 9887+N,
+REM and keeps its logs and history in cluster\nodeN\
+
+echo =========================================
+echo   Enhanced Chat Server Cluster (3 nodes)
+echo =========================================
+
+REM Check if JAR exists
+if not exist "dist\ChatServer.jar" (
+    echo ERROR: ChatServer.jar not found!
+    echo Please run build.bat first to build the application.
+    pause
+    exit /b 1
+)
+
+set JAR=%CD%\dist\ChatServer.jar
+
+if not exist cluster\node1 mkdir cluster\node1
+if not exist cluster\node2 mkdir cluster\node2
+if not exist cluster\node3 mkdir cluster\node3
+
+REM Each node runs in its own window - close a window to stop that node
+start "node1" /D cluster\node1 java -jar "%JAR%" --port 8888 --node node1 --cluster-port 9888 --peers localhost:9889,localhost:9890
+start "node2" /D cluster\node2 java -jar "%JAR%" --port 8889 --node node2 --cluster-port 9889 --peers localhost:9888,localhost:9890
+start "node3" /D cluster\node3 java -jar "%JAR%" --port 8890 --node node3 --cluster-port 9890 --peers localhost:9888,localhost:9889
+
+echo Started node1, node2 and node3 on client ports 8888, 8889 and 8890.
@@ -0,0 +1,45 @@
+#!/bin/bash
+# Run several Enhanced Chat Server nodes on this machine as one cluster
+# Usage: ./run-cluster.sh [number of nodes, default 3]
+#
+# Node N listens for clients on port 8887+N and for the other nodes on
+# 9887+N, and keeps its logs and history in cluster/nodeN/.
+# Clients can connect to any of the client ports.
+
+NODES=${1:-3}
+JAR="$(pwd)/dist/ChatServer.jar"
+
+echo "========================================="
+echo "  Enhanced Chat Server Cluster ($NODES nodes)"
+echo "========================================="
+
+# Check if JAR exists
+if [ ! -f "$JAR" ]; then
+    echo "ERROR: ChatServer.jar not found!"
+    echo "Please run build.sh first to build the application."
+    exit 1
+fi
+
+# Stop every node on Ctrl+C
+PIDS=()
+trap 'echo "Stopping cluster..."; kill "${PIDS[@]}" 2>/dev/null; wait; exit 0' INT TERM
+
+for ((i = 1; i <= NODES; i++)); do
+    # Every node links to every other node
+    PEERS=""
+    for ((j = 1; j <= NODES; j++)); do
+        if [ $j -ne $i ]; then
+            PEERS="${PEERS:+$PEERS,}localhost:$((9887 + j))"
+        fi
+    done
+
+    mkdir -p "cluster/node$i"
+    (cd "cluster/node$i" && exec java -jar "$JAR" \
+        --port $((8887 + i)) --node "node$i" --cluster-port $((9887 + i)) --peers "$PEERS" \
+        > server.log 2>&1) &
+    PIDS+=($!)
+    echo "Started node$i: clients on port $((8887 + i)), log in cluster/node$i/server.log"
+done
+
+echo "Press Ctrl+C to stop all nodes."
+wait
@@ -0,0 +1,266 @@
+package bench;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ClusterCheck.java
+ * Starts a small cluster on this machine and checks that it works as one server
+ *
+ * Runs three nodes linked to each other, logs one user in on each and
+ * checks that:
+ *   - a broadcast on one node reaches the users on the others
+ *   - a private message reaches a user on another node
+ *   - a name in use on one node cannot log in on another
+ *   - a link without the cluster secret cannot claim a user is online
+ * Prints PASS or FAIL per check and exits with 1 if any failed.
+ *
+ * Each node is a separate java process in its own directory under
+ * cluster-check/ - a node locks its data directory, so two cannot share
+ * one process (or one directory).
+ *
+ * Run from a scratch directory:
+ *   java -cp bin bench.ClusterCheck [--nodes 3] [--port 18900]
+ */
+public class ClusterCheck {
+
+    private static final long WAIT_MS = 5000;     // For each expected frame
+    private static final String SECRET = "cluster-check";
+
+    /**
+     * One logged-in test user
+     */
+    private static class User {
+        final String name;
+        final Socket socket;
+        final BufferedReader in;
+        final PrintWriter out;
+
+        User(String name, int port) throws IOException {
+            this.name = name;
+            this.socket = new Socket("localhost", port);
+            this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            this.out = new PrintWriter(socket.getOutputStream(), true);
+        }
+
+        /**
+         * Send HELLO and wait for the answer
+         * @return the ACCEPT or ERROR frame, or null if none came
+         */
+        Message login() throws IOException {
+            Map<String, String> hello = new LinkedHashMap<>();
+            hello.put("version", String.valueOf(Constants.PROTOCOL_VERSION));
+            send(new Message(MessageType.HELLO, name, ProtocolFields.encode(hello)));
+            return expect(null, null);
+        }
+
+        void send(Message message) {
+            out.println(message.toProtocol());
+        }
+
+        /**
+         * Read until a frame of the given type with the given content arrives
+         * Heartbeats are answered on the way; null type takes the first real frame
+         * @return the frame, or null if it did not come in time
+         */
+        Message expect(MessageType type, String content) throws IOException {
+            long deadline = System.currentTimeMillis() + WAIT_MS;
+            while (true) {
+                long left = deadline - System.currentTimeMillis();
+                if (left <= 0) {
+                    return null;
+                }
+                socket.setSoTimeout((int) left);
+                String line;
+                try {
+                    line = in.readLine();
+                } catch (SocketTimeoutException e) {
+                    return null;
+                }
+                if (line == null) {
+                    return null;
+                }
+
+                Message message = Message.fromProtocol(line);
+                if (message == null) {
+                    continue;
+                }
+                if (message.getType() == MessageType.PING) {
+                    send(new Message(MessageType.PONG, Constants.SYSTEM_SENDER, message.getContent()));
+                    continue;
+                }
+                if ((type == null && message.getType() != MessageType.PONG)
+                        || (message.getType() == type && content.equals(message.getContent()))) {
+                    return message;
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private static int failures = 0;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int nodes = Integer.parseInt(options.getOrDefault("nodes", "3"));
+        int port = Integer.parseInt(options.getOrDefault("port", "18900"));
+        if (nodes < 2) {
+            System.err.println("A cluster needs at least 2 nodes");
+            System.exit(1);
+        }
+
+        List<Process> processes = new ArrayList<>();
+        List<User> users = new ArrayList<>();
+        try {
+            for (int i = 1; i <= nodes; i++) {
+                processes.add(startNode(i, nodes, port));
+            }
+            System.out.println("Started " + nodes + " nodes, waiting for them to link up...");
+            Thread.sleep(4000);
+
+            // One user per node
+            for (int i = 1; i <= nodes; i++) {
+                User user = new User("user" + i, clientPort(port, i));
+                users.add(user);
+                Message answer = user.login();
+                check(user.name + " logs in on node" + i,
+                      answer != null && answer.getType() == MessageType.ACCEPT);
+            }
+            Thread.sleep(1500);   // Let every node hear who is where
+
+            User first = users.get(0);
+            User last = users.get(nodes - 1);
+
+            first.send(new Message(MessageType.BROADCAST, first.name, "hello cluster"));
+            for (int i = 1; i < nodes; i++) {
+                check("broadcast from node1 reaches node" + (i + 1),
+                      users.get(i).expect(MessageType.BROADCAST, "hello cluster") != null);
+            }
+
+            first.send(new Message(MessageType.PRIVATE, first.name, last.name, "just for you"));
+            check("private message from node1 reaches node" + nodes,
+                  last.expect(MessageType.PRIVATE, "just for you") != null);
+
+            User duplicate = new User(first.name, clientPort(port, nodes));
+            Message answer = duplicate.login();
+            check(first.name + " is refused on node" + nodes + " while logged in on node1",
+                  answer != null && answer.getType() == MessageType.ERROR);
+            duplicate.close();
+
+            // A forged link: wrong secret, then a JOIN for a name nobody uses
+            Socket forged = new Socket("localhost", clusterPort(port, 1));
+            PrintWriter out = new PrintWriter(forged.getOutputStream(), true);
+            out.println("AUTH|intruder|wrong");
+            out.println("HELLO|intruder|0");
+            out.println("JOIN|intruder|ghost");
+            Thread.sleep(500);
+            User ghost = new User("ghost", clientPort(port, 1));
+            users.add(ghost);
+            answer = ghost.login();
+            check("a JOIN over a link with the wrong secret is ignored",
+                  answer != null && answer.getType() == MessageType.ACCEPT);
+            forged.close();
+
+        } finally {
+            for (User user : users) {
+                user.close();
+            }
+            for (Process process : processes) {
+                process.destroy();
+            }
+            for (Process process : processes) {
+                process.waitFor();
+            }
+        }
+
+        System.out.println(failures == 0 ? "All checks passed" : failures + " check(s) failed - see cluster-check/node*/server.log");
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Start node i as its own process, linked to every other node
+     */
+    private static Process startNode(int i, int nodes, int port) throws IOException {
+        List<String> peers = new ArrayList<>();
+        for (int j = 1; j <= nodes; j++) {
+            if (j != i) {
+                peers.add("localhost:" + clusterPort(port, j));
+            }
+        }
+
+        File directory = new File("cluster-check", "node" + i);
+        directory.mkdirs();
+
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.add("-cp");
+        command.add(absoluteClassPath());
+        command.add("server.Server");
+        command.add("--port");
+        command.add(String.valueOf(clientPort(port, i)));
+        command.add("--node");
+        command.add("node" + i);
+        command.add("--cluster-port");
+        command.add(String.valueOf(clusterPort(port, i)));
+        command.add("--peers");
+        command.add(String.join(",", peers));
+        command.add("--cluster-secret");
+        command.add(SECRET);
+
+        return new ProcessBuilder(command)
+            .directory(directory)
+            .redirectErrorStream(true)
+            .redirectOutput(new File(directory, "server.log"))
+            .start();
+    }
+
+    /**
+     * This process's class path - the nodes run in other directories
+     */
+    private static String absoluteClassPath() {
+        List<String> entries = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            entries.add(new File(entry).getAbsolutePath());
+        }
+        return String.join(File.pathSeparator, entries);
+    }
+
+    private static int clientPort(int port, int node) {
+        return port + node - 1;
+    }
+
+    private static int clusterPort(int port, int node) {
+        return port + 100 + node - 1;
+    }
+
+    private static void check(String what, boolean passed) {
+        System.out.println((passed ? "PASS  " : "FAIL  ") + what);
+        if (!passed) {
+            failures++;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package bench;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+import common.UnixSocket;
+import server.Server;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TransportBenchmark.java
+ * Compares the ways a client can reach the server
+ *
+ * Starts a server in this process, logs one client in over each
+ * transport and bounces PING / PONG frames off the server one at a time.
+ * For each transport it prints the round-trip time (average, median and
+ * 99th percentile) and the CPU time the whole process (client and server)
+ * spent per round trip.
+ *
+ * Then it measures fan-out: one client broadcasts while many others
+ * receive, and it prints the deliveries per second, the CPU time per
+ * delivery, the memory allocated per delivery and the garbage
+ * collections it took. Run it once per server
+ * transport to compare them.
+ *
+ * Run from a scratch directory - the server keeps its files under src/logs:
+ *   java -cp bin bench.TransportBenchmark [--transport blocking|nio] [--messages 20000]
+ *                                         [--clients 40] [--broadcasts 2000] [--port 18888]
+ */
+public class TransportBenchmark {
+
+    private static final int WARMUP = 5000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), args[i + 1]);
+        }
+        int messages = Integer.parseInt(options.getOrDefault("messages", "20000"));
+        int port = Integer.parseInt(options.getOrDefault("port", "18888"));
+        String transport = options.getOrDefault("transport", Constants.DEFAULT_TRANSPORT);
+        int clients = Integer.parseInt(options.getOrDefault("clients", "40"));
+        int broadcasts = Integer.parseInt(options.getOrDefault("broadcasts", "2000"));
+        String socketPath = new File(System.getProperty("java.io.tmpdir"), "chat-bench-" + port + ".sock").getPath();
+
+        // The server's per-message logging would drown the results
+        PrintStream console = System.out;
+        System.setOut(new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) {
+            }
+        }));
+
+        boolean unix = UnixSocket.isSupported();
+        String[] serverArgs = unix
+                ? new String[] { "--port", String.valueOf(port), "--transport", transport, "--unix-socket", socketPath }
+                : new String[] { "--port", String.valueOf(port), "--transport", transport };
+        Thread server = new Thread(() -> Server.main(serverArgs), "bench-server");
+        server.setDaemon(true);
+        server.start();
+        Thread.sleep(2000);
+
+        console.println("Server transport: " + transport);
+        console.println("Round trips per client transport: " + messages + " (after " + WARMUP + " warm-up)");
+        console.println(String.format("%-8s %10s %10s %10s %14s", "", "avg us", "p50 us", "p99 us", "cpu us/msg"));
+        run(console, "tcp", new Socket("localhost", port), messages);
+        if (unix) {
+            run(console, "unix", UnixSocket.connect(socketPath), messages);
+        } else {
+            console.println("unix     skipped - needs Java 16 or newer");
+        }
+        fanOut(console, port, clients, broadcasts);
+        System.exit(0);
+    }
+
+    /**
+     * One client broadcasts, the others count what arrives
+     */
+    private static void fanOut(PrintStream console, int port, int clients, int broadcasts) throws Exception {
+        CountDownLatch done = new CountDownLatch(clients);
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Socket socket = new Socket("localhost", port);
+            sockets.add(socket);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+            if (!login(in, out, "benchrx" + i)) {
+                console.println("fan-out login failed");
+                return;
+            }
+
+            Thread receiver = new Thread(() -> {
+                int received = 0;
+                try {
+                    String line;
+                    while (received < broadcasts && (line = in.readLine()) != null) {
+                        Message message = Message.fromProtocol(line);
+                        if (message == null) {
+                            continue;
+                        }
+                        if (message.getType() == MessageType.BROADCAST && "benchtx".equals(message.getSender())) {
+                            received++;
+                        } else if (message.getType() == MessageType.PING) {
+                            out.println(new Message(MessageType.PONG, Constants.SYSTEM_SENDER,
+                                                    message.getContent()).toProtocol());
+                            out.flush();
+                        }
+                    }
+                } catch (IOException e) {
+                    // Counted as not done
+                }
+                if (received == broadcasts) {
+                    done.countDown();
+                }
+            }, "bench-receiver-" + i);
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+
+        Socket sender = new Socket("localhost", port);
+        BufferedReader senderIn = new BufferedReader(new InputStreamReader(sender.getInputStream()));
+        PrintWriter senderOut = new PrintWriter(sender.getOutputStream(), false);
+        if (!login(senderIn, senderOut, "benchtx")) {
+            console.println("fan-out login failed");
+            return;
+        }
+        Thread.sleep(1500);   // Let the join notices go out first
+
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long cpuBefore = os.getProcessCpuTime();
+        long[] gcBefore = gcTotals();
+        long allocatedBefore = allocatedBytes();
+        long started = System.nanoTime();
+        char[] filler = new char[100];
+        Arrays.fill(filler, 'x');
+        for (int i = 0; i < broadcasts; i++) {
+            senderOut.println(new Message(MessageType.BROADCAST, "benchtx", i + new String(filler)).toProtocol());
+        }
+        senderOut.flush();
+
+        boolean finished = done.await(120, TimeUnit.SECONDS);
+        long elapsed = System.nanoTime() - started;
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+        long[] gc = gcTotals();
+        long allocated = allocatedBytes() - allocatedBefore;
+        long deliveries = (long) clients * broadcasts;
+
+        console.println(String.format("fan-out  %d clients x %d broadcasts: %.0f deliveries/s, cpu %.1f us/delivery%s",
+                                      clients, broadcasts, deliveries / (elapsed / 1e9),
+                                      cpu / 1000.0 / deliveries, finished ? "" : " (timed out)"));
+        console.println(String.format("         allocated %.0f bytes/delivery, gc %d collections (%d ms)",
+                                      (double) allocated / deliveries, gc[0] - gcBefore[0], gc[1] - gcBefore[1]));
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        sender.close();
+    }
+
+    /**
+     * Heap memory allocated so far by the threads alive now
+     */
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            total += Math.max(0, allocated);
+        }
+        return total;
+    }
+
+    /**
+     * Garbage collections so far and the time they took (ms), over all collectors
+     */
+    private static long[] gcTotals() {
+        long[] totals = new long[2];
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            totals[0] += Math.max(0, collector.getCollectionCount());
+            totals[1] += Math.max(0, collector.getCollectionTime());
+        }
+        return totals;
+    }
+
+    /**
+     * Send HELLO and wait for ACCEPT
+     */
+    private static boolean login(BufferedReader in, PrintWriter out, String username) throws IOException {
+        Map<String, String> hello = new LinkedHashMap<>();
+        hello.put("version", String.valueOf(Constants.PROTOCOL_VERSION));
+        out.println(new Message(MessageType.HELLO, username, ProtocolFields.encode(hello)).toProtocol());
+        out.flush();
+        Message accept = Message.fromProtocol(in.readLine());
+        return accept != null && accept.getType() == MessageType.ACCEPT;
+    }
+
+    /**
+     * Log in over one connection and time the round trips
+     */
+    private static void run(PrintStream console, String name, Socket socket, int messages) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+
+        if (!login(in, out, "bench" + name)) {
+            console.println(name + " login failed");
+            socket.close();
+            return;
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            roundTrip(in, out, i);
+        }
+
+        com.sun.management.OperatingSystemMXBean os =
+            (com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean();
+        long[] times = new long[messages];
+        long cpuBefore = os.getProcessCpuTime();
+        for (int i = 0; i < messages; i++) {
+            long started = System.nanoTime();
+            roundTrip(in, out, i);
+            times[i] = System.nanoTime() - started;
+        }
+        long cpu = os.getProcessCpuTime() - cpuBefore;
+
+        long total = 0;
+        for (long time : times) {
+            total += time;
+        }
+        Arrays.sort(times);
+        console.println(String.format("%-8s %10.1f %10.1f %10.1f %14.1f", name,
+                                      total / 1000.0 / messages,
+                                      times[messages / 2] / 1000.0,
+                                      times[(int) (messages * 0.99)] / 1000.0,
+                                      cpu / 1000.0 / messages));
+        socket.close();
+    }
+
+    /**
+     * Send one PING and wait for its PONG
+     * Anything else the server sends in between (join notices, its own
+     * PINGs) is answered or skipped
+     */
+    private static void roundTrip(BufferedReader in, PrintWriter out, int id) throws IOException {
+        String payload = String.valueOf(id);
+        out.println(new Message(MessageType.PING, Constants.SYSTEM_SENDER, payload).toProtocol());
+        out.flush();
+
+        while (true) {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException("server closed the connection");
+            }
+            Message message = Message.fromProtocol(line);
+            if (message == null) {
+                continue;
+            }
+            if (message.getType() == MessageType.PONG && payload.equals(message.getContent())) {
+                return;
+            }
+            if (message.getType() == MessageType.PING) {
+                out.println(new Message(MessageType.PONG, Constants.SYSTEM_SENDER, message.getContent()).toProtocol());
+                out.flush();
+            }
+        }
+    }
+}
@@ -1,11 +1,31 @@
 package client;
 
+import client.files.FileReceiver;
+import client.files.FileSender;
 import common.Constants;
+import common.FileReference;
+import common.HistoryPage;
 import common.Message;
 import common.MessageType;
+import common.ProtocolFields;
+import common.UnixSocket;
 
 import java.io.*;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Client.java
@@ -21,11 +41,65 @@ public class Client {
     private String username;
     private boolean connected;
 
+    // Remembered so a dropped connection can be resumed
+    private String host;
+    private int port;
+    private MessageHandler messageHandler;
+
+    // Session resume state
+    private volatile String resumeToken;   // Issued by the server after login
+    private volatile long lastSeenSeq;     // Every sequence number up to this one has been received
+    private final TreeSet<Long> seenAhead = new TreeSet<>();   // Received above lastSeenSeq (guarded by itself)
+
+    // From the server's ACCEPT frame
+    private String welcomeMessage;
+    private volatile List<String> onlineUsers;   // Replaced, never changed in place
+    private List<String> serverCapabilities;
+    private String lastError;
+    private volatile long historyHead;     // Room messages below this id were sent before we logged in
+
+    // Room history pages already fetched (before id -> HISTORY_PAGE content)
+    // History never changes, so a cached page is always valid
+    private final Map<Long, String> historyCache;
+
+    // Recent conversations on disk, shown before the server sends anything
+    private MessageCache messageCache;
+
+    // Fetching the room messages the cache missed (see syncMessageCache)
+    private final Object syncLock = new Object();
+    private Consumer<HistoryPage> syncCallback;   // Non-null while a sync runs
+    private long syncCursor;                      // Page we are waiting for ends before this id
+    private long syncFloor;                       // Oldest id still wanted
+    private long syncHead;                        // Newest id wanted (exclusive)
+    private List<Message> syncMessages;           // Fetched so far, oldest first
+
+    // Automatic reconnect - off once the user disconnects on purpose
+    private volatile boolean autoReconnect;
+    private Thread reconnectThread;
+
+    // Everything sent after login goes through this queue, off the caller's thread
+    private final OutboundQueue outbound;
+
+    // File sharing helpers
+    private FileSender fileSender;
+    private FileReceiver fileReceiver;
+
     /**
      * Constructor
      */
     public Client() {
         this.connected = false;
+        this.onlineUsers = new ArrayList<>();
+        this.serverCapabilities = new ArrayList<>();
+        this.fileSender = new FileSender();
+        this.fileReceiver = new FileReceiver();
+        this.outbound = new OutboundQueue();
+        this.historyCache = new LinkedHashMap<Long, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, String> eldest) {
+                return size() > Constants.HISTORY_CACHE_PAGES;
+            }
+        };
     }
 
     /**
@@ -35,9 +109,17 @@ public class Client {
     public boolean connect(String host, int port) {
         try {
             // Create socket connection to server
-            socket = new Socket(host, port);
+            // "unix:/path/to/socket" reaches a server on this machine without TCP (port unused)
+            socket = host.startsWith(UnixSocket.SCHEME)
+                     ? UnixSocket.connect(host.substring(UnixSocket.SCHEME.length()))
+                     : new Socket(host, port);
             connected = true;
 
+            // The server pings us regularly - this much silence means the connection is dead
+            socket.setSoTimeout((int) Constants.IDLE_TIMEOUT_MS);
+            this.host = host;
+            this.port = port;
+
             // Set up I/O streams
             in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
             out = new PrintWriter(socket.getOutputStream(), true);
@@ -55,63 +137,107 @@ public class Client {
 
     /**
      * Login with username
+     * One round trip: send HELLO, get back ACCEPT (or ERROR)
      * @return true if login successful
      */
     public boolean login(String username) throws IOException {
-        if (!connected) {
+        if (!handshake(username, null, 0)) {
             return false;
         }
 
-        // Wait for server's "Enter username:" prompt
-        String serverPrompt = in.readLine();
-        System.out.println("Server: " + serverPrompt);
+        openMessageCache();
+        return true;
+    }
 
-        // Send username to server
-        out.println(username);
-        out.println(username);
+    /**
+     * Open the local message cache for this server and username
+     * The client works without it if the file cannot be opened
+     */
+    private void openMessageCache() {
+        if (messageCache != null) {
+            return;
+        }
 
-        // Server sends multiple messages: join broadcast, then welcome, then user list
-        // Read up to 3 messages to find the welcome message
-        for (int i = 0; i < 3; i++) {
-            String response = in.readLine();
+        try {
+            messageCache = MessageCache.open(new File(Constants.CLIENT_CACHE_PATH), host, port, username,
+                                             Constants.CLIENT_CACHE_MAX_BYTES);
+        } catch (IOException e) {
+            System.err.println("Message cache unavailable: " + e.getMessage());
+        }
+    }
 
-            if (response == null) {
-                System.err.println("No response from server (attempt " + (i+1) + ")");
-                if (i == 2) return false; // Give up after 3 tries
-                continue;
-            }
+    /**
+     * Reconnect after the connection dropped
+     * HELLO carries our resume token and last seen sequence number, so the
+     * server replays only what we missed and nobody sees us leave or join.
+     * If the session expired, the same HELLO logs us in again.
+     * Listening restarts with the same handler.
+     * @return true if we are back in
+     */
+    private boolean reconnect() throws IOException {
+        closeConnection();
+        if (!connect(host, port) || !handshake(username, resumeToken, lastSeenSeq)) {
+            return false;
+        }
 
-            System.out.println("Server response " + (i+1) + ": " + response);
+        // The missed messages follow ACCEPT - start reading them
+        startListening(messageHandler);
+        return true;
+    }
 
-            Message responseMsg = Message.fromProtocol(response);
+    /**
+     * Send HELLO and read the server's single answer
+     */
+    private boolean handshake(String username, String token, long seq) throws IOException {
+        if (!connected) {
+            return false;
+        }
 
-            if (responseMsg == null) {
-                System.err.println("Invalid message format, trying next...");
-                continue; // Try next line
-            }
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("version", String.valueOf(Constants.PROTOCOL_VERSION));
+        fields.put("caps", ProtocolFields.encodeList(Arrays.asList(Constants.CAP_FILES, Constants.CAP_RESUME,
+                                                                   Constants.CAP_RECEIPTS)));
+        if (token != null) {
+            fields.put("token", token);
+            fields.put("seq", String.valueOf(seq));
+        }
+        out.println(new Message(MessageType.HELLO, username, ProtocolFields.encode(fields)).toProtocol());
 
-            // Check for error first
-            if (responseMsg.getType() == MessageType.ERROR) {
-                System.err.println("Login failed: " + responseMsg.getContent());
-                return false;
-            }
+        String response = in.readLine();
+        Message responseMsg = (response != null) ? Message.fromProtocol(response) : null;
 
-            // Check for welcome message (login success)
-            if (responseMsg.getType() == MessageType.SYSTEM &&
-                responseMsg.getContent().contains("Welcome")) {
-                this.username = username;
-                System.out.println("✓ Logged in successfully as: " + username);
-                return true;
-            }
+        if (responseMsg == null) {
+            lastError = "No response from server";
+            System.err.println("Login failed: " + lastError);
+            return false;
+        }
 
-            // Otherwise it might be join broadcast or user list, keep reading
-            System.out.println("Not a welcome message, reading next...");
+        // Server full/busy, username taken, bad version...
+        if (responseMsg.getType() != MessageType.ACCEPT) {
+            lastError = responseMsg.getContent();
+            System.err.println("Login failed: " + lastError);
+            return false;
         }
 
-        System.err.println("Login failed: Did not receive welcome message after 3 attempts");
-        return false;
-    }
+        Map<String, String> accept = ProtocolFields.decode(responseMsg.getContent());
+        this.username = username;
+        this.resumeToken = accept.get("token");
+        this.welcomeMessage = accept.get("welcome");
+        this.onlineUsers = ProtocolFields.decodeList(accept.get("users"));
+        this.serverCapabilities = ProtocolFields.decodeList(accept.get("caps"));
+
+        if (!"true".equals(accept.get("resumed"))) {
+            synchronized (seenAhead) {
+                lastSeenSeq = 0; // New session - sequence numbers start over
+                seenAhead.clear();
+            }
+            historyHead = parseLong(accept.get("history"));
+        }
 
+        System.out.println("✓ Logged in successfully as: " + username +
+                           ("true".equals(accept.get("resumed")) ? " (session resumed)" : ""));
+        return true;
+    }
 
     /**
      * Start listening for messages from server
@@ -121,28 +247,333 @@ public class Client {
         if (listener != null && listener.isAlive()) {
             return; // Already listening
         }
+        this.messageHandler = handler;
+
+        this.autoReconnect = true;
+
+        // Session and file transfer frames are handled here, everything else goes to the UI
+        listener = new ClientListener(in, message -> {
+            if (!trackSeq(message)) {
+                return; // Already received - replayed after a resume
+            }
+            if (messageCache != null && message.getSeq() > 0) {
+                messageCache.appendLive(message, historyHead);
+            }
+
+            if (message.getType() == MessageType.USER_LIST || message.getType() == MessageType.PRESENCE) {
+                updateOnlineUsers(message);
+            }
 
-        listener = new ClientListener(in, handler);
+            if (message.getType() == MessageType.HISTORY_PAGE) {
+                if (handleSyncPage(message)) {
+                    return; // Fetched for the cache, not asked for by the UI
+                }
+                cacheHistoryPage(message);
+                handler.onMessageReceived(message);
+            } else if (!handleFileTransfer(message, handler)) {
+                handler.onMessageReceived(message);
+            }
+        }, ping -> {
+            // Heartbeat - answered by the decode stage, the UI never sees it
+            sendMessage(new Message(MessageType.PONG, username, ping.getContent()));
+        }, this::startReconnecting);
         listener.start();
+
+        // Anything queued while we were reconnecting goes out now
+        outbound.attach(out);
         System.out.println("Started listening for messages");
     }
 
     /**
      * Send broadcast message to all users
+     * Returns right away; the message is written by the send thread
+     * @return completes when the message has been written to the server
      */
-    public void sendBroadcastMessage(String content) {
+    public CompletableFuture<Void> sendBroadcastMessage(String content) {
         Message message = new Message(MessageType.BROADCAST, username, content);
-        sendMessage(message);
+        return sendMessage(message);
     }
 
     /**
      * Send private message to specific user
      * This is part of your private chat feature!
      */
-    public void sendPrivateMessage(String recipient, String content) {
+    public CompletableFuture<Void> sendPrivateMessage(String recipient, String content) {
         Message message = new Message(MessageType.PRIVATE, username, recipient, content);
+        System.out.println("Sending private message to " + recipient + ": " + content);
+        return sendMessage(message);
+    }
+
+    /**
+     * Make up an id for a new private session
+     * The session is created on the server by the first invitation using it
+     */
+    public String newSessionId() {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789";
+        StringBuilder id = new StringBuilder();
+        for (int i = 0; i < 12; i++) {
+            id.append(chars.charAt(ThreadLocalRandom.current().nextInt(chars.length())));
+        }
+        return id.toString();
+    }
+
+    /**
+     * Invite a user to a private session (creating it if the id is new)
+     * Messages to the session go through sendPrivateMessage("#" + id, ...)
+     */
+    public void inviteToSession(String sessionId, String user) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("session", sessionId);
+        sendMessage(new Message(MessageType.PRIVATE_REQUEST, username, user, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Accept an invitation to a private session
+     */
+    public void joinSession(String sessionId) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("session", sessionId);
+        sendMessage(new Message(MessageType.PRIVATE_ACCEPT, username, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Leave a private session
+     */
+    public void leaveSession(String sessionId) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("session", sessionId);
+        fields.put("leave", "true");
+        sendMessage(new Message(MessageType.PRIVATE_ACCEPT, username, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Tell the server we started or stopped typing
+     * Skipped while disconnected - a stale indicator is worse than none
+     * @param room null for the group chat, a username, or a session address
+     */
+    public void sendTyping(String room, boolean typing) {
+        if (!connected) {
+            return;
+        }
+        sendMessage(new Message(MessageType.TYPING, username, room, typing ? "start" : "stop"));
+    }
+
+    /**
+     * Tell the server we have read a conversation up to a conversation seq
+     * Cumulative - covers every earlier message too
+     * @param room null for the group chat, a username, or a session address
+     */
+    public void sendReadReceipt(String room, long upTo) {
+        if (!hasServerCapability(Constants.CAP_RECEIPTS)) {
+            return;
+        }
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("upTo", String.valueOf(upTo));
+        sendMessage(new Message(MessageType.READ, username, room, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Ask who has read one message; the answer comes back as a READ
+     * @param room null for the group chat, a username, or a session address
+     */
+    public void requestReadReceipt(String room, long seq) {
+        if (!hasServerCapability(Constants.CAP_RECEIPTS)) {
+            return;
+        }
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("seq", String.valueOf(seq));
+        sendMessage(new Message(MessageType.READ, username, room, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Start reconnecting in the background after the connection dropped
+     * Called by ClientListener when it stops unexpectedly
+     */
+    private synchronized void startReconnecting() {
+        if (!autoReconnect || (reconnectThread != null && reconnectThread.isAlive())) {
+            return;
+        }
+
+        connected = false;
+        reconnectThread = new Thread(this::reconnectLoop, "client-reconnect");
+        reconnectThread.setDaemon(true);
+        reconnectThread.start();
+    }
+
+    /**
+     * Keep trying to get back in, waiting longer after each failure
+     * Delays are exponential with full jitter (a random wait between zero
+     * and the current cap), so thousands of clients dropped by the same
+     * server restart spread their retries out instead of arriving together.
+     */
+    private void reconnectLoop() {
+        notifyHandler(Message.systemMessage("Connection to server lost. Reconnecting..."));
+
+        for (int attempt = 0; autoReconnect; attempt++) {
+            long delay = backoffDelay(attempt);
+            System.out.println("Reconnecting in " + delay + " ms (attempt " + (attempt + 1) + ")");
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            if (!autoReconnect) {
+                return;
+            }
+
+            try {
+                // Resume keeps our place in the conversation; the server falls back to a fresh login
+                if (reconnect()) {
+                    notifyHandler(Message.systemMessage("Reconnected to server."));
+                    notifyHandler(new Message(MessageType.USER_LIST, Constants.SYSTEM_SENDER,
+                                              ProtocolFields.encodeList(onlineUsers)));
+                    return;
+                }
+            } catch (IOException e) {
+                System.err.println("Reconnect attempt failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Full-jitter exponential backoff: random in [0, min(max, base * 2^attempt)]
+     */
+    private long backoffDelay(int attempt) {
+        long cap = Constants.RECONNECT_BASE_DELAY_MS << Math.min(attempt, 16);
+        cap = Math.min(cap, Constants.RECONNECT_MAX_DELAY_MS);
+        return (long) (Math.random() * cap);
+    }
+
+    /**
+     * Pass a locally generated message to the UI
+     */
+    private void notifyHandler(Message message) {
+        if (messageHandler != null) {
+            messageHandler.onMessageReceived(message);
+        }
+    }
+
+    /**
+     * Parse a numeric ACCEPT field
+     * @return 0 if the field is missing or not a number
+     */
+    private static long parseLong(String value) {
+        try {
+            return (value != null) ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Receive pipeline of the current connection, for its queue and lag metrics
+     * @return null before startListening
+     */
+    public ClientListener getListener() {
+        return listener;
+    }
+
+    /**
+     * Keep the online list current from a full USER_LIST or a PRESENCE delta
+     */
+    private void updateOnlineUsers(Message message) {
+        if (message.getType() == MessageType.USER_LIST) {
+            onlineUsers = ProtocolFields.decodeList(message.getContent());
+            return;
+        }
+
+        Map<String, String> fields = ProtocolFields.decode(message.getContent());
+        Set<String> users = new LinkedHashSet<>(onlineUsers);
+        users.removeAll(ProtocolFields.decodeList(fields.get("left")));
+        users.addAll(ProtocolFields.decodeList(fields.get("joined")));
+        onlineUsers = new ArrayList<>(users);
+    }
+
+    /**
+     * Remember which sequence numbers have arrived, for resuming later
+     * The server sends control frames ahead of queued chat, so seqs can
+     * arrive out of order. lastSeenSeq only moves past a number once
+     * everything below it is here; a resume then replays the gaps, and
+     * anything replayed twice is recognised here and skipped.
+     * @return false if this message was already received
+     */
+    private boolean trackSeq(Message message) {
+        long seq = message.getSeq();
+        if (seq <= 0) {
+            return true; // Not sequenced
+        }
+
+        synchronized (seenAhead) {
+            if (seq <= lastSeenSeq || !seenAhead.add(seq)) {
+                return false;
+            }
+
+            long watermark = lastSeenSeq;
+            while (seenAhead.remove(watermark + 1)) {
+                watermark++;
+            }
+            // A gap the server can no longer replay - stop waiting for it
+            while (seenAhead.size() > Constants.RESUME_BUFFER_SIZE) {
+                watermark = seenAhead.pollFirst();
+                while (seenAhead.remove(watermark + 1)) {
+                    watermark++;
+                }
+            }
+            lastSeenSeq = watermark;
+        }
+        return true;
+    }
+
+    /**
+     * Share a file by hash
+     * The content is only uploaded if the server asks for it
+     * @param recipient Target user, or null to share with everyone
+     */
+    public void sendFile(String recipient, File file) throws IOException {
+        Message message = fileSender.prepareFile(username, recipient, file);
         sendMessage(message);
-        System.out.println("Sent private message to " + recipient + ": " + content);
+        System.out.println("Shared file " + file.getName() + (recipient != null ? " with " + recipient : ""));
+    }
+
+    /**
+     * Download a shared file's content from the server
+     */
+    public void requestFile(FileReference reference) {
+        sendMessage(fileReceiver.createFetch(username, reference));
+    }
+
+    /**
+     * Handle file transfer frames that the UI doesn't need to see
+     * @return true if the message was consumed
+     */
+    private boolean handleFileTransfer(Message message, MessageHandler handler) {
+        try {
+            if (message.getType() == MessageType.FILE_UPLOAD) {
+                // Server doesn't have this content yet - upload it
+                Message upload = fileSender.createUpload(username, message.getContent());
+                if (upload != null) {
+                    sendMessage(upload);
+                }
+                return true;
+            }
+
+            if (message.getType() == MessageType.FILE_DATA) {
+                File saved = fileReceiver.saveFile(message.getContent());
+                if (saved != null) {
+                    handler.onMessageReceived(Message.systemMessage("File saved to " + saved.getPath()));
+                }
+                return true;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("File transfer failed: " + e.getMessage());
+            handler.onMessageReceived(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                                  "File transfer failed: " + e.getMessage()));
+            return true;
+        }
+
+        return false;
     }
 
     /**
@@ -153,12 +584,211 @@ public class Client {
         sendMessage(message);
     }
 
+    /**
+     * Ask for the room messages just before a history id
+     * The page arrives as a HISTORY_PAGE message - straight from the
+     * cache if it was fetched before, otherwise from the server
+     * @param before History id to page back from (getHistoryHead() for the newest page)
+     */
+    public void requestHistory(long before) {
+        String cached;
+        synchronized (historyCache) {
+            cached = historyCache.get(before);
+        }
+
+        if (cached != null) {
+            notifyHandler(new Message(MessageType.HISTORY_PAGE, Constants.SYSTEM_SENDER, username, cached));
+            return;
+        }
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("before", String.valueOf(before));
+        fields.put("limit", String.valueOf(Constants.HISTORY_PAGE_SIZE));
+        sendMessage(new Message(MessageType.HISTORY, username, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Ask for the messages of a private conversation just before an id
+     * The page arrives as a HISTORY_PAGE message naming the other user
+     * @param before Id to page back from, or -1 for the newest page
+     */
+    public void requestPrivateHistory(String peer, long before) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("with", peer);
+        fields.put("before", before >= 0 ? String.valueOf(before) : null);
+        fields.put("limit", String.valueOf(Constants.HISTORY_PAGE_SIZE));
+        sendMessage(new Message(MessageType.HISTORY, username, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Keep a fetched room history page for next time
+     * Private pages change as the conversation goes on, so they are not kept
+     */
+    private void cacheHistoryPage(Message message) {
+        HistoryPage page = HistoryPage.fromContent(message.getContent());
+        if (page != null && page.getWith() == null) {
+            synchronized (historyCache) {
+                historyCache.put(page.getBefore(), message.getContent());
+            }
+        }
+    }
+
+    /**
+     * Recent room messages from the local cache, oldest first
+     * If the cache is about to be synced, messages it will fetch again are left out
+     * @return null if there is no cache
+     */
+    public MessageCache.RoomView loadCachedRoom() {
+        if (messageCache == null) {
+            return null;
+        }
+
+        long superseded = hasServerCapability(Constants.CAP_HISTORY) ? historyHead : 0;
+        return messageCache.loadRoom(Constants.CLIENT_CACHE_STARTUP_MESSAGES, superseded);
+    }
+
+    /**
+     * Recent private messages with one user from the local cache, oldest first
+     */
+    public List<Message> loadCachedConversation(String peer) {
+        if (messageCache == null) {
+            return new ArrayList<>();
+        }
+        return messageCache.loadConversation(peer, Constants.CLIENT_CACHE_STARTUP_MESSAGES);
+    }
+
+    /**
+     * Fetch the room messages logged since the cache was last synced
+     * Only that delta goes over the network (at most CLIENT_CACHE_SYNC_MAX
+     * messages, newest first), paged back from the history head. The
+     * messages are written to the cache and then handed to the callback.
+     * @param onSynced Gets the fetched messages as one page: before is the
+     *                 history head, first the id of the oldest message.
+     *                 Called on the listener thread, or right away if there
+     *                 is nothing to fetch.
+     */
+    public void syncMessageCache(Consumer<HistoryPage> onSynced) {
+        long head = historyHead;
+
+        if (messageCache == null || !hasServerCapability(Constants.CAP_HISTORY)) {
+            onSynced.accept(new HistoryPage(head, head, head > 0, new ArrayList<>()));
+            return;
+        }
+
+        // A cache ahead of the server means the server's history was reset
+        long synced = messageCache.getSynced() <= head ? messageCache.getSynced() : 0;
+        long floor = Math.max(synced, head - Constants.CLIENT_CACHE_SYNC_MAX);
+        if (floor >= head) {
+            messageCache.setSynced(head);
+            onSynced.accept(new HistoryPage(head, head, head > 0, new ArrayList<>()));
+            return;
+        }
+
+        synchronized (syncLock) {
+            syncCallback = onSynced;
+            syncCursor = head;
+            syncFloor = floor;
+            syncHead = head;
+            syncMessages = new ArrayList<>();
+        }
+        requestSyncPage(head);
+    }
+
+    private void requestSyncPage(long before) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("before", String.valueOf(before));
+        fields.put("limit", String.valueOf(Constants.HISTORY_PAGE_SIZE));
+        sendMessage(new Message(MessageType.HISTORY, username, ProtocolFields.encode(fields)));
+    }
+
+    /**
+     * Take a HISTORY_PAGE that answers the running cache sync
+     * @return false if the page was asked for by someone else
+     */
+    private boolean handleSyncPage(Message message) {
+        Consumer<HistoryPage> callback;
+        HistoryPage delta;
+
+        synchronized (syncLock) {
+            HistoryPage page = HistoryPage.fromContent(message.getContent());
+            if (syncCallback == null || page == null || page.getWith() != null
+                    || page.getBefore() != syncCursor) {
+                return false;
+            }
+
+            // Pages run newest to oldest - older messages go in front
+            List<Message> messages = page.getMessages();
+            int skip = (int) Math.min(messages.size(), Math.max(0, syncFloor - page.getFirst()));
+            syncMessages.addAll(0, messages.subList(skip, messages.size()));
+
+            long first = page.getFirst() + skip;
+            if (first > syncFloor && page.hasMore() && !messages.isEmpty()) {
+                syncCursor = page.getFirst();
+                requestSyncPage(syncCursor);
+                return true;
+            }
+
+            messageCache.appendRoom(syncMessages, first);
+            messageCache.setSynced(syncHead);
+
+            delta = new HistoryPage(syncHead, first, first > 0, syncMessages);
+            callback = syncCallback;
+            syncCallback = null;
+            syncMessages = null;
+        }
+
+        callback.accept(delta);
+        return true;
+    }
+
+    /**
+     * Search the chat history on the server
+     * Results arrive later as a SEARCH_RESULTS message
+     * @param query Words that must all appear
+     * @param from Only messages from this user, or null
+     * @param type Only this message type (e.g. "file"), or null
+     * @param since Only messages at or after this time (epoch millis), or 0
+     * @param until Only messages before this time (epoch millis), or 0 for no limit
+     * @param page Page of results, starting at 1
+     */
+    public void searchHistory(String query, String from, String type, long since, long until, int page) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("q", query);
+        fields.put("from", from);
+        fields.put("type", type);
+        fields.put("since", since > 0 ? String.valueOf(since) : null);
+        fields.put("until", until > 0 ? String.valueOf(until) : null);
+        fields.put("page", String.valueOf(page));
+
+        sendMessage(new Message(MessageType.SEARCH, username, ProtocolFields.encode(fields)));
+    }
+
     /**
      * Send any message to server
+     * Only queues it - the caller never blocks on the socket
+     */
+    private CompletableFuture<Void> sendMessage(Message message) {
+        return outbound.send(message.toProtocol());
+    }
+
+    /**
+     * Close the current connection without logging out
+     * The server keeps our session, so it can still be resumed
      */
-    private void sendMessage(Message message) {
-        if (out != null && connected) {
-            out.println(message.toProtocol());
+    private void closeConnection() {
+        connected = false;
+        outbound.detach();
+
+        if (listener != null) {
+            listener.stopListening();
+        }
+
+        try {
+            if (socket != null && !socket.isClosed()) {
+                socket.close();
+            }
+        } catch (IOException e) {
+            // Already broken - nothing to do
         }
     }
 
@@ -168,11 +798,24 @@ public class Client {
     public void disconnect() {
         try {
             connected = false;
+            autoReconnect = false;
+            if (reconnectThread != null) {
+                reconnectThread.interrupt();
+            }
 
-            // Send leave message to server
-            if (out != null) {
+            // Send leave message to server, after anything still queued
+            if (listener != null) {
                 Message leaveMsg = new Message(MessageType.LEAVE, username, "Disconnecting");
-                out.println(leaveMsg.toProtocol());
+                try {
+                    sendMessage(leaveMsg).get(Constants.CLIENT_LEAVE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException | ExecutionException | TimeoutException e) {
+                    // Connection already gone - the server will time the session out
+                }
+            }
+            outbound.stop();
+
+            if (messageCache != null) {
+                messageCache.close();
             }
 
             // Stop listener thread
@@ -214,6 +857,42 @@ public class Client {
         return username;
     }
 
+    /**
+     * Welcome text from the server's ACCEPT
+     */
+    public String getWelcomeMessage() {
+        return welcomeMessage;
+    }
+
+    /**
+     * Online users: the ACCEPT snapshot, kept current by PRESENCE updates
+     */
+    public List<String> getOnlineUsers() {
+        return onlineUsers;
+    }
+
+    /**
+     * Id just past the newest room message sent before we logged in
+     * Scrollback starts here
+     */
+    public long getHistoryHead() {
+        return historyHead;
+    }
+
+    /**
+     * Check if the server supports a feature (Constants.CAP_*)
+     */
+    public boolean hasServerCapability(String capability) {
+        return serverCapabilities.contains(capability);
+    }
+
+    /**
+     * Why the last login attempt failed, as reported by the server
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
     /**
      * Interface for handling received messages
      * UI classes will implement this to receive messages
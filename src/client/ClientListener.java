@@ -1,20 +1,67 @@
 package client;
 
+import common.Constants;
 import common.Message;
+import common.MessageType;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * ClientListener.java
  * Background thread that continuously listens for messages from server
  * Runs separately from the main UI thread so UI doesn't freeze
+ *
+ * Receiving is a three-stage pipeline, each stage on its own thread:
+ *   read     - pulls raw lines off the socket (this thread)
+ *   decode   - parses lines into Messages, answers heartbeats
+ *   dispatch - hands Messages to the handler (UI work happens here)
+ * Stages are joined by bounded queues, so a slow handler (say, opening
+ * a window) never stops the socket from being read. Only if the handler
+ * falls a whole queue behind does reading pause, which is counted as a
+ * reader stall.
  */
 public class ClientListener extends Thread {
 
+    /**
+     * A raw line and when it came off the socket
+     */
+    private static final class Frame {
+        final String line;
+        final Message message;
+        final long readAt;
+
+        Frame(String line, Message message, long readAt) {
+            this.line = line;
+            this.message = message;
+            this.readAt = readAt;
+        }
+    }
+
+    // Marks the end of the stream as it passes through the stages
+    private static final Frame END = new Frame(null, null, 0);
+
     private BufferedReader in;
     private Client.MessageHandler handler;
-    private boolean listening;
+    private Client.MessageHandler controlHandler;
+    private Runnable onConnectionLost;
+    private volatile boolean listening;
+
+    private final BlockingQueue<Frame> decodeQueue;
+    private final BlockingQueue<Frame> dispatchQueue;
+    private final Thread decoder;
+    private final Thread dispatcher;
+
+    // Metrics
+    private final AtomicLong framesRead = new AtomicLong();
+    private final AtomicLong framesDispatched = new AtomicLong();
+    private final AtomicLong readerStalls = new AtomicLong();
+    private final AtomicLong maxLagNanos = new AtomicLong();
+    private volatile long lastLagNanos;
 
     /**
      * Constructor
@@ -22,45 +69,160 @@ public class ClientListener extends Thread {
      * @param handler Callback interface to handle received messages
      */
     public ClientListener(BufferedReader in, Client.MessageHandler handler) {
+        this(in, handler, null);
+    }
+
+    /**
+     * Constructor
+     * @param in Input stream from server
+     * @param handler Callback interface to handle received messages
+     * @param onConnectionLost Called if the connection drops while we are still listening
+     */
+    public ClientListener(BufferedReader in, Client.MessageHandler handler, Runnable onConnectionLost) {
+        this(in, handler, null, onConnectionLost);
+    }
+
+    /**
+     * Constructor
+     * @param in Input stream from server
+     * @param handler Callback interface to handle received messages
+     * @param controlHandler Gets PING frames straight from the decode stage,
+     *                       so heartbeats are never stuck behind UI work (may be null)
+     * @param onConnectionLost Called if the connection drops while we are still listening,
+     *                         after everything already received has been dispatched
+     */
+    public ClientListener(BufferedReader in, Client.MessageHandler handler,
+                          Client.MessageHandler controlHandler, Runnable onConnectionLost) {
+        super("client-reader");
         this.in = in;
         this.handler = handler;
+        this.controlHandler = controlHandler;
+        this.onConnectionLost = onConnectionLost;
         this.listening = true;
+
+        this.decodeQueue = new ArrayBlockingQueue<>(Constants.CLIENT_PIPELINE_QUEUE_SIZE);
+        this.dispatchQueue = new ArrayBlockingQueue<>(Constants.CLIENT_PIPELINE_QUEUE_SIZE);
+
+        this.decoder = new Thread(this::runDecoder, "client-decoder");
+        this.decoder.setDaemon(true);
+        this.dispatcher = new Thread(this::runDispatcher, "client-dispatcher");
+        this.dispatcher.setDaemon(true);
     }
 
     /**
-     * Main thread execution
-     * Continuously reads messages from server
+     * Read stage - continuously reads lines from server
+     * Does nothing else, so it keeps up even when the UI is busy
      */
     @Override
     public void run() {
+        decoder.start();
+        dispatcher.start();
+
         String receivedData;
 
         try {
             while (listening && (receivedData = in.readLine()) != null) {
+                framesRead.incrementAndGet();
+                enqueue(decodeQueue, new Frame(receivedData, null, System.nanoTime()));
+            }
+        } catch (IOException e) {
+            if (listening) {
+                System.err.println("Connection to server lost: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // Stopped while waiting for the decoder
+        } finally {
+            System.out.println("ClientListener stopped");
+
+            // Let the later stages finish what was already read
+            try {
+                enqueue(decodeQueue, END);
+            } catch (InterruptedException e) {
+                decoder.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Decode stage - turns lines into Messages
+     */
+    private void runDecoder() {
+        try {
+            while (true) {
+                Frame frame = decodeQueue.take();
+                if (frame == END) {
+                    dispatchQueue.put(END);
+                    return;
+                }
+
                 try {
                     // Parse received message
-                    Message message = Message.fromProtocol(receivedData);
+                    Message message = Message.fromProtocol(frame.line);
 
-                    if (message != null) {
-                        // Pass message to handler (usually a UI component)
-                        if (handler != null) {
-                            handler.onMessageReceived(message);
-                        }
-                    } else {
+                    if (message == null) {
                         System.err.println("Received invalid message format");
+                    } else if (message.getType() == MessageType.PING && controlHandler != null) {
+                        // Heartbeat - answered here, not behind the UI
+                        controlHandler.onMessageReceived(message);
+                    } else {
+                        dispatchQueue.put(new Frame(null, message, frame.readAt));
                     }
+                } catch (RuntimeException e) {
+                    System.err.println("Error decoding received message: " + e.getMessage());
+                }
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
 
+    /**
+     * Dispatch stage - passes Messages to the handler
+     */
+    private void runDispatcher() {
+        try {
+            while (true) {
+                Frame frame = dispatchQueue.take();
+                if (frame == END) {
+                    break;
+                }
+                if (!listening) {
+                    continue; // Stopped on purpose - drop what is left
+                }
+
+                long lag = System.nanoTime() - frame.readAt;
+                lastLagNanos = lag;
+                maxLagNanos.accumulateAndGet(lag, Math::max);
+
+                try {
+                    // Pass message to handler (usually a UI component)
+                    if (handler != null) {
+                        handler.onMessageReceived(frame.message);
+                    }
                 } catch (Exception e) {
                     System.err.println("Error processing received message: " + e.getMessage());
                     e.printStackTrace();
                 }
+                framesDispatched.incrementAndGet();
             }
-        } catch (IOException e) {
-            if (listening) {
-                System.err.println("Connection to server lost: " + e.getMessage());
-            }
-        } finally {
-            System.out.println("ClientListener stopped");
+        } catch (InterruptedException e) {
+            return; // Stopped
+        }
+
+        // Server closed the connection or it broke - not stopped by us
+        if (listening && onConnectionLost != null) {
+            listening = false;
+            onConnectionLost.run();
+        }
+    }
+
+    /**
+     * Put a frame on the next stage's queue, counting it if we had to wait
+     */
+    private void enqueue(BlockingQueue<Frame> queue, Frame frame) throws InterruptedException {
+        if (!queue.offer(frame)) {
+            readerStalls.incrementAndGet();
+            queue.put(frame);
         }
     }
 
@@ -70,6 +232,8 @@ public class ClientListener extends Thread {
     public void stopListening() {
         listening = false;
         this.interrupt();
+        decoder.interrupt();
+        dispatcher.interrupt();
     }
 
     /**
@@ -78,4 +242,60 @@ public class ClientListener extends Thread {
     public boolean isListening() {
         return listening;
     }
+
+    /**
+     * Lines read but not decoded yet
+     */
+    public int getDecodeQueueDepth() {
+        return decodeQueue.size();
+    }
+
+    /**
+     * Messages decoded but not handled yet
+     */
+    public int getDispatchQueueDepth() {
+        return dispatchQueue.size();
+    }
+
+    /**
+     * Time from reading the last handled message to handing it over
+     */
+    public long getLastLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastLagNanos);
+    }
+
+    /**
+     * Worst read-to-handler time seen so far
+     */
+    public long getMaxLagMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxLagNanos.get());
+    }
+
+    public long getFramesRead() {
+        return framesRead.get();
+    }
+
+    public long getFramesDispatched() {
+        return framesDispatched.get();
+    }
+
+    /**
+     * How often reading had to wait because the handler fell a whole queue behind
+     */
+    public long getReaderStalls() {
+        return readerStalls.get();
+    }
+
+    /**
+     * One-line summary of the pipeline metrics, for logs
+     */
+    public String describeMetrics() {
+        return "read=" + getFramesRead() +
+               " dispatched=" + getFramesDispatched() +
+               " decodeQueue=" + getDecodeQueueDepth() +
+               " dispatchQueue=" + getDispatchQueueDepth() +
+               " lag=" + getLastLagMillis() + "ms" +
+               " maxLag=" + getMaxLagMillis() + "ms" +
+               " stalls=" + getReaderStalls();
+    }
 }
@@ -0,0 +1,334 @@
+package client;
+
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * MessageCache.java
+ * Local copy of recent conversations, so the chat window is never empty at startup
+ *
+ * One append-only file per server and username, memory-mapped so that
+ * caching an incoming message is a plain memory copy and reading the
+ * last few thousand lines back needs no parsing of anything else.
+ *
+ * Room messages are kept in two forms:
+ *   ROOM - fetched from the server's history, with their history id
+ *   LIVE - received while online; their id is not known, so they are
+ *          tagged with the history head of the session they arrived in
+ * The header remembers the history id the cache is synced up to. At the
+ * next login only the ids from there to the server's head are fetched,
+ * and they replace the LIVE copies of the same messages.
+ * Private messages are kept as they arrive.
+ *
+ * File layout:
+ *   header:  [int magic][int end][long synced]
+ *   records: [int length][byte kind][long time][long id][length bytes of UTF-8 protocol frame]
+ *
+ * When the file is full the older half is dropped.
+ */
+public class MessageCache {
+
+    private static final int MAGIC = 0x4D434143;          // "MCAC"
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_HEADER_SIZE = 21;      // length + kind + time + id
+    private static final String FILE_SUFFIX = ".cache";
+
+    private static final byte KIND_ROOM = 1;
+    private static final byte KIND_LIVE = 2;
+    private static final byte KIND_PRIVATE = 3;
+
+    private final MappedByteBuffer buffer;
+    private int end;                   // Where the next record goes
+    private long synced;               // Room history ids below this are cached
+
+    /**
+     * Cached room messages, ready to show
+     */
+    public static class RoomView {
+        private final List<Message> messages;
+        private final long oldestId;
+
+        RoomView(List<Message> messages, long oldestId) {
+            this.messages = messages;
+            this.oldestId = oldestId;
+        }
+
+        /**
+         * Oldest first
+         */
+        public List<Message> getMessages() {
+            return messages;
+        }
+
+        /**
+         * History id of the oldest message shown, -1 if none came from history
+         * Scrollback continues from here
+         */
+        public long getOldestId() {
+            return oldestId;
+        }
+    }
+
+    /**
+     * Open (or create) the cache for one user on one server
+     * @param directory Where cache files are kept
+     * @param capacity Size of the cache file in bytes
+     */
+    public static MessageCache open(File directory, String host, int port, String username,
+                                    int capacity) throws IOException {
+        directory.mkdirs();
+
+        String name = (host + "_" + port + "_" + username).replaceAll("[^A-Za-z0-9._-]", "_");
+        File file = new File(directory, name + FILE_SUFFIX);
+
+        // The mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            return new MessageCache(raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        }
+    }
+
+    private MessageCache(MappedByteBuffer buffer) {
+        this.buffer = buffer;
+
+        if (buffer.getInt(0) == MAGIC) {
+            end = buffer.getInt(4);
+            synced = buffer.getLong(8);
+        }
+        if (end < HEADER_SIZE || end > buffer.capacity() || synced < 0) {
+            // New or damaged file - start empty
+            buffer.putInt(0, MAGIC);
+            end = HEADER_SIZE;
+            synced = 0;
+            buffer.putInt(4, end);
+            buffer.putLong(8, synced);
+        }
+    }
+
+    /**
+     * Cache a message received while online
+     * Only room and private chat is kept; everything else is ignored
+     * @param sessionHead History head of the current session
+     */
+    public synchronized void appendLive(Message message, long sessionHead) {
+        if (message.isRoomMessage()) {
+            append(KIND_LIVE, message, sessionHead);
+        } else if (message.getRecipient() != null) {
+            switch (message.getType()) {
+                case PRIVATE:
+                case FILE:
+                    append(KIND_PRIVATE, message, 0);
+                    break;
+                default:
+                    break;
+            }
+        }
+        publish();
+    }
+
+    /**
+     * Cache room messages fetched from the server's history
+     * @param firstId History id of the first message
+     */
+    public synchronized void appendRoom(List<Message> messages, long firstId) {
+        for (int i = 0; i < messages.size(); i++) {
+            append(KIND_ROOM, messages.get(i), firstId + i);
+        }
+        publish();
+    }
+
+    /**
+     * History id the cache is synced up to (exclusive)
+     */
+    public synchronized long getSynced() {
+        return synced;
+    }
+
+    /**
+     * Record that every room message below this id has been fetched
+     */
+    public synchronized void setSynced(long synced) {
+        this.synced = synced;
+        buffer.putLong(8, synced);
+    }
+
+    /**
+     * The most recent room messages, oldest first
+     * @param limit Most messages returned
+     * @param supersededBelow LIVE messages from sessions before this history
+     *                        head are left out - a sync is about to bring them
+     *                        back from the server with their ids
+     */
+    public synchronized RoomView loadRoom(int limit, long supersededBelow) {
+        long liveFloor = Math.max(synced, supersededBelow);
+        Set<Long> seenIds = new HashSet<>();
+
+        List<Integer> positions = new ArrayList<>();
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = buffer.getInt(position);
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > end) {
+                break; // Torn record - nothing after it can be trusted
+            }
+
+            byte kind = buffer.get(position + 4);
+            long id = buffer.getLong(position + 13);
+            if ((kind == KIND_ROOM && seenIds.add(id)) || (kind == KIND_LIVE && id >= liveFloor)) {
+                positions.add(position);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        List<Message> messages = new ArrayList<>();
+        long oldestId = -1;
+        for (int recordPosition : newest(positions, limit)) {
+            Message message = readMessage(recordPosition);
+            if (message == null) {
+                continue;
+            }
+            messages.add(message);
+
+            long id = buffer.getLong(recordPosition + 13);
+            if (buffer.get(recordPosition + 4) == KIND_ROOM && (oldestId < 0 || id < oldestId)) {
+                oldestId = id;
+            }
+        }
+        return new RoomView(messages, oldestId);
+    }
+
+    /**
+     * The most recent private messages with one user, oldest first
+     */
+    public synchronized List<Message> loadConversation(String peer, int limit) {
+        List<Integer> positions = new ArrayList<>();
+        List<Message> candidates = new ArrayList<>();
+
+        int position = HEADER_SIZE;
+        while (position + RECORD_HEADER_SIZE <= end) {
+            int length = buffer.getInt(position);
+            if (length < 0 || position + RECORD_HEADER_SIZE + length > end) {
+                break;
+            }
+            if (buffer.get(position + 4) == KIND_PRIVATE) {
+                positions.add(position);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        // Walk back from the newest, decoding only until we have enough
+        for (int i = positions.size() - 1; i >= 0 && candidates.size() < limit; i--) {
+            Message message = readMessage(positions.get(i));
+            if (message != null && (peer.equals(message.getSender()) || peer.equals(message.getRecipient()))) {
+                candidates.add(message);
+            }
+        }
+
+        List<Message> messages = new ArrayList<>();
+        for (int i = candidates.size() - 1; i >= 0; i--) {
+            messages.add(candidates.get(i));
+        }
+        return messages;
+    }
+
+    /**
+     * Flush the cache to disk (called on disconnect)
+     */
+    public synchronized void close() {
+        buffer.force();
+    }
+
+    /**
+     * The newest records by time, oldest first
+     * Records are appended roughly in time order, but a sync writes
+     * fetched messages after LIVE ones that arrived meanwhile
+     */
+    private List<Integer> newest(List<Integer> positions, int limit) {
+        Integer[] ordered = positions.toArray(new Integer[0]);
+        Arrays.sort(ordered, (a, b) -> Long.compare(buffer.getLong(a + 5), buffer.getLong(b + 5)));
+
+        int from = Math.max(0, ordered.length - limit);
+        return Arrays.asList(ordered).subList(from, ordered.length);
+    }
+
+    /**
+     * Append one record (the caller publishes the new end)
+     */
+    private void append(byte kind, Message message, long id) {
+        byte[] frame = message.toProtocol(0).getBytes(StandardCharsets.UTF_8);
+        int needed = RECORD_HEADER_SIZE + frame.length;
+        if (needed > buffer.capacity() - HEADER_SIZE) {
+            return; // Would never fit
+        }
+        if (end + needed > buffer.capacity()) {
+            dropOlderHalf();
+        }
+
+        buffer.putInt(end, frame.length);
+        buffer.put(end + 4, kind);
+        buffer.putLong(end + 5, Message.toEpochMillis(message.getTimestamp()));
+        buffer.putLong(end + 13, id);
+        for (int i = 0; i < frame.length; i++) {
+            buffer.put(end + RECORD_HEADER_SIZE + i, frame[i]);
+        }
+        end += needed;
+    }
+
+    /**
+     * Publish the new end last, so a crash mid-write loses only the newest records
+     */
+    private void publish() {
+        buffer.putInt(4, end);
+    }
+
+    /**
+     * Make room by moving the newer half of the records to the front
+     * Only happens when the file is full, never on the common path
+     */
+    private void dropOlderHalf() {
+        int keepFrom = HEADER_SIZE;
+        int half = (end - HEADER_SIZE) / 2;
+        while (keepFrom + RECORD_HEADER_SIZE <= end && keepFrom - HEADER_SIZE < half) {
+            int length = buffer.getInt(keepFrom);
+            if (length < 0) {
+                keepFrom = end;
+                break;
+            }
+            keepFrom += RECORD_HEADER_SIZE + length;
+        }
+        keepFrom = Math.min(keepFrom, end);
+
+        byte[] kept = new byte[end - keepFrom];
+        for (int i = 0; i < kept.length; i++) {
+            kept[i] = buffer.get(keepFrom + i);
+        }
+        for (int i = 0; i < kept.length; i++) {
+            buffer.put(HEADER_SIZE + i, kept[i]);
+        }
+        end = HEADER_SIZE + kept.length;
+        publish();
+    }
+
+    private Message readMessage(int position) {
+        int length = buffer.getInt(position);
+        byte[] frame = new byte[length];
+        for (int i = 0; i < length; i++) {
+            frame[i] = buffer.get(position + RECORD_HEADER_SIZE + i);
+        }
+
+        Message message = Message.fromProtocol(new String(frame, StandardCharsets.UTF_8));
+        if (message != null) {
+            message.setTimestamp(Message.fromEpochMillis(buffer.getLong(position + 5)));
+        }
+        return message;
+    }
+}
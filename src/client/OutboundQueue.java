@@ -0,0 +1,172 @@
+package client;
+
+import common.Constants;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * OutboundQueue.java
+ * Asynchronous send path for the client
+ *
+ * Callers (usually the Swing event thread) only put frames in a queue
+ * and get a future back; they never touch the socket. One writer thread
+ * takes whatever has queued up, writes it as a single batch with one
+ * flush, and then completes the futures.
+ *
+ * While the connection is down (e.g. during a reconnect) the writer
+ * waits and frames keep queueing, so they go out as soon as a new
+ * connection is attached.
+ */
+public class OutboundQueue {
+
+    /**
+     * A frame waiting to be written, and who to tell when it has been
+     */
+    private static final class Pending {
+        final String frame;
+        final CompletableFuture<Void> result;
+
+        Pending(String frame, CompletableFuture<Void> result) {
+            this.frame = frame;
+            this.result = result;
+        }
+    }
+
+    private final LinkedBlockingQueue<Pending> queue;
+
+    private final Object writerLock = new Object();
+    private PrintWriter writer;           // Current connection, null while detached
+
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor
+     */
+    public OutboundQueue() {
+        this.queue = new LinkedBlockingQueue<>(Constants.CLIENT_SEND_QUEUE_SIZE);
+    }
+
+    /**
+     * Queue a frame for sending - never blocks
+     * @return completes once the frame has been written to the socket,
+     *         or exceptionally if the queue is full or the write failed
+     */
+    public CompletableFuture<Void> send(String frame) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+
+        if (!queue.offer(new Pending(frame, result))) {
+            result.completeExceptionally(new IOException("Too many messages waiting to be sent"));
+        }
+        return result;
+    }
+
+    /**
+     * Start writing to a (new) connection
+     * Starts the writer thread the first time
+     */
+    public synchronized void attach(PrintWriter out) {
+        synchronized (writerLock) {
+            writer = out;
+            writerLock.notifyAll();
+        }
+
+        if (!running) {
+            running = true;
+            thread = new Thread(this::runWriter, "client-writer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Stop writing to the current connection; sends keep queueing
+     */
+    public void detach() {
+        synchronized (writerLock) {
+            writer = null;
+        }
+    }
+
+    /**
+     * Stop the writer thread and fail anything still queued
+     */
+    public synchronized void stop() {
+        running = false;
+        detach();
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Writer thread: one write and one flush per batch
+     */
+    private void runWriter() {
+        List<Pending> batch = new ArrayList<>();
+
+        try {
+            while (running) {
+                batch.add(queue.take());
+                queue.drainTo(batch, Constants.CLIENT_SEND_BATCH - 1);
+
+                StringBuilder data = new StringBuilder();
+                for (Pending pending : batch) {
+                    data.append(pending.frame).append(Constants.MESSAGE_END);
+                }
+
+                PrintWriter out = awaitWriter();
+                out.print(data);
+                out.flush();
+
+                // PrintWriter swallows IOExceptions - ask it instead
+                IOException failure = out.checkError()
+                                      ? new IOException("Connection lost while sending")
+                                      : null;
+                for (Pending pending : batch) {
+                    if (failure == null) {
+                        pending.result.complete(null);
+                    } else {
+                        pending.result.completeExceptionally(failure);
+                    }
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+
+        IOException stopped = new IOException("Client disconnected");
+        for (Pending pending : batch) {
+            pending.result.completeExceptionally(stopped);
+        }
+        Pending pending;
+        while ((pending = queue.poll()) != null) {
+            pending.result.completeExceptionally(stopped);
+        }
+    }
+
+    /**
+     * Wait until a connection is attached
+     */
+    private PrintWriter awaitWriter() throws InterruptedException {
+        synchronized (writerLock) {
+            while (writer == null) {
+                writerLock.wait();
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * Number of frames waiting to be written
+     */
+    public int size() {
+        return queue.size();
+    }
+}
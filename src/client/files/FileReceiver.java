@@ -0,0 +1,93 @@
+package client.files;
+
+import common.Constants;
+import common.FileReference;
+import common.Message;
+import common.MessageType;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileReceiver.java
+ * Handles incoming file shares
+ *
+ * Shared files arrive as hash references only. Content is fetched
+ * lazily, when the user actually chooses to download the file.
+ */
+public class FileReceiver {
+
+    // hash -> reference, for files we have requested and are waiting on
+    private final ConcurrentHashMap<String, FileReference> requested;
+
+    /**
+     * Constructor
+     */
+    public FileReceiver() {
+        this.requested = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Build a FILE_FETCH request for a shared file
+     */
+    public Message createFetch(String sender, FileReference reference) {
+        requested.put(reference.getHash(), reference);
+        return new Message(MessageType.FILE_FETCH, sender, reference.getHash());
+    }
+
+    /**
+     * Save file content received from the server (HASH:BASE64_DATA)
+     * @return the saved file, or null if we never asked for this content
+     */
+    public File saveFile(String content) throws IOException {
+        String[] parts = content.split(":", 2);
+        if (parts.length < 2) {
+            return null;
+        }
+
+        FileReference reference = requested.remove(parts[0]);
+        if (reference == null) {
+            return null;
+        }
+
+        byte[] data = Base64.getDecoder().decode(parts[1]);
+        if (!reference.getHash().equals(FileReference.hashOf(data))) {
+            throw new IOException("Downloaded file is corrupt: " + reference.getName());
+        }
+
+        File directory = new File(Constants.FILE_STORAGE_PATH);
+        directory.mkdirs();
+        File target = uniqueTarget(directory, safeName(reference.getName()));
+
+        try (FileOutputStream out = new FileOutputStream(target)) {
+            out.write(data);
+        }
+        return target;
+    }
+
+    /**
+     * Strip any path components a sender may have put in the name
+     */
+    private String safeName(String name) {
+        String cleaned = new File(name.replace('\\', '/')).getName();
+        return cleaned.isEmpty() || cleaned.startsWith(".") ? "file" + cleaned : cleaned;
+    }
+
+    /**
+     * Pick "name (1).ext", "name (2).ext" ... instead of overwriting
+     */
+    private File uniqueTarget(File directory, String name) {
+        File target = new File(directory, name);
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+
+        for (int i = 1; target.exists(); i++) {
+            target = new File(directory, base + " (" + i + ")" + extension);
+        }
+        return target;
+    }
+}
@@ -0,0 +1,69 @@
+package client.files;
+
+import common.Constants;
+import common.FileReference;
+import common.Message;
+import common.MessageType;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FileSender.java
+ * Prepares outgoing file shares
+ *
+ * A file is first announced by its hash only. The bytes are uploaded
+ * later, and only if the server asks for them (it doesn't have that
+ * content yet). Re-sending the same file never uploads it twice.
+ */
+public class FileSender {
+
+    // hash -> local file, remembered until the server asks for the upload
+    private final ConcurrentHashMap<String, File> pendingUploads;
+
+    /**
+     * Constructor
+     */
+    public FileSender() {
+        this.pendingUploads = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Build a FILE message referencing the file by hash
+     * @param recipient Target user, or null to share with everyone
+     */
+    public Message prepareFile(String sender, String recipient, File file) throws IOException {
+        if (file.length() > Constants.MAX_FILE_SIZE) {
+            throw new IOException("File is larger than " + (Constants.MAX_FILE_SIZE / (1024 * 1024)) + " MB");
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        FileReference reference = new FileReference(FileReference.hashOf(data), data.length, file.getName());
+
+        pendingUploads.put(reference.getHash(), file);
+
+        return new Message(MessageType.FILE, sender, recipient, reference.toContent());
+    }
+
+    /**
+     * Build the upload the server asked for
+     * @return null if we don't know this hash (nothing to upload)
+     */
+    public Message createUpload(String sender, String hash) throws IOException {
+        File file = pendingUploads.remove(hash);
+        if (file == null) {
+            return null;
+        }
+
+        byte[] data = Files.readAllBytes(file.toPath());
+        if (!hash.equals(FileReference.hashOf(data))) {
+            throw new IOException("File changed since it was shared: " + file.getName());
+        }
+
+        return new Message(MessageType.FILE_UPLOAD, sender,
+                           hash + ":" + Base64.getEncoder().encodeToString(data));
+    }
+}
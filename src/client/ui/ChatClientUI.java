@@ -1,14 +1,30 @@
 package client.ui;
 
 import client.Client;
+import client.MessageCache;
 import client.utils.UIUtils;
+import common.Constants;
+import common.FileReference;
+import common.HistoryPage;
 import common.Message;
 import common.MessageType;
+import common.ProtocolFields;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -19,9 +35,17 @@ import java.util.Map;
 public class ChatClientUI extends JFrame implements Client.MessageHandler {
 
     private Client client;
-    private JTextArea chatArea;
+    private ChatView chatView;
+    private EdtBatcher<Message> chatUpdates;   // Incoming rows, applied once per frame
     private JTextField messageField;
+    private JLabel typingLabel;                // Who else is typing in the group chat
+    private Timer typingClear;                 // Clears it if the server goes quiet
+    private JLabel readLabel;                  // Who has read my latest group message
+    private ReadNotifier readNotifier;
+    private long ownLatestSeq;                 // Conversation seq of my latest group message
+    private long latestSeq;                    // Highest conversation seq on screen
     private JButton sendButton;
+    private JButton sendFileButton;
     private JButton privateChatButton;
     private JButton refreshUsersButton;
     private JButton disconnectButton;
@@ -31,6 +55,16 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
     // Store open private chat windows
     private Map<String, PrivateChatUI> privateChats;
 
+    // Scrollback - older room messages are paged in when the user scrolls to the top
+    private long historyCursor;       // Next page ends just before this history id
+    private boolean historyMore;      // Is there anything older left to load?
+    private boolean historyLoading;   // A page has been requested and not arrived yet
+
+    // Startup - live messages wait until the messages missed since last time are shown
+    private boolean syncing;
+    private final List<Message> heldMessages = new ArrayList<>();
+    private long cachedOldestId = -1; // History id of the oldest cached room message shown
+
     /**
      * Constructor
      */
@@ -40,11 +74,61 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
 
         initializeUI();
 
+        // Recent messages from the local cache - on screen before the server sends anything
+        MessageCache.RoomView cached = client.loadCachedRoom();
+        if (cached != null) {
+            chatView.appendMessages(cached.getMessages());
+            noteShown(cached.getMessages());
+            cachedOldestId = cached.getOldestId();
+        }
+        syncing = true;
+
+        // Welcome text and user list came with the login handshake
+        displayMessage(Message.systemMessage(client.getWelcomeMessage()));
+        updateUsersList(client.getOnlineUsers());
+
         // Start listening for messages from server
         client.startListening(this);
 
-        // Request initial user list
-        client.requestUserList();
+        // Fetch what the cache missed; give up waiting if the server never answers
+        client.syncMessageCache(delta -> SwingUtilities.invokeLater(() -> finishSync(delta)));
+        Timer syncTimeout = new Timer((int) Constants.CLIENT_CACHE_SYNC_TIMEOUT_MS, e -> {
+            long head = client.getHistoryHead();
+            finishSync(new HistoryPage(head, head, head > 0, new ArrayList<>()));
+        });
+        syncTimeout.setRepeats(false);
+        syncTimeout.start();
+    }
+
+    /**
+     * Show the messages missed since the cache was last synced, then
+     * everything that arrived meanwhile
+     * Scrollback continues from the oldest room message on screen.
+     */
+    private void finishSync(HistoryPage delta) {
+        if (!syncing) {
+            return; // Timed out earlier
+        }
+        syncing = false;
+
+        chatView.appendMessages(delta.getMessages());
+        chatView.appendMessages(heldMessages);
+        noteShown(delta.getMessages());
+        noteShown(heldMessages);
+        heldMessages.clear();
+
+        // Who has read my latest message by now?
+        if (ownLatestSeq > 0) {
+            client.requestReadReceipt(null, ownLatestSeq);
+        }
+
+        historyCursor = cachedOldestId >= 0 ? cachedOldestId : delta.getFirst();
+        historyMore = client.hasServerCapability(Constants.CAP_HISTORY) && historyCursor > 0;
+
+        // Nothing cached or fetched - show the latest page of room history as before
+        if (cachedOldestId < 0 && delta.getMessages().isEmpty()) {
+            loadOlderHistory();
+        }
     }
 
     /**
@@ -67,6 +151,12 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
             public void windowClosing(WindowEvent e) {
                 handleDisconnect();
             }
+
+            @Override
+            public void windowActivated(WindowEvent e) {
+                // Whatever is on screen has now been read
+                readNotifier.seen(latestSeq);
+            }
         });
 
         UIUtils.centerWindow(this);
@@ -85,11 +175,14 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         titleLabel.setForeground(UIUtils.PRIMARY_COLOR);
 
         // Chat area
-        chatArea = UIUtils.createTextArea(20, 50);
-        JScrollPane scrollPane = UIUtils.createScrollPane(chatArea);
+        chatView = new ChatView(Constants.CHAT_VIEW_MAX_MESSAGES);
+        chatUpdates = new EdtBatcher<>(this::showMessages);
+
+        // Reaching the top of the chat loads the page before it
+        chatView.setOnScrolledToTop(this::loadOlderHistory);
 
         chatPanel.add(titleLabel, BorderLayout.NORTH);
-        chatPanel.add(scrollPane, BorderLayout.CENTER);
+        chatPanel.add(chatView, BorderLayout.CENTER);
 
         add(chatPanel, BorderLayout.CENTER);
     }
@@ -111,7 +204,8 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         usersListModel = new DefaultListModel<>();
         usersList = new JList<>(usersListModel);
         usersList.setFont(new Font("Arial", Font.PLAIN, 12));
-        usersList.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        // Several users selected -> private session with all of them
+        usersList.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
         JScrollPane usersScrollPane = new JScrollPane(usersList);
         usersScrollPane.setBorder(BorderFactory.createLineBorder(new Color(189, 195, 199)));
 
@@ -159,14 +253,43 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         messageField = UIUtils.createTextField("Type your message here...");
         messageField.setFont(new Font("Arial", Font.PLAIN, 14));
         messageField.addActionListener(e -> handleSendMessage());
+        new TypingNotifier(client, null, messageField);
+
+        // Who else is typing
+        typingLabel = new JLabel(" ");
+        typingLabel.setFont(new Font("Arial", Font.ITALIC, 10));
+        typingLabel.setForeground(UIUtils.SYSTEM_MSG_COLOR);
+        typingClear = new Timer((int) Constants.TYPING_EXPIRE_MS, e -> typingLabel.setText(" "));
+        typingClear.setRepeats(false);
+
+        // Who has read my latest message
+        readLabel = new JLabel(" ");
+        readLabel.setFont(new Font("Arial", Font.ITALIC, 10));
+        readLabel.setForeground(UIUtils.SYSTEM_MSG_COLOR);
+        readNotifier = new ReadNotifier(client, null);
+
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        statusPanel.add(typingLabel, BorderLayout.WEST);
+        statusPanel.add(readLabel, BorderLayout.EAST);
 
         // Send button
         sendButton = UIUtils.createButton("Send", UIUtils.PRIMARY_COLOR);
         sendButton.setPreferredSize(new Dimension(100, 35));
         sendButton.addActionListener(e -> handleSendMessage());
 
+        // Send file button (shares with everyone)
+        sendFileButton = UIUtils.createButton("Send File", UIUtils.SECONDARY_COLOR);
+        sendFileButton.setPreferredSize(new Dimension(110, 35));
+        sendFileButton.addActionListener(e -> handleSendFile(null));
+        sendFileButton.setEnabled(client.hasServerCapability(Constants.CAP_FILES));
+
+        JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
+        buttonPanel.add(sendFileButton);
+        buttonPanel.add(sendButton);
+
         inputPanel.add(messageField, BorderLayout.CENTER);
-        inputPanel.add(sendButton, BorderLayout.EAST);
+        inputPanel.add(buttonPanel, BorderLayout.EAST);
+        inputPanel.add(statusPanel, BorderLayout.SOUTH);
 
         add(inputPanel, BorderLayout.SOUTH);
     }
@@ -188,19 +311,156 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
             return;
         }
 
-        // Send broadcast message
-        client.sendBroadcastMessage(message);
+        if (message.equals(Constants.CMD_SEARCH) || message.startsWith(Constants.CMD_SEARCH + " ")) {
+            handleSearchCommand(message.substring(Constants.CMD_SEARCH.length()).trim());
+            messageField.setText("");
+            return;
+        }
+
+        // Send broadcast message - queued, so the window never waits on the network
+        client.sendBroadcastMessage(message).exceptionally(e -> {
+            displayText("Message not sent: " + message);
+            return null;
+        });
 
         // Clear input field
         messageField.setText("");
         messageField.requestFocus();
     }
 
+    /**
+     * Handle the /search command
+     * Syntax: /search [from:user] [type:broadcast|file|system]
+     *                 [after:yyyy-MM-dd] [before:yyyy-MM-dd] [page:N] words...
+     */
+    private void handleSearchCommand(String arguments) {
+        if (!client.hasServerCapability(Constants.CAP_SEARCH)) {
+            displayText("This server does not support search.");
+            return;
+        }
+
+        StringBuilder query = new StringBuilder();
+        String from = null;
+        String type = null;
+        long since = 0;
+        long until = 0;
+        int page = 1;
+
+        try {
+            for (String word : arguments.split("\\s+")) {
+                if (word.startsWith("from:")) {
+                    from = word.substring(5);
+                } else if (word.startsWith("type:")) {
+                    type = word.substring(5);
+                } else if (word.startsWith("after:")) {
+                    since = startOfDay(word.substring(6));
+                } else if (word.startsWith("before:")) {
+                    until = startOfDay(word.substring(7));
+                } else if (word.startsWith("page:")) {
+                    page = Integer.parseInt(word.substring(5));
+                } else if (!word.isEmpty()) {
+                    query.append(word).append(' ');
+                }
+            }
+        } catch (DateTimeParseException | NumberFormatException e) {
+            displayText("Usage: " + Constants.CMD_SEARCH +
+                        " [from:user] [type:file] [after:2024-01-31] [before:2024-02-01] [page:2] words");
+            return;
+        }
+
+        client.searchHistory(query.toString().trim(), from, type, since, until, page);
+    }
+
+    /**
+     * Midnight at the start of a yyyy-MM-dd date, in epoch millis
+     */
+    private long startOfDay(String date) {
+        return LocalDate.parse(date).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Show one page of search results in the chat area
+     */
+    private void showSearchResults(Message message) {
+        Map<String, String> fields = ProtocolFields.decode(message.getContent());
+        List<String> results = ProtocolFields.decodeList(fields.get("results"));
+        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
+
+        StringBuilder text = new StringBuilder();
+        text.append("--- Search \"").append(fields.get("q")).append("\": ")
+            .append(fields.get("total")).append(" results (page ")
+            .append(fields.get("page")).append(" of ").append(fields.get("pages")).append(") ---\n");
+
+        for (String result : results) {
+            Map<String, String> hit = ProtocolFields.decode(result);
+            String time = LocalDateTime.ofInstant(Instant.ofEpochMilli(Long.parseLong(hit.get("time"))),
+                                                  ZoneId.systemDefault()).format(formatter);
+            text.append("  [").append(time).append("] ");
+
+            MessageType type = MessageType.fromString(hit.get("type"));
+            if (type == MessageType.SYSTEM) {
+                text.append(hit.get("text"));
+            } else if (type == MessageType.FILE) {
+                text.append(hit.get("from")).append(" shared a file: ").append(hit.get("text"));
+            } else {
+                text.append(hit.get("from")).append(": ").append(hit.get("text"));
+            }
+            text.append("\n");
+        }
+
+        displayText(text.toString().trim());
+    }
+
+    /**
+     * Let the user pick a file and share it
+     * @param recipient Target user, or null to share with everyone
+     */
+    void handleSendFile(String recipient) {
+        JFileChooser chooser = new JFileChooser();
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+
+        File file = chooser.getSelectedFile();
+        try {
+            client.sendFile(recipient, file);
+        } catch (IOException e) {
+            UIUtils.showError(this, "Could not send file: " + e.getMessage(), "File Error");
+        }
+    }
+
+    /**
+     * Offer to download a file someone shared
+     * Content is only fetched from the server if the user says yes
+     */
+    private void offerFileDownload(Message message) {
+        FileReference file = FileReference.fromContent(message.getContent());
+        if (file == null || message.getSender().equals(client.getUsername())) {
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            boolean download = UIUtils.showConfirmation(this,
+                message.getSender() + " shared " + file.getName() + " (" + file.getDisplaySize() + ").\n" +
+                "Download it?",
+                "File Shared");
+            if (download) {
+                client.requestFile(file);
+            }
+        });
+    }
+
     /**
      * Handle private chat button
      * Opens private chat window with selected user
      */
     private void handlePrivateChat() {
+        List<String> selectedUsers = usersList.getSelectedValuesList();
+        if (selectedUsers.size() > 1) {
+            startPrivateSession(selectedUsers);
+            return;
+        }
+
         String selectedUser = usersList.getSelectedValue();
 
         if (selectedUser == null) {
@@ -232,6 +492,93 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         }
     }
 
+    /**
+     * Start a private session and invite everyone selected
+     * The server creates the session with the first invitation
+     */
+    private void startPrivateSession(List<String> users) {
+        String sessionId = client.newSessionId();
+        String address = Constants.SESSION_ADDRESS_PREFIX + sessionId;
+
+        PrivateChatUI privateChatUI = new PrivateChatUI(client, address, this);
+        privateChats.put(address, privateChatUI);
+        privateChatUI.updateMembers(Collections.singletonList(client.getUsername()));
+        privateChatUI.setVisible(true);
+
+        for (String user : users) {
+            if (!user.equals(client.getUsername())) {
+                client.inviteToSession(sessionId, user);
+            }
+        }
+    }
+
+    /**
+     * An invitation to a private session - ours going out, or someone else's for us
+     */
+    private void handleSessionInvite(Message message) {
+        Map<String, String> fields = ProtocolFields.decode(message.getContent());
+        String sessionId = fields.get("session");
+        String address = Constants.SESSION_ADDRESS_PREFIX + sessionId;
+
+        SwingUtilities.invokeLater(() -> {
+            if (message.getSender().equals(client.getUsername())) {
+                PrivateChatUI privateChatUI = privateChats.get(address);
+                if (privateChatUI != null) {
+                    privateChatUI.showNotice("Invited " + message.getRecipient() + " - waiting for them to join.");
+                }
+                return;
+            }
+
+            boolean join = UIUtils.showConfirmation(this,
+                message.getSender() + " invites you to a private session with " +
+                String.join(", ", ProtocolFields.decodeList(fields.get("members"))) + ".\nJoin?",
+                "Private Session");
+            if (join) {
+                client.joinSession(sessionId);
+            }
+        });
+    }
+
+    /**
+     * Someone joined or left a private session
+     * Our own join opens the session's window
+     */
+    private void handleSessionUpdate(Message message) {
+        Map<String, String> fields = ProtocolFields.decode(message.getContent());
+        String address = message.getRecipient();
+        List<String> members = ProtocolFields.decodeList(fields.get("members"));
+
+        SwingUtilities.invokeLater(() -> {
+            PrivateChatUI privateChatUI = privateChats.get(address);
+            if (privateChatUI == null && client.getUsername().equals(fields.get("joined"))) {
+                privateChatUI = new PrivateChatUI(client, address, this);
+                privateChats.put(address, privateChatUI);
+                privateChatUI.setVisible(true);
+            }
+            if (privateChatUI == null) {
+                return;
+            }
+
+            privateChatUI.updateMembers(members);
+            if (fields.containsKey("joined")) {
+                privateChatUI.showNotice(fields.get("joined") + " joined the session.");
+            } else if (fields.containsKey("left")) {
+                privateChatUI.showNotice(fields.get("left") + " left the session.");
+            }
+        });
+    }
+
+    /**
+     * Users currently shown as online
+     */
+    public List<String> getOnlineUsers() {
+        List<String> users = new ArrayList<>();
+        for (int i = 0; i < usersListModel.size(); i++) {
+            users.add(usersListModel.get(i));
+        }
+        return users;
+    }
+
     /**
      * Remove private chat from map when window is closed
      */
@@ -274,31 +621,88 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
      * Display message in chat area
      */
     private void displayMessage(Message message) {
+        chatUpdates.add(message);
+    }
+
+    /**
+     * Apply one batch of rows to the chat area (on the EDT)
+     * Held back while the startup sync is running, so they land after it
+     */
+    private void showMessages(List<Message> messages) {
+        if (syncing) {
+            heldMessages.addAll(messages);
+        } else {
+            chatView.appendMessages(messages);
+            noteShown(messages);
+        }
+    }
+
+    /**
+     * Keep track of room messages that reached the screen
+     * My own new message resets its "seen by"; the rest count as read if the window is active
+     */
+    private void noteShown(List<Message> messages) {
+        for (Message message : messages) {
+            long seq = message.getConversationSeq();
+            latestSeq = Math.max(latestSeq, seq);
+            if (seq > ownLatestSeq && client.getUsername().equals(message.getSender())) {
+                ownLatestSeq = seq;
+                readLabel.setText(" ");
+            }
+        }
+        if (isActive()) {
+            readNotifier.seen(latestSeq);
+        }
+    }
+
+    /**
+     * Display plain text (not a chat message) in chat area
+     */
+    private void displayText(String text) {
+        chatUpdates.add(ChatView.textRow(text));
+    }
+
+    /**
+     * Request the page of room history before what is shown
+     * Only one request is in flight at a time, and none once the
+     * view is full - it never holds more than CHAT_VIEW_MAX_MESSAGES
+     */
+    private void loadOlderHistory() {
+        if (!historyMore || historyLoading || chatView.remainingCapacity() == 0) {
+            return;
+        }
+        historyLoading = true;
+        client.requestHistory(historyCursor);
+    }
+
+    /**
+     * Insert a page of older messages above the ones shown
+     * The view stays on the line the user was looking at
+     */
+    private void showHistoryPage(HistoryPage page) {
         SwingUtilities.invokeLater(() -> {
-            chatArea.append(message.toDisplayFormat() + "\n");
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+            if (page.getBefore() != historyCursor) {
+                return; // Stale or duplicate answer
+            }
+            historyLoading = false;
+
+            List<Message> messages = page.getMessages();
+            int added = chatView.prependMessages(messages);
+
+            // The view filled up part way through the page - the rest stays on the server
+            historyCursor = page.getFirst() + (messages.size() - added);
+            historyMore = page.hasMore() || added < messages.size();
         });
     }
 
     /**
      * Update online users list
      */
-    private void updateUsersList(String userListString) {
+    private void updateUsersList(List<String> users) {
         SwingUtilities.invokeLater(() -> {
             usersListModel.clear();
-
-            // Parse user list: "Online users: Alice, Bob, Charlie"
-            if (userListString.contains(":")) {
-                String[] parts = userListString.split(":");
-                if (parts.length > 1) {
-                    String users = parts[1].trim();
-                    if (!users.isEmpty()) {
-                        String[] userArray = users.split(",");
-                        for (String user : userArray) {
-                            usersListModel.addElement(user.trim());
-                        }
-                    }
-                }
+            for (String user : users) {
+                usersListModel.addElement(user);
             }
         });
     }
@@ -323,9 +727,65 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
                 handlePrivateMessage(message);
                 break;
 
+            case PRIVATE_REQUEST:
+                // Invitation to a private session
+                handleSessionInvite(message);
+                break;
+
+            case PRIVATE_ACCEPT:
+                // Private session membership changed
+                handleSessionUpdate(message);
+                break;
+
+            case FILE:
+                // Shared file - show it where it was shared, then offer download
+                if (message.getRecipient() == null) {
+                    displayMessage(message);
+                } else {
+                    handlePrivateMessage(message);
+                }
+                offerFileDownload(message);
+                break;
+
+            case HISTORY_PAGE:
+                // Older room messages for scrollback
+                HistoryPage page = HistoryPage.fromContent(message.getContent());
+                if (page != null && page.getWith() != null) {
+                    // A private conversation's history - goes to its window
+                    SwingUtilities.invokeLater(() -> {
+                        PrivateChatUI privateChatUI = privateChats.get(page.getWith());
+                        if (privateChatUI != null) {
+                            privateChatUI.showHistoryPage(page);
+                        }
+                    });
+                } else if (page != null) {
+                    showHistoryPage(page);
+                }
+                break;
+
+            case SEARCH_RESULTS:
+                // Answer to a /search command
+                showSearchResults(message);
+                break;
+
+            case TYPING:
+                // Who is typing - in the group chat or one of the private windows
+                handleTyping(message);
+                break;
+
+            case READ:
+                // Who has read my latest message somewhere
+                handleReadReceipt(message);
+                break;
+
             case USER_LIST:
                 // Update users list
-                updateUsersList(message.getContent());
+                updateUsersList(ProtocolFields.decodeList(message.getContent()));
+                break;
+
+            case PRESENCE:
+                // Someone came or went - the client has already updated its list
+                updateUsersList(client.getOnlineUsers());
                 break;
 
             case ERROR:
@@ -342,6 +802,55 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         }
     }
 
+    /**
+     * Show who is typing where
+     * The recipient is the room: none for the group chat, otherwise the
+     * other user or the session - the same key as the private windows
+     */
+    private void handleTyping(Message message) {
+        List<String> typists = ProtocolFields.decodeList(message.getContent());
+
+        SwingUtilities.invokeLater(() -> {
+            if (message.getRecipient() == null) {
+                typingLabel.setText(TypingNotifier.describe(typists));
+                typingClear.restart();
+                return;
+            }
+
+            PrivateChatUI privateChatUI = privateChats.get(message.getRecipient());
+            if (privateChatUI != null) {
+                privateChatUI.showTyping(typists);
+            }
+        });
+    }
+
+    /**
+     * Show a read receipt in the group chat or the private window it is about
+     * Only receipts for my latest message there are shown
+     */
+    private void handleReadReceipt(Message message) {
+        long seq;
+        try {
+            seq = Long.parseLong(ProtocolFields.decode(message.getContent()).get("seq"));
+        } catch (NumberFormatException e) {
+            return;
+        }
+
+        SwingUtilities.invokeLater(() -> {
+            if (message.getRecipient() == null) {
+                if (seq == ownLatestSeq) {
+                    readLabel.setText(ReadNotifier.describe(message));
+                }
+                return;
+            }
+
+            PrivateChatUI privateChatUI = privateChats.get(message.getRecipient());
+            if (privateChatUI != null) {
+                privateChatUI.showReadReceipt(seq, message);
+            }
+        });
+    }
+
     /**
      * Handle private message
      * Routes to appropriate private chat window or creates new one
@@ -350,9 +859,11 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
         String sender = message.getSender();
         String myUsername = client.getUsername();
 
-        // Determine who the "other person" is
+        // Determine who the "other person" is (for a session, the session itself)
         String otherPerson;
-        if (sender.equals(myUsername)) {
+        if (message.getRecipient() != null && message.getRecipient().startsWith(Constants.SESSION_ADDRESS_PREFIX)) {
+            otherPerson = message.getRecipient();
+        } else if (sender.equals(myUsername)) {
             // Message sent by me, other person is recipient
             otherPerson = message.getRecipient();
         } else {
@@ -371,7 +882,9 @@ public class ChatClientUI extends JFrame implements Client.MessageHandler {
                 PrivateChatUI privateChatUI = new PrivateChatUI(client, otherPerson, this);
                 privateChats.put(otherPerson, privateChatUI);
                 privateChatUI.setVisible(true);
-                privateChatUI.displayMessage(message);
+                if (!privateChatUI.showsCachedHistory()) {
+                    privateChatUI.displayMessage(message);
+                }
 
                 // Show notification
                 privateChatUI.toFront();
@@ -0,0 +1,299 @@
+package client.ui;
+
+import client.utils.UIUtils;
+import common.Constants;
+import common.Message;
+import common.MessageType;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * ChatView.java
+ * Scrollable message pane that stays fast however long the chat runs
+ *
+ * Instead of appending to one ever-growing text document, messages are
+ * kept in a bounded MessageListModel and shown in a JList. The list only
+ * paints the rows that are on screen, and each row's wrapped height is
+ * worked out once and cached, so a new message costs the same whether
+ * the pane holds ten messages or ten thousand.
+ *
+ * All methods must be called on the event dispatch thread.
+ */
+public class ChatView extends JScrollPane {
+
+    private final MessageListModel model;
+    private final JList<Message> list;
+    private Runnable onScrolledToTop;
+
+    /**
+     * A line of plain text (banners, search results) shown without a timestamp
+     */
+    private static final class TextRow extends Message {
+        TextRow(String text) {
+            super(MessageType.SYSTEM, Constants.SYSTEM_SENDER, text);
+        }
+
+        @Override
+        public String toDisplayFormat() {
+            return getContent();
+        }
+    }
+
+    /**
+     * Paints one message as wrapped text
+     * The text and wrapped height of every message are cached per list
+     * width, so laying out the list never re-measures a row it has seen.
+     */
+    private static final class RowRenderer extends JTextArea implements ListCellRenderer<Message> {
+
+        private static final class RowLayout {
+            final String text;
+            final int height;
+
+            RowLayout(String text, int height) {
+                this.text = text;
+                this.height = height;
+            }
+        }
+
+        // Weak keys - layouts go away with the messages evicted from the model
+        private final Map<Message, RowLayout> layouts = new WeakHashMap<>();
+        private int layoutWidth = -1;
+        private RowLayout current;
+        private String shownText;
+
+        RowRenderer() {
+            setFont(new Font("Monospaced", Font.PLAIN, 12));
+            setLineWrap(true);
+            setWrapStyleWord(true);
+            setBorder(BorderFactory.createEmptyBorder(1, 4, 1, 4));
+        }
+
+        @Override
+        public Component getListCellRendererComponent(JList<? extends Message> list, Message message,
+                                                      int index, boolean isSelected, boolean cellHasFocus) {
+            int width = list.getWidth() > 0 ? list.getWidth() : list.getParent().getWidth();
+            if (width != layoutWidth) {
+                layouts.clear(); // Width changed - every row wraps differently now
+                layoutWidth = width;
+            }
+
+            current = layouts.get(message);
+            if (current == null) {
+                String text = message.toDisplayFormat();
+                showText(text);
+                setSize(Math.max(width, 1), Short.MAX_VALUE);
+                current = new RowLayout(text, super.getPreferredSize().height);
+                layouts.put(message, current);
+            }
+
+            setBackground(list.getBackground());
+            switch (message.getType()) {
+                case SYSTEM:
+                case JOIN:
+                case LEAVE:
+                    setForeground(UIUtils.SYSTEM_MSG_COLOR.darker());
+                    break;
+                case ERROR:
+                    setForeground(UIUtils.DANGER_COLOR);
+                    break;
+                default:
+                    setForeground(UIUtils.TEXT_COLOR);
+                    break;
+            }
+            return this;
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(layoutWidth, current != null ? current.height : 16);
+        }
+
+        @Override
+        public void paint(Graphics g) {
+            // Text is only swapped in for rows that are actually painted
+            if (current != null) {
+                showText(current.text);
+            }
+            super.paint(g);
+        }
+
+        private void showText(String text) {
+            if (!text.equals(shownText)) {
+                setText(text);
+                shownText = text;
+            }
+        }
+
+        // Renderers are stamps, not live components - skip the repaint bookkeeping
+        @Override
+        public void revalidate() {
+        }
+
+        @Override
+        public void repaint(long tm, int x, int y, int width, int height) {
+        }
+    }
+
+    /**
+     * Constructor
+     * @param capacity Most messages kept in the view
+     */
+    public ChatView(int capacity) {
+        this.model = new MessageListModel(capacity);
+        this.list = new JList<Message>(model) {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                return true; // Wrap to the pane instead of scrolling sideways
+            }
+        };
+
+        list.setCellRenderer(new RowRenderer());
+        list.setBackground(Color.WHITE);
+        list.setFocusable(false);
+        list.setSelectionModel(new DefaultListSelectionModel() {
+            @Override
+            public void setSelectionInterval(int index0, int index1) {
+                // Read-only view - nothing to select
+            }
+        });
+
+        setViewportView(list);
+        setBorder(BorderFactory.createLineBorder(new Color(189, 195, 199)));
+        setHorizontalScrollBarPolicy(HORIZONTAL_SCROLLBAR_NEVER);
+        getVerticalScrollBar().setUnitIncrement(16);
+
+        // Row heights depend on the width - re-measure when it changes
+        getViewport().addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                list.setFixedCellHeight(1);
+                list.setFixedCellHeight(-1);
+            }
+        });
+
+        // Reaching the top asks for older messages
+        getVerticalScrollBar().addAdjustmentListener(e -> {
+            if (!e.getValueIsAdjusting() && e.getValue() == 0 && onScrolledToTop != null) {
+                onScrolledToTop.run();
+            }
+        });
+    }
+
+    /**
+     * Add one message at the bottom
+     */
+    public void appendMessage(Message message) {
+        appendMessages(Collections.singletonList(message));
+    }
+
+    /**
+     * Add messages at the bottom in one model update
+     * Follows the newest message unless the user has scrolled up to read
+     */
+    public void appendMessages(List<Message> messages) {
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        boolean follow = isAtBottom();
+        model.addAll(messages);
+        if (follow) {
+            scrollToBottom();
+        }
+    }
+
+    /**
+     * Add a line of plain text at the bottom
+     */
+    public void appendText(String text) {
+        appendMessage(textRow(text));
+    }
+
+    /**
+     * Wrap plain text as a row, so it can be batched with messages
+     */
+    public static Message textRow(String text) {
+        return new TextRow(text);
+    }
+
+    /**
+     * Add older messages at the top, keeping the view on what the user was reading
+     * @param messages Oldest first
+     * @return how many fitted (the view never grows past its capacity)
+     */
+    public int prependMessages(List<Message> messages) {
+        int anchor = list.getFirstVisibleIndex();
+        int anchorOffset = 0;
+        if (anchor >= 0) {
+            anchorOffset = getViewport().getViewPosition().y - list.getCellBounds(anchor, anchor).y;
+        }
+
+        int added = model.prependAll(messages);
+        if (added > 0 && anchor >= 0) {
+            int offset = anchorOffset;
+            list.revalidate();
+            SwingUtilities.invokeLater(() -> {
+                Rectangle bounds = list.getCellBounds(anchor + added, anchor + added);
+                if (bounds != null) {
+                    getViewport().setViewPosition(new Point(0, bounds.y + offset));
+                }
+            });
+        }
+        return added;
+    }
+
+    /**
+     * Swap the oldest rows for other messages, e.g. cached rows for the server's copy
+     * @param count Rows to remove from the top
+     * @param messages Put in their place, oldest first
+     */
+    public void replaceOldest(int count, List<Message> messages) {
+        model.removeFirst(count);
+        model.prependAll(messages);
+        list.revalidate();
+    }
+
+    /**
+     * How many more messages can be paged in at the top
+     */
+    public int remainingCapacity() {
+        return model.remainingCapacity();
+    }
+
+    /**
+     * Called whenever the user scrolls to the very top
+     */
+    public void setOnScrolledToTop(Runnable onScrolledToTop) {
+        this.onScrolledToTop = onScrolledToTop;
+    }
+
+    /**
+     * Change the pane's background color
+     */
+    public void setListBackground(Color color) {
+        list.setBackground(color);
+    }
+
+    private boolean isAtBottom() {
+        JScrollBar bar = getVerticalScrollBar();
+        return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - 4;
+    }
+
+    private void scrollToBottom() {
+        list.revalidate();
+        SwingUtilities.invokeLater(() -> {
+            int last = model.getSize() - 1;
+            if (last >= 0) {
+                list.ensureIndexIsVisible(last);
+            }
+        });
+    }
+}
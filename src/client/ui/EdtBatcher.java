@@ -0,0 +1,93 @@
+package client.ui;
+
+import common.Constants;
+
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * EdtBatcher.java
+ * Collects updates from any thread and hands them to the Swing event
+ * dispatch thread (EDT) in batches, at most once per frame
+ *
+ * Posting one invokeLater per incoming message floods the EDT during a
+ * burst: a thousand messages become a thousand tasks, model updates and
+ * scrolls. Here items wait in a lock-free queue and one flush task per
+ * frame (~16 ms) delivers everything that piled up in a single call.
+ */
+public class EdtBatcher<T> {
+
+    private static final long FRAME_NANOS = TimeUnit.MILLISECONDS.toNanos(Constants.UI_FRAME_MS);
+
+    private final ConcurrentLinkedQueue<T> pending;
+    private final AtomicBoolean flushScheduled;
+    private final Consumer<List<T>> sink;
+    private volatile long lastFlush;
+
+    /**
+     * Constructor
+     * @param sink Applies one batch - always called on the EDT, oldest item first
+     */
+    public EdtBatcher(Consumer<List<T>> sink) {
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.flushScheduled = new AtomicBoolean(false);
+        this.sink = sink;
+        this.lastFlush = System.nanoTime() - FRAME_NANOS;
+    }
+
+    /**
+     * Queue an item for the next batch
+     * Safe to call from any thread; never blocks
+     */
+    public void add(T item) {
+        pending.add(item);
+
+        // Only the first item since the last flush schedules one
+        if (flushScheduled.compareAndSet(false, true)) {
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Run the flush right away if a frame has passed since the last one,
+     * otherwise when the current frame ends
+     */
+    private void scheduleFlush() {
+        long waitNanos = lastFlush + FRAME_NANOS - System.nanoTime();
+
+        if (waitNanos <= 0) {
+            SwingUtilities.invokeLater(this::flush);
+        } else {
+            Timer timer = new Timer((int) Math.max(1, TimeUnit.NANOSECONDS.toMillis(waitNanos)), e -> flush());
+            timer.setRepeats(false);
+            timer.start();
+        }
+    }
+
+    /**
+     * Hand everything queued so far to the sink (on the EDT)
+     */
+    private void flush() {
+        lastFlush = System.nanoTime();
+
+        // Clear the flag before draining: anything added from here on
+        // either makes this batch or schedules the next one
+        flushScheduled.set(false);
+
+        List<T> batch = new ArrayList<>();
+        T item;
+        while ((item = pending.poll()) != null) {
+            batch.add(item);
+        }
+
+        if (!batch.isEmpty()) {
+            sink.accept(batch);
+        }
+    }
+}
@@ -196,7 +196,8 @@ public class LoginUI extends JFrame {
                 } else {
                     // Login failed (username taken or error)
                     SwingUtilities.invokeLater(() -> {
-                        showStatus("Login failed. Username may be taken.", true);
+                        String reason = client.getLastError();
+                        showStatus(reason != null ? reason : "Login failed. Username may be taken.", true);
                         connectButton.setEnabled(true);
                         connectButton.setText("Connect");
                         client.disconnect();
@@ -0,0 +1,123 @@
+package client.ui;
+
+import common.Message;
+
+import javax.swing.AbstractListModel;
+import java.util.List;
+
+/**
+ * MessageListModel.java
+ * Bounded list of chat messages for a ChatView
+ *
+ * Messages live in a fixed-size ring buffer, so memory stays flat no
+ * matter how long the window is open. New messages go on the end and
+ * push the oldest ones out; older history can be paged in at the front
+ * while there is room.
+ *
+ * Like every Swing model it must only be used on the event dispatch thread.
+ */
+public class MessageListModel extends AbstractListModel<Message> {
+
+    private final Message[] ring;
+    private int head;    // Index in ring of the oldest message
+    private int size;
+
+    /**
+     * Constructor
+     * @param capacity Most messages kept at once
+     */
+    public MessageListModel(int capacity) {
+        this.ring = new Message[capacity];
+        this.head = 0;
+        this.size = 0;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public Message getElementAt(int index) {
+        return ring[(head + index) % ring.length];
+    }
+
+    /**
+     * Add messages at the end (newest), evicting the oldest if full
+     * Listeners get one removal and one insertion event for the whole batch
+     */
+    public void addAll(List<Message> messages) {
+        // More than fit at once - only the newest ones matter
+        int start = Math.max(0, messages.size() - ring.length);
+        int evicted = 0;
+
+        for (int i = start; i < messages.size(); i++) {
+            if (size == ring.length) {
+                ring[head] = messages.get(i);
+                head = (head + 1) % ring.length;
+                evicted++;
+            } else {
+                ring[(head + size) % ring.length] = messages.get(i);
+                size++;
+            }
+        }
+
+        int added = messages.size() - start;
+        if (evicted > 0) {
+            fireIntervalRemoved(this, 0, evicted - 1);
+        }
+        if (added > 0) {
+            fireIntervalAdded(this, size - added, size - 1);
+        }
+    }
+
+    /**
+     * Add older messages at the front, only as many as there is room for
+     * The newest messages of the page are kept if not all of them fit.
+     * @param messages Oldest first
+     * @return how many were added
+     */
+    public int prependAll(List<Message> messages) {
+        int count = Math.min(messages.size(), remainingCapacity());
+        if (count == 0) {
+            return 0;
+        }
+
+        head = (head - count + ring.length) % ring.length;
+        int from = messages.size() - count;
+        for (int i = 0; i < count; i++) {
+            ring[(head + i) % ring.length] = messages.get(from + i);
+        }
+        size += count;
+
+        fireIntervalAdded(this, 0, count - 1);
+        return count;
+    }
+
+    /**
+     * Drop the oldest messages
+     * @return how many were removed
+     */
+    public int removeFirst(int count) {
+        count = Math.min(count, size);
+        if (count == 0) {
+            return 0;
+        }
+
+        for (int i = 0; i < count; i++) {
+            ring[(head + i) % ring.length] = null;
+        }
+        head = (head + count) % ring.length;
+        size -= count;
+
+        fireIntervalRemoved(this, 0, count - 1);
+        return count;
+    }
+
+    /**
+     * How many more messages fit before the oldest start being evicted
+     */
+    public int remainingCapacity() {
+        return ring.length - size;
+    }
+}
@@ -2,16 +2,25 @@ package client.ui;
 
 import client.Client;
 import client.utils.UIUtils;
+import common.Constants;
+import common.HistoryPage;
 import common.Message;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * PrivateChatUI.java
  * Private chat window for 1-to-1 conversations
  * This is YOUR FEATURE - the private messaging implementation!
+ *
+ * The same window serves private sessions with more than two people;
+ * their "recipient" is the session address "#ID".
  */
 public class PrivateChatUI extends JFrame {
 
@@ -19,11 +28,34 @@ public class PrivateChatUI extends JFrame {
     private String recipientUsername;
     private ChatClientUI parentWindow;
 
-    private JTextArea chatArea;
+    private ChatView chatView;
+    private EdtBatcher<Message> chatUpdates;   // Incoming messages, applied once per frame
     private JTextField messageField;
     private JButton sendButton;
+    private JButton sendFileButton;
     private JButton closeButton;
     private JLabel statusLabel;
+    private TypingNotifier typingNotifier;
+    private Timer typingClear;                 // Clears "is typing" if the server goes quiet
+    private JLabel readLabel;                  // Who has read my latest message
+    private ReadNotifier readNotifier;
+    private long ownLatestSeq;                 // Conversation seq of my latest message
+    private long latestSeq;                    // Highest conversation seq on screen
+    private JLabel titleLabel;
+    private JLabel infoLabel;
+    private boolean showsCachedHistory;        // Opened with earlier messages from the local cache
+    private int cachedRows;                    // Rows from the local cache, replaced by the server's copy
+
+    // Conversation history from the server - newest page on open, older ones on scroll up
+    private boolean historyPending;            // Waiting for the first page; new messages are held back
+    private final List<Message> heldMessages = new ArrayList<>();
+    private long historyCursor;                // Next page ends just before this id
+    private boolean historyMore;               // Is there anything older left to load?
+    private boolean historyLoading;            // A page has been requested and not arrived yet
+
+    // Private session (more than two people)
+    private final boolean session;
+    private List<String> members = new ArrayList<>();
 
     /**
      * Constructor
@@ -35,15 +67,17 @@ public class PrivateChatUI extends JFrame {
         this.client = client;
         this.recipientUsername = recipientUsername;
         this.parentWindow = parentWindow;
+        this.session = recipientUsername.startsWith(Constants.SESSION_ADDRESS_PREFIX);
 
         initializeUI();
+        loadLatestHistory();
     }
 
     /**
      * Initialize UI components
      */
     private void initializeUI() {
-        setTitle("Private Chat with " + recipientUsername);
+        setTitle(session ? "Private Session" : "Private Chat with " + recipientUsername);
         setSize(600, 500);
         setLayout(new BorderLayout(10, 10));
 
@@ -60,6 +94,12 @@ public class PrivateChatUI extends JFrame {
             public void windowClosing(WindowEvent e) {
                 handleClose();
             }
+
+            @Override
+            public void windowActivated(WindowEvent e) {
+                // Whatever is on screen has now been read
+                readNotifier.seen(latestSeq);
+            }
         });
 
         // Position relative to parent window
@@ -80,13 +120,14 @@ public class PrivateChatUI extends JFrame {
         headerPanel.setBackground(UIUtils.PRIVATE_MSG_COLOR);
 
         // Title label
-        JLabel titleLabel = new JLabel("Private Conversation with " + recipientUsername);
+        titleLabel = new JLabel(session ? "Private Session" : "Private Conversation with " + recipientUsername);
         titleLabel.setFont(new Font("Arial", Font.BOLD, 16));
         titleLabel.setForeground(Color.WHITE);
         titleLabel.setIcon(UIManager.getIcon("OptionPane.informationIcon"));
 
         // Info label
-        JLabel infoLabel = new JLabel("Only you and " + recipientUsername + " can see these messages");
+        infoLabel = new JLabel(session ? "Only session members can see these messages"
+                                       : "Only you and " + recipientUsername + " can see these messages");
         infoLabel.setFont(new Font("Arial", Font.ITALIC, 11));
         infoLabel.setForeground(new Color(240, 240, 240));
 
@@ -123,21 +164,38 @@ public class PrivateChatUI extends JFrame {
         chatPanel.setBorder(BorderFactory.createEmptyBorder(5, 10, 5, 10));
 
         // Chat area
-        chatArea = UIUtils.createTextArea(20, 50);
-        chatArea.setBackground(new Color(250, 250, 250));
-        JScrollPane scrollPane = UIUtils.createScrollPane(chatArea);
+        chatView = new ChatView(Constants.CHAT_VIEW_MAX_MESSAGES);
+        chatView.setListBackground(new Color(250, 250, 250));
+        chatUpdates = new EdtBatcher<>(this::showMessages);
+
+        // Earlier messages with this user, from the local cache
+        List<Message> cached = client.loadCachedConversation(recipientUsername);
+        chatView.appendMessages(cached);
+        showsCachedHistory = !cached.isEmpty();
+        cachedRows = cached.size();
+
+        // Reaching the top loads the page before it
+        chatView.setOnScrolledToTop(this::loadOlderHistory);
 
         // Welcome message
-        chatArea.append("PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP\n");
-        chatArea.append("  Private Chat Started\n");
-        chatArea.append("  You can now send private messages to " + recipientUsername + "\n");
-        chatArea.append("PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP\n\n");
+        chatView.appendText("PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP\n" +
+                            "  Private Chat Started\n" +
+                            "  You can now send private messages to " + recipientUsername + "\n" +
+                            "PPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP\n");
 
-        chatPanel.add(scrollPane, BorderLayout.CENTER);
+        chatPanel.add(chatView, BorderLayout.CENTER);
 
         add(chatPanel, BorderLayout.CENTER);
     }
 
+    /**
+     * Check if the window opened with cached messages
+     * The message that opened it is then already among them
+     */
+    public boolean showsCachedHistory() {
+        return showsCachedHistory;
+    }
+
     /**
      * Create message input panel
      */
@@ -149,6 +207,7 @@ public class PrivateChatUI extends JFrame {
         messageField = UIUtils.createTextField("Type your private message...");
         messageField.setFont(new Font("Arial", Font.PLAIN, 14));
         messageField.addActionListener(e -> handleSendMessage());
+        typingNotifier = new TypingNotifier(client, recipientUsername, messageField);
 
         // Button panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT, 5, 0));
@@ -157,12 +216,36 @@ public class PrivateChatUI extends JFrame {
         sendButton.setPreferredSize(new Dimension(180, 35));
         sendButton.addActionListener(e -> handleSendMessage());
 
+        sendFileButton = UIUtils.createButton("Send File", UIUtils.SECONDARY_COLOR);
+        sendFileButton.setPreferredSize(new Dimension(110, 35));
+        sendFileButton.addActionListener(e -> parentWindow.handleSendFile(recipientUsername));
+        sendFileButton.setEnabled(client.hasServerCapability(Constants.CAP_FILES) && !session);
+
+        if (session) {
+            JButton inviteButton = UIUtils.createButton("Invite...", UIUtils.SECONDARY_COLOR);
+            inviteButton.setPreferredSize(new Dimension(100, 35));
+            inviteButton.addActionListener(e -> handleInvite());
+            buttonPanel.add(inviteButton);
+        }
+        buttonPanel.add(sendFileButton);
         buttonPanel.add(sendButton);
 
         // Status label (for typing indicators, etc.)
         statusLabel = new JLabel(" ");
         statusLabel.setFont(new Font("Arial", Font.ITALIC, 10));
         statusLabel.setForeground(UIUtils.SYSTEM_MSG_COLOR);
+        typingClear = new Timer((int) Constants.TYPING_EXPIRE_MS, e -> statusLabel.setText(" "));
+        typingClear.setRepeats(false);
+
+        // Who has read my latest message
+        readLabel = new JLabel(" ");
+        readLabel.setFont(new Font("Arial", Font.ITALIC, 10));
+        readLabel.setForeground(UIUtils.SYSTEM_MSG_COLOR);
+        readNotifier = new ReadNotifier(client, recipientUsername);
+
+        JPanel statusPanel = new JPanel(new BorderLayout());
+        statusPanel.add(statusLabel, BorderLayout.WEST);
+        statusPanel.add(readLabel, BorderLayout.EAST);
 
         // Input container
         JPanel inputContainer = new JPanel(new BorderLayout(5, 5));
@@ -170,7 +253,7 @@ public class PrivateChatUI extends JFrame {
         inputContainer.add(buttonPanel, BorderLayout.EAST);
 
         inputPanel.add(inputContainer, BorderLayout.CENTER);
-        inputPanel.add(statusLabel, BorderLayout.SOUTH);
+        inputPanel.add(statusPanel, BorderLayout.SOUTH);
 
         add(inputPanel, BorderLayout.SOUTH);
     }
@@ -186,9 +269,24 @@ public class PrivateChatUI extends JFrame {
             return;
         }
 
+        // Show temporary status
+        showStatus("Sending...");
+
         // Send private message using Client.sendPrivateMessage()
         // This will go to Server -> ClientHandler -> recipient's Client
-        client.sendPrivateMessage(recipientUsername, message);
+        // It only queues the message, so the window never waits on the network
+        client.sendPrivateMessage(recipientUsername, message).whenComplete((done, error) -> {
+            if (error != null) {
+                showStatus("Message not sent: " + error.getMessage());
+                return;
+            }
+
+            // Clear status after 1 second
+            showStatus("Sent");
+            Timer timer = new Timer(1000, e -> showStatus(" "));
+            timer.setRepeats(false);
+            timer.start();
+        });
 
         // Note: We don't display here because the message will come back
         // from the server and be displayed via displayMessage()
@@ -196,14 +294,6 @@ public class PrivateChatUI extends JFrame {
         // Clear input field
         messageField.setText("");
         messageField.requestFocus();
-
-        // Show temporary status
-        showStatus("Sending...");
-
-        // Clear status after 1 second
-        Timer timer = new Timer(1000, e -> showStatus(" "));
-        timer.setRepeats(false);
-        timer.start();
     }
 
     /**
@@ -211,34 +301,220 @@ public class PrivateChatUI extends JFrame {
      * Called by ChatClientUI when private message is received
      */
     public void displayMessage(Message message) {
-        SwingUtilities.invokeLater(() -> {
-            // Format the message for display
-            String sender = message.getSender();
-            String displayName;
+        // Batched - a burst of messages reaches the window once per frame
+        chatUpdates.add(message);
+    }
 
-            if (sender.equals(client.getUsername())) {
-                displayName = "You";
-            } else {
-                displayName = sender;
-            }
+    /**
+     * Show a batch of messages (runs on the EDT)
+     */
+    private void showMessages(List<Message> messages) {
+        if (historyPending) {
+            heldMessages.addAll(messages); // Shown after the history, in order
+            return;
+        }
 
-            // Append to chat area with special formatting for private messages
-            chatArea.append(message.toDisplayFormat() + "\n");
+        // Add to the chat view in one update (it scrolls to the newest message)
+        chatView.appendMessages(messages);
+        noteShown(messages);
 
-            // Auto-scroll to bottom
-            chatArea.setCaretPosition(chatArea.getDocument().getLength());
+        // If window is minimized, bring to attention
+        if (getState() == Frame.ICONIFIED) {
+            setState(Frame.NORMAL);
+        }
+
+        // Flash window if not focused (platform dependent)
+        if (!isFocused()) {
+            // You could add a notification sound here
+            toFront();
+        }
+    }
 
-            // If window is minimized, bring to attention
-            if (getState() == Frame.ICONIFIED) {
-                setState(Frame.NORMAL);
+    /**
+     * Keep track of messages that reached the screen
+     * My own new message resets its "seen by"; the rest count as read if the window is active
+     */
+    private void noteShown(List<Message> messages) {
+        for (Message message : messages) {
+            long seq = message.getConversationSeq();
+            latestSeq = Math.max(latestSeq, seq);
+            if (seq > ownLatestSeq && client.getUsername().equals(message.getSender())) {
+                ownLatestSeq = seq;
+                readLabel.setText(" ");
             }
+        }
+        if (isActive()) {
+            readNotifier.seen(latestSeq);
+        }
+    }
+
+    /**
+     * Show who has read one of my messages (call on the EDT)
+     * Only the receipt for my latest message is shown
+     */
+    public void showReadReceipt(long seq, Message receipt) {
+        if (seq == ownLatestSeq) {
+            readLabel.setText(ReadNotifier.describe(receipt));
+        }
+    }
+
+    /**
+     * Ask the server for the newest page of this conversation
+     * Messages that arrive meanwhile wait, so they end up below it
+     */
+    private void loadLatestHistory() {
+        if (session || !client.hasServerCapability(Constants.CAP_PRIVATE_HISTORY)) {
+            return; // Sessions keep no history; an older server - the cached messages are all we have
+        }
 
-            // Flash window if not focused (platform dependent)
-            if (!isFocused()) {
-                // You could add a notification sound here
-                toFront();
+        historyPending = true;
+        historyLoading = true;
+        client.requestPrivateHistory(recipientUsername, -1);
+
+        // Stop holding messages back if the answer never comes
+        Timer timeout = new Timer((int) Constants.CLIENT_CACHE_SYNC_TIMEOUT_MS, e -> {
+            if (historyPending) {
+                historyPending = false;
+                historyLoading = false;
+                releaseHeldMessages(new ArrayList<>());
             }
         });
+        timeout.setRepeats(false);
+        timeout.start();
+    }
+
+    /**
+     * Request the page of this conversation before what is shown
+     */
+    private void loadOlderHistory() {
+        if (!historyMore || historyLoading || chatView.remainingCapacity() == 0) {
+            return;
+        }
+        historyLoading = true;
+        client.requestPrivateHistory(recipientUsername, historyCursor);
+    }
+
+    /**
+     * Show a page of this conversation's history (call on the EDT)
+     * The first page takes the place of the cached rows; later ones go above
+     */
+    public void showHistoryPage(HistoryPage page) {
+        List<Message> messages = page.getMessages();
+
+        if (historyPending) {
+            historyPending = false;
+            historyLoading = false;
+
+            chatView.replaceOldest(cachedRows, messages);
+            cachedRows = 0;
+            noteShown(messages);
+            releaseHeldMessages(messages);
+
+            // Who has read my latest message by now?
+            if (ownLatestSeq > 0) {
+                client.requestReadReceipt(recipientUsername, ownLatestSeq);
+            }
+
+            historyCursor = page.getFirst();
+            historyMore = page.hasMore();
+        } else if (historyLoading && page.getBefore() == historyCursor) {
+            historyLoading = false;
+
+            int added = chatView.prependMessages(messages);
+            historyCursor = page.getFirst() + (messages.size() - added);
+            historyMore = page.hasMore() || added < messages.size();
+        }
+    }
+
+    /**
+     * Show the messages held back while the first page was on its way
+     * Any that the page already contains are skipped
+     */
+    private void releaseHeldMessages(List<Message> page) {
+        Map<String, Integer> inPage = new HashMap<>();
+        for (Message message : page) {
+            inPage.merge(sameMessageKey(message), 1, Integer::sum);
+        }
+
+        List<Message> fresh = new ArrayList<>();
+        for (Message message : heldMessages) {
+            String frame = sameMessageKey(message);
+            int count = inPage.getOrDefault(frame, 0);
+            if (count > 0) {
+                inPage.put(frame, count - 1);
+            } else {
+                fresh.add(message);
+            }
+        }
+        heldMessages.clear();
+
+        if (!fresh.isEmpty()) {
+            showMessages(fresh);
+        }
+    }
+
+    /**
+     * Show who else is typing here (call on the EDT)
+     */
+    public void showTyping(List<String> typists) {
+        statusLabel.setText(TypingNotifier.describe(typists));
+        typingClear.restart();
+    }
+
+    /**
+     * Compare messages by what they say, not how they arrived
+     * (a message delivered from the offline queue has no conversation seq)
+     */
+    private static String sameMessageKey(Message message) {
+        return message.getType() + "|" + message.getSender() + "|" + message.getRecipient() + "|" + message.getContent();
+    }
+
+    /**
+     * Show a line about the session (someone joined, left, was invited)
+     */
+    public void showNotice(String text) {
+        chatUpdates.add(ChatView.textRow(text));
+    }
+
+    /**
+     * New member list of a private session (call on the EDT)
+     */
+    public void updateMembers(List<String> members) {
+        this.members = new ArrayList<>(members);
+
+        String names = String.join(", ", members);
+        setTitle("Private Session: " + names);
+        titleLabel.setText("Private Session: " + names);
+    }
+
+    /**
+     * Pick an online user and invite them to this session
+     */
+    private void handleInvite() {
+        List<String> candidates = new ArrayList<>();
+        for (String user : parentWindow.getOnlineUsers()) {
+            if (!members.contains(user) && !user.equals(client.getUsername())) {
+                candidates.add(user);
+            }
+        }
+
+        if (candidates.isEmpty()) {
+            UIUtils.showInfo(this, "Everyone online is already in this session.", "Invite");
+            return;
+        }
+
+        Object choice = JOptionPane.showInputDialog(this, "Invite who?", "Invite",
+            JOptionPane.QUESTION_MESSAGE, null, candidates.toArray(), candidates.get(0));
+        if (choice != null) {
+            client.inviteToSession(getSessionId(), choice.toString());
+        }
+    }
+
+    /**
+     * Session id without the address prefix
+     */
+    private String getSessionId() {
+        return recipientUsername.substring(Constants.SESSION_ADDRESS_PREFIX.length());
     }
 
     /**
@@ -261,6 +537,11 @@ public class PrivateChatUI extends JFrame {
             JOptionPane.QUESTION_MESSAGE);
 
         if (result == JOptionPane.YES_OPTION) {
+            typingNotifier.stop();
+            if (session) {
+                client.leaveSession(getSessionId());
+            }
+
             // Remove from parent's map
             if (parentWindow != null) {
                 parentWindow.removePrivateChat(recipientUsername);
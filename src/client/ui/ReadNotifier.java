@@ -0,0 +1,82 @@
+package client.ui;
+
+import client.Client;
+import common.Constants;
+import common.Message;
+import common.ProtocolFields;
+
+import javax.swing.Timer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ReadNotifier.java
+ * Tells the server how far the user has read in one conversation
+ *
+ * Receipts are cumulative: one "read up to N" covers every message up to
+ * conversation seq N. The window reports what it has shown while the user
+ * is looking at it; the notifier waits RECEIPT_DEBOUNCE_MS after the first
+ * new message and then sends only the highest seq, so a burst of messages
+ * costs one receipt instead of one per message.
+ */
+public class ReadNotifier {
+
+    private final Client client;
+    private final String room;
+    private final Timer debounce;
+
+    private long seen;      // Highest conversation seq the user has seen
+    private long sent;      // Highest one the server has been told about
+
+    /**
+     * Constructor
+     * @param room null for the group chat, a username, or a session address
+     */
+    public ReadNotifier(Client client, String room) {
+        this.client = client;
+        this.room = room;
+
+        this.debounce = new Timer((int) Constants.RECEIPT_DEBOUNCE_MS, e -> send());
+        this.debounce.setRepeats(false);
+    }
+
+    /**
+     * The user has seen everything up to this conversation seq (call on the EDT)
+     */
+    public void seen(long seq) {
+        seen = Math.max(seen, seq);
+        if (seen > sent && !debounce.isRunning()) {
+            debounce.start();
+        }
+    }
+
+    private void send() {
+        if (seen > sent) {
+            sent = seen;
+            client.sendReadReceipt(room, seen);
+        }
+    }
+
+    /**
+     * Text for a receipt: "Seen by bob", "Seen by 12 people"
+     * @return a single space when nobody has read it yet
+     */
+    public static String describe(Message receipt) {
+        Map<String, String> fields = ProtocolFields.decode(receipt.getContent());
+        List<String> readers = ProtocolFields.decodeList(fields.get("readers"));
+        int count;
+        try {
+            count = Integer.parseInt(fields.get("count"));
+        } catch (NumberFormatException e) {
+            count = readers.size();
+        }
+
+        if (count == 0) {
+            return " ";
+        }
+        if (readers.size() == count) {
+            return "Seen by " + String.join(", ", readers);
+        }
+        return "Seen by " + count + " people";
+    }
+}
@@ -0,0 +1,110 @@
+package client.ui;
+
+import client.Client;
+import common.Constants;
+
+import javax.swing.JTextField;
+import javax.swing.Timer;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import java.util.List;
+
+/**
+ * TypingNotifier.java
+ * Watches a message field and tells the server when the user starts and stops typing
+ *
+ * Only edges are sent: "start" on the first keystroke, "stop" once the
+ * field is cleared or has been idle for TYPING_IDLE_MS. While the user
+ * keeps typing, "start" is repeated at most every TYPING_REFRESH_MS so
+ * the server does not forget them. Commands ("/search ...") are not
+ * typing as far as anyone else is concerned.
+ */
+public class TypingNotifier implements DocumentListener {
+
+    private final Client client;
+    private final String room;
+    private final JTextField field;
+    private final Timer idleTimer;
+
+    private boolean typing;
+    private long lastStartSent;
+
+    /**
+     * Start watching a field
+     * @param room null for the group chat, a username, or a session address
+     */
+    public TypingNotifier(Client client, String room, JTextField field) {
+        this.client = client;
+        this.room = room;
+        this.field = field;
+
+        this.idleTimer = new Timer((int) Constants.TYPING_IDLE_MS, e -> stop());
+        this.idleTimer.setRepeats(false);
+
+        field.getDocument().addDocumentListener(this);
+    }
+
+    @Override
+    public void insertUpdate(DocumentEvent e) {
+        changed();
+    }
+
+    @Override
+    public void removeUpdate(DocumentEvent e) {
+        changed();
+    }
+
+    @Override
+    public void changedUpdate(DocumentEvent e) {
+        // Attribute changes only - not typing
+    }
+
+    /**
+     * Send "stop" now if we said we were typing (e.g. the window is closing)
+     */
+    public void stop() {
+        idleTimer.stop();
+        if (typing) {
+            typing = false;
+            client.sendTyping(room, false);
+        }
+    }
+
+    /**
+     * Text for a typing update: "alice is typing...", "alice and bob are typing..."
+     * @return a single space when nobody is typing, so labels keep their height
+     */
+    public static String describe(List<String> typists) {
+        switch (typists.size()) {
+            case 0:
+                return " ";
+            case 1:
+                return typists.get(0) + " is typing...";
+            case 2:
+                return typists.get(0) + " and " + typists.get(1) + " are typing...";
+            case 3:
+                return typists.get(0) + ", " + typists.get(1) + " and " + typists.get(2) + " are typing...";
+            default:
+                return "Several people are typing...";
+        }
+    }
+
+    /**
+     * The field's text changed (runs on the EDT)
+     */
+    private void changed() {
+        String text = field.getText();
+        if (text.isEmpty() || text.startsWith("/")) {
+            stop(); // Sent, cleared, or a command
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        if (!typing || now - lastStartSent >= Constants.TYPING_REFRESH_MS) {
+            typing = true;
+            lastStartSent = now;
+            client.sendTyping(room, true);
+        }
+        idleTimer.restart();
+    }
+}
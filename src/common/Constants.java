@@ -15,20 +15,122 @@ public class Constants {
     public static final int MAX_CLIENTS = 50;             // Maximum number of simultaneous clients
     public static final int SOCKET_TIMEOUT = 0;           // Socket timeout in ms (0 = no timeout)
 
+    // Admission Control (protects the server from reconnect storms after a restart)
+    public static final int ACCEPT_BACKLOG = 1024;             // Pending TCP connections the OS may queue
+    public static final int ACCEPT_RATE_PER_SECOND = 1000;     // Sustained rate of accepted connections
+    public static final int ACCEPT_BURST = 200;                // Connections accepted back-to-back when idle
+    public static final int AUTH_THREADS = 8;                  // Threads that handle logins
+    public static final int MAX_PENDING_AUTH = 512;            // Logins allowed to wait for a thread
+    public static final int AUTH_TIMEOUT_MS = 10000;           // Time a client has to send its login
+    public static final long PRESENCE_BATCH_MS = 1000;         // Joins and leaves are announced together over this window
+    public static final int PRESENCE_DIGEST_THRESHOLD = 5;     // More joins (or leaves) than this are shown as a count
+
+    // Cluster (several server nodes sharing users - see run-cluster.sh)
+    public static final int CLUSTER_PORT = 9888;                // Default port nodes link to each other on
+    public static final String CLUSTER_BIND_ADDRESS = "127.0.0.1"; // Cluster links only from this machine unless --cluster-bind says otherwise
+    public static final int CLUSTER_AUTH_TIMEOUT_MS = 5000;     // Time a new link has to present the shared secret
+    public static final long CLUSTER_RECONNECT_MS = 1000;       // Wait between attempts to reach a peer
+    public static final int CLUSTER_CONNECT_TIMEOUT_MS = 2000;  // Time allowed to open a link
+    public static final int CLUSTER_LINK_QUEUE_SIZE = 65536;    // Frames waiting for a peer before new ones are dropped
+    public static final int CLUSTER_BATCH = 256;                // Most frames written to a peer with one flush
+
+    // Edge Gateways (hold client sockets, pass frames to the core server over a few links)
+    public static final int EDGE_PORT = 7888;                   // Default port the core takes edge links on
+    public static final String EDGE_BIND_ADDRESS = "127.0.0.1"; // Edge links only from this machine unless --edge-bind says otherwise
+    public static final int EDGE_AUTH_TIMEOUT_MS = 5000;        // Time a new link has to present the shared secret
+    public static final int EDGE_LINKS = 2;                     // Links each edge keeps open to the core
+    public static final int EDGE_LINK_QUEUE_SIZE = 65536;       // Frames waiting for a link before senders wait
+    public static final int EDGE_BATCH = 256;                   // Most frames written to a link with one flush
+    public static final int EDGE_CONNECTION_QUEUE_SIZE = 1024;  // Unread frames from one client before the core cuts it off
+    public static final int EDGE_CLIENT_QUEUE_SIZE = 4096;      // Frames an edge holds for a slow client before dropping it
+    public static final long EDGE_RECONNECT_MS = 1000;          // Wait between attempts to reach the core
+    public static final int EDGE_CONNECT_TIMEOUT_MS = 2000;     // Time allowed to open a link to the core
+
+    // Restarts Without Downtime (a new server shares the port, the old one drains into it)
+    public static final String DATA_LOCK_FILE = "src/logs/server.lock"; // Held by the server that owns the data files
+    public static final String HANDOFF_PATH = "src/logs/handoff";      // Sessions waiting for the next server, one file each
+    public static final int DRAIN_BATCH = 100;                  // Sessions handed over at a time while draining
+    public static final long DRAIN_BATCH_INTERVAL_MS = 50;      // Pause between batches, so clients come back spread out
+    public static final long DRAIN_TIMEOUT_MS = 30000;          // Longest a drain waits for connections to leave
+
+    // Server Transports (--transport blocking | nio)
+    public static final String DEFAULT_TRANSPORT = "blocking";  // Thread per client; "nio" reads every socket from one thread
+    public static final int NIO_WORKER_THREADS = 16;            // Threads handling frames read by the NIO selector
+    public static final int NIO_READ_BUFFER_SIZE = 8192;        // Buffer borrowed to read a socket; grows for longer frames
+    public static final int NIO_INBOX_SIZE = 1024;              // Unhandled frames from one client before reading it pauses
+    public static final int NIO_FRAME_BATCH = 64;               // Frames of one client handled before others get a turn
+    public static final int NIO_MAX_FRAME_BYTES = 16 * 1024 * 1024; // Longest frame accepted (file uploads are base64)
+    public static final long NIO_ACCEPT_RETRY_MS = 10;          // Pause before accepting again when accepts are rate limited
+
+    // Pooled I/O Buffers (direct buffers the NIO transport borrows while data is in flight)
+    public static final int BUFFER_POOL_SMALLEST = 4 * 1024;          // Smallest size class; each class doubles the last
+    public static final int BUFFER_POOL_LARGEST = 1024 * 1024;        // Largest pooled size - bigger buffers are not kept
+    public static final int BUFFER_POOL_CLASS_BYTES = 8 * 1024 * 1024; // Free buffers kept per size class, in bytes
+
+    // Server Outbound Lanes (per connection: control > chat > ephemeral)
+    public static final int OUTBOUND_CONTROL_LANE_SIZE = 1024;  // Control frames queued before a client counts as too slow
+    public static final int OUTBOUND_CHAT_LANE_SIZE = 4096;     // Chat frames queued before a client counts as too slow
+    public static final int OUTBOUND_EPHEMERAL_LANE_SIZE = 64;  // Typing updates queued before new ones are dropped
+    public static final int OUTBOUND_EPHEMERAL_BACKLOG = 256;   // Typing updates are dropped while more frames than this wait
+    public static final long OUTBOUND_EPHEMERAL_MAX_AGE_MS = 2000; // Typing updates older than this are dropped, not sent
+    public static final long OUTBOUND_STARVATION_MS = 250;      // A chat frame waiting this long goes before control frames
+    public static final int OUTBOUND_BATCH = 64;                // Most frames written with one flush
+    public static final long OUTBOUND_CLOSE_TIMEOUT_MS = 200;   // How long a closing connection may spend writing what is queued
+
+    // Client Reconnect (exponential backoff with full jitter)
+    public static final long RECONNECT_BASE_DELAY_MS = 500;    // First retry waits up to this long
+    public static final long RECONNECT_MAX_DELAY_MS = 30000;   // Retry delay never grows past this
+
+    // Client Send Queue
+    public static final int CLIENT_SEND_QUEUE_SIZE = 1024;     // Outgoing frames that may wait before sends fail
+    public static final int CLIENT_SEND_BATCH = 64;            // Most frames written with one flush
+    public static final long CLIENT_LEAVE_TIMEOUT_MS = 1000;   // How long logout waits for LEAVE to go out
+
+    // Client Receive Pipeline
+    public static final int CLIENT_PIPELINE_QUEUE_SIZE = 4096; // Frames each receive stage may fall behind by
+
+    // Client Message Cache (recent conversations on disk, shown instantly at startup)
+    public static final String CLIENT_CACHE_PATH = "./chat_cache/";        // One cache file per server and username
+    public static final int CLIENT_CACHE_MAX_BYTES = 2 * 1024 * 1024;      // Size of each cache file (2MB)
+    public static final int CLIENT_CACHE_STARTUP_MESSAGES = 1000;          // Cached messages shown when a window opens
+    public static final int CLIENT_CACHE_SYNC_MAX = 500;                   // Most missed room messages fetched at login
+    public static final long CLIENT_CACHE_SYNC_TIMEOUT_MS = 5000;          // Live messages wait at most this long for the sync
+
+    // Session Resume
+    public static final long RESUME_GRACE_MS = 2 * 60 * 1000; // How long a dropped session can be resumed (2 min)
+    public static final int RESUME_BUFFER_SIZE = 256;          // Recent messages kept per user for replay
+
+    // Heartbeats and Idle Detection
+    public static final long HEARTBEAT_INTERVAL_MS = 15000;    // Server sends PING this often
+    public static final long IDLE_TIMEOUT_MS = 45000;          // Connection with no traffic this long is dead
+    public static final long TIMING_WHEEL_TICK_MS = 100;       // Resolution of connection timeouts
+    public static final int TIMING_WHEEL_SIZE = 512;           // Buckets in the timing wheel
+
+    // Handshake (HELLO / ACCEPT)
+    public static final int PROTOCOL_VERSION = 3;         // Bumped on incompatible protocol changes
+    public static final String CAP_FILES = "files";       // Content-addressed file sharing
+    public static final String CAP_RESUME = "resume";     // Session resume with replay
+    public static final String CAP_SEARCH = "search";     // Full-text search over chat history
+    public static final String CAP_HISTORY = "history";   // Paged room history for scrollback
+    public static final String CAP_PRIVATE_HISTORY = "private-history"; // Paged private conversation history
+    public static final String CAP_RECEIPTS = "receipts";  // Cumulative read receipts
+
     // Message Protocol Delimiters
     public static final String MESSAGE_DELIMITER = "|";   // Separator for message parts
     public static final String MESSAGE_END = "\n";        // End of message marker
 
-    // Message Format: TYPE|SENDER|RECIPIENT|CONTENT
+    // Message Format: TYPE|SENDER|RECIPIENT|SEQ|CONTENT
     public static final int MSG_TYPE_INDEX = 0;           // Index of message type in split array
     public static final int MSG_SENDER_INDEX = 1;         // Index of sender in split array
     public static final int MSG_RECIPIENT_INDEX = 2;      // Index of recipient in split array
-    public static final int MSG_CONTENT_INDEX = 3;        // Index of content in split array
+    public static final int MSG_SEQ_INDEX = 3;            // Index of per-user sequence number (empty if none)
+    public static final int MSG_CONTENT_INDEX = 4;        // Index of content in split array
 
     // Commands
     public static final String CMD_EXIT = "/exit";        // Command to disconnect from server
     public static final String CMD_LIST_USERS = "/users"; // Command to list online users
     public static final String CMD_PRIVATE = "/private";  // Command prefix for private messages
+    public static final String CMD_SEARCH = "/search";    // Command prefix for searching chat history
 
     // System Messages
     public static final String SYSTEM_SENDER = "SERVER";  // Sender name for system messages
@@ -38,16 +140,56 @@ public class Constants {
     // File Transfer Settings
     public static final int FILE_BUFFER_SIZE = 4096;      // Buffer size for file transfer (4KB)
     public static final String FILE_STORAGE_PATH = "./received_files/"; // Path to store received files
+    public static final long MAX_FILE_SIZE = 5 * 1024 * 1024;            // Largest file a client may send (5MB)
+    public static final String FILE_STORE_PATH = "src/logs/files";       // Server-side content-addressed blob store
+    public static final long FILE_STORE_MAX_BYTES = 256L * 1024 * 1024; // Blob store size cap before LRU eviction (256MB)
+
+    // Offline Message Queues (private messages to users who are away)
+    public static final String OFFLINE_QUEUE_PATH = "src/logs/offline";     // One queue file per user
+    public static final int OFFLINE_QUEUE_MAX_BYTES = 256 * 1024;           // Size cap for each user's queue (256KB)
+    public static final long OFFLINE_MESSAGE_TTL_MS = 7L * 24 * 60 * 60 * 1000; // Queued messages expire after 7 days
+    public static final int OFFLINE_QUEUE_OPEN_MAX = 1024;                  // Queue files kept mapped at once
 
     // UI Settings
     public static final int WINDOW_WIDTH = 600;           // Default window width
     public static final int WINDOW_HEIGHT = 500;          // Default window height
     public static final int CHAT_AREA_ROWS = 20;          // Rows in chat text area
     public static final int CHAT_AREA_COLS = 50;          // Columns in chat text area
+    public static final int CHAT_VIEW_MAX_MESSAGES = 2000; // Messages a chat pane keeps before dropping the oldest
+    public static final long UI_FRAME_MS = 16;            // Incoming messages reach the screen at most once per frame
 
     // Chat History
     public static final String CHAT_HISTORY_FILE = "src/logs/chat_history.txt";
     public static final boolean ENABLE_LOGGING = true;    // Enable/disable chat logging
+    public static final long CHAT_HISTORY_FLUSH_MS = 200;  // Logged lines reach the file within this
+
+    // History Search
+    public static final int SEARCH_PAGE_SIZE = 20;        // Hits per page of search results
+
+    // Room History (scrollback)
+    public static final String HISTORY_STORE_PATH = "src/logs/history"; // Indexed store of room messages
+    public static final int HISTORY_PAGE_SIZE = 50;       // Most messages in one history page
+    public static final int HISTORY_CACHE_PAGES = 20;     // History pages a client keeps cached
+
+    // Private Sessions (private chats with more than two people)
+    public static final String SESSION_ADDRESS_PREFIX = "#";  // Recipient "#ID" means private session ID
+    public static final int PRIVATE_SESSION_MAX_MEMBERS = 32; // Members plus open invitations per session
+
+    // Private Conversation History
+    public static final String PRIVATE_HISTORY_PATH = "src/logs/private"; // One indexed store per pair of users
+    public static final int PRIVATE_HISTORY_OPEN_PAIRS = 64;  // Conversations kept open at once
+    public static final long PRIVATE_HISTORY_FLUSH_MS = 200;  // Sent private messages reach the disk within this
+
+    // Typing Indicators
+    public static final long TYPING_REFRESH_MS = 3000;        // A client repeats "start" at most this often while typing
+    public static final long TYPING_IDLE_MS = 4000;           // A client sends "stop" after this long without a keystroke
+    public static final long TYPING_EXPIRE_MS = 6000;         // A typist nobody has heard from this long is forgotten
+    public static final long TYPING_INTERVAL_MS = 1000;       // Each room gets at most one typing update this often
+
+    // Read Receipts
+    public static final long RECEIPT_DEBOUNCE_MS = 1000;      // A client sends at most one "read up to" per conversation this often
+    public static final long RECEIPT_INTERVAL_MS = 2000;      // Senders hear about new readers at most this often
+    public static final int RECEIPT_MAX_NAMES = 10;           // Readers named in a receipt; above this only the count
 
     // Private constructor to prevent instantiation
     private Constants() {
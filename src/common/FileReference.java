@@ -0,0 +1,113 @@
+package common;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * FileReference.java
+ * Describes a file by its content hash instead of carrying its bytes
+ * FILE messages carry one of these as their content
+ *
+ * Format: HASH:SIZE:NAME
+ * Example: 9f86d081...0f00a08:2048:notes.txt
+ * The name is last so it may itself contain ':' characters
+ */
+public class FileReference {
+
+    private final String hash;     // SHA-256 of the file content (lowercase hex)
+    private final long size;       // File size in bytes
+    private final String name;     // Original file name (display only)
+
+    /**
+     * Constructor
+     */
+    public FileReference(String hash, long size, String name) {
+        this.hash = hash;
+        this.size = size;
+        this.name = name;
+    }
+
+    /**
+     * Convert to message content format
+     */
+    public String toContent() {
+        return hash + ":" + size + ":" + name;
+    }
+
+    /**
+     * Parse message content into a FileReference
+     * @return null if the content is not a valid reference
+     */
+    public static FileReference fromContent(String content) {
+        if (content == null) {
+            return null;
+        }
+
+        String[] parts = content.split(":", 3);
+        if (parts.length < 3 || !isValidHash(parts[0]) || parts[2].isEmpty()) {
+            return null;
+        }
+
+        try {
+            long size = Long.parseLong(parts[1]);
+            if (size < 0) {
+                return null;
+            }
+            return new FileReference(parts[0], size, parts[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Check that a string looks like a SHA-256 hex digest
+     * Also protects the server's file store from path tricks like "../"
+     */
+    public static boolean isValidHash(String hash) {
+        return hash != null && hash.matches("[0-9a-f]{64}");
+    }
+
+    /**
+     * Compute the SHA-256 hash of file content as lowercase hex
+     * Client and server must agree on this, so both use this method
+     */
+    public static String hashOf(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hashBytes = digest.digest(data);
+
+            StringBuilder hex = new StringBuilder(hashBytes.length * 2);
+            for (byte b : hashBytes) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    /**
+     * Human readable size, e.g. "12.4 KB"
+     */
+    public String getDisplaySize() {
+        if (size < 1024) {
+            return size + " B";
+        } else if (size < 1024 * 1024) {
+            return String.format("%.1f KB", size / 1024.0);
+        }
+        return String.format("%.1f MB", size / (1024.0 * 1024.0));
+    }
+
+    public String getHash() {
+        return hash;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getName() {
+        return name;
+    }
+}
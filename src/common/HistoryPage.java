@@ -0,0 +1,116 @@
+package common;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HistoryPage.java
+ * One page of older room messages (content of a HISTORY_PAGE message)
+ *
+ * Room history entries have ids 0, 1, 2... in the order they were logged.
+ * A page holds the entries just before a given id, oldest first, and
+ * tells the client which id to ask for next when scrolling further back.
+ * A page of a private conversation names the other user in "with"; its
+ * ids count that conversation's messages only.
+ *
+ * Fields: before=ID;first=ID;more=true;with=USER;messages=TIME%3AFRAME,TIME%3AFRAME
+ */
+public class HistoryPage {
+
+    private final long before;           // The id that was asked for (exclusive)
+    private final long first;            // Id of the oldest message in this page
+    private final boolean more;          // Are there even older messages?
+    private final String with;           // Other user of a private conversation, null for the room
+    private final List<Message> messages;
+
+    /**
+     * Constructor for a page of room history
+     */
+    public HistoryPage(long before, long first, boolean more, List<Message> messages) {
+        this(before, first, more, null, messages);
+    }
+
+    /**
+     * Constructor
+     * @param with Other user of a private conversation, or null for the room
+     */
+    public HistoryPage(long before, long first, boolean more, String with, List<Message> messages) {
+        this.before = before;
+        this.first = first;
+        this.more = more;
+        this.with = with;
+        this.messages = messages;
+    }
+
+    /**
+     * Encode as message content
+     * Each message travels as its original timestamp plus protocol frame
+     */
+    public String toContent() {
+        List<String> entries = new ArrayList<>();
+        for (Message message : messages) {
+            entries.add(Message.toEpochMillis(message.getTimestamp()) + ":" + message.toProtocol(0));
+        }
+
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("before", String.valueOf(before));
+        fields.put("first", String.valueOf(first));
+        fields.put("more", String.valueOf(more));
+        fields.put("with", with);
+        fields.put("messages", ProtocolFields.encodeList(entries));
+        return ProtocolFields.encode(fields);
+    }
+
+    /**
+     * Decode HISTORY_PAGE message content
+     * @return null if the content is malformed
+     */
+    public static HistoryPage fromContent(String content) {
+        Map<String, String> fields = ProtocolFields.decode(content);
+
+        try {
+            List<Message> messages = new ArrayList<>();
+            for (String entry : ProtocolFields.decodeList(fields.get("messages"))) {
+                int colon = entry.indexOf(':');
+                Message message = Message.fromProtocol(entry.substring(colon + 1));
+                if (message != null) {
+                    message.setTimestamp(Message.fromEpochMillis(Long.parseLong(entry.substring(0, colon))));
+                    messages.add(message);
+                }
+            }
+
+            return new HistoryPage(Long.parseLong(fields.get("before")),
+                                   Long.parseLong(fields.get("first")),
+                                   Boolean.parseBoolean(fields.get("more")),
+                                   fields.get("with"),
+                                   messages);
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            return null;
+        }
+    }
+
+    public long getBefore() {
+        return before;
+    }
+
+    public long getFirst() {
+        return first;
+    }
+
+    public boolean hasMore() {
+        return more;
+    }
+
+    /**
+     * Other user of a private conversation, null for a page of room history
+     */
+    public String getWith() {
+        return with;
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+}
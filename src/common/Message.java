@@ -1,6 +1,8 @@
 package common;
 
+import java.time.Instant;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 
 /**
@@ -15,6 +17,8 @@ public class Message {
     private String recipient;          // Username of recipient (null for broadcast)
     private String content;            // Actual message content
     private LocalDateTime timestamp;   // When message was created
+    private long seq;                  // Per-user delivery sequence number (0 = not sequenced)
+    private long conversationSeq;      // Position in its conversation, from 1 (0 = none) - for read receipts
 
     /**
      * Full constructor with all fields
@@ -82,16 +86,48 @@ public class Message {
         this.timestamp = timestamp;
     }
 
+    public long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(long seq) {
+        this.seq = seq;
+    }
+
+    public long getConversationSeq() {
+        return conversationSeq;
+    }
+
+    public void setConversationSeq(long conversationSeq) {
+        this.conversationSeq = conversationSeq;
+    }
+
     /**
      * Convert message to protocol format for network transmission
-     * Format: TYPE|SENDER|RECIPIENT|CONTENT
-     * Example: PRIVATE|Alice|Bob|Hey there!
+     * Format: TYPE|SENDER|RECIPIENT|SEQ|CONTENT
+     * Example: PRIVATE|Alice|Bob|42|Hey there!
+     * A message with a place in its conversation carries it after the
+     * sequence number: PRIVATE|Alice|Bob|42:7|Hey there!
      */
     public String toProtocol() {
+        return toProtocol(seq);
+    }
+
+    /**
+     * Convert to protocol format with a specific sequence number
+     * The server uses this to stamp each recipient's own sequence number
+     * on a shared message without copying it
+     */
+    public String toProtocol(long seq) {
         String recipientStr = (recipient != null) ? recipient : "";
+        String seqStr = (seq > 0) ? String.valueOf(seq) : "";
+        if (conversationSeq > 0) {
+            seqStr += ":" + conversationSeq;
+        }
         return type.name() + Constants.MESSAGE_DELIMITER +
                sender + Constants.MESSAGE_DELIMITER +
                recipientStr + Constants.MESSAGE_DELIMITER +
+               seqStr + Constants.MESSAGE_DELIMITER +
                content;
     }
 
@@ -101,7 +137,9 @@ public class Message {
      */
     public static Message fromProtocol(String protocolString) {
         try {
-            String[] parts = protocolString.split("\\" + Constants.MESSAGE_DELIMITER);
+            // Limit the split so content may itself contain the delimiter
+            String[] parts = protocolString.split("\\" + Constants.MESSAGE_DELIMITER,
+                                                  Constants.MSG_CONTENT_INDEX + 1);
 
             if (parts.length < 3) {
                 return null; // Invalid format
@@ -113,11 +151,22 @@ public class Message {
                               !parts[Constants.MSG_RECIPIENT_INDEX].isEmpty()
                               ? parts[Constants.MSG_RECIPIENT_INDEX]
                               : null;
+            String seqStr = parts.length > Constants.MSG_SEQ_INDEX ? parts[Constants.MSG_SEQ_INDEX] : "";
+            long conversationSeq = 0;
+            int colon = seqStr.indexOf(':');
+            if (colon >= 0) {
+                conversationSeq = Long.parseLong(seqStr.substring(colon + 1));
+                seqStr = seqStr.substring(0, colon);
+            }
+            long seq = !seqStr.isEmpty() ? Long.parseLong(seqStr) : 0;
             String content = parts.length > Constants.MSG_CONTENT_INDEX
                             ? parts[Constants.MSG_CONTENT_INDEX]
                             : "";
 
-            return new Message(type, sender, recipient, content);
+            Message message = new Message(type, sender, recipient, content);
+            message.setSeq(seq);
+            message.setConversationSeq(conversationSeq);
+            return message;
         } catch (Exception e) {
             System.err.println("Error parsing message: " + e.getMessage());
             return null;
@@ -147,6 +196,13 @@ public class Message {
                 return "[" + timeStr + "] >>> " + content;
             case ERROR:
                 return "[" + timeStr + "] ERROR: " + content;
+            case FILE:
+                FileReference file = FileReference.fromContent(content);
+                String fileStr = (file != null)
+                                 ? file.getName() + " (" + file.getDisplaySize() + ")"
+                                 : content;
+                String privateStr = (recipient != null) ? " (private)" : "";
+                return "[" + timeStr + "] " + sender + privateStr + " shared a file: " + fileStr;
             default:
                 return "[" + timeStr + "] " + sender + ": " + content;
         }
@@ -166,6 +222,15 @@ public class Message {
         return type == MessageType.SYSTEM;
     }
 
+    /**
+     * Check if this message belongs to the public room history
+     * (broadcasts, files shared with everyone, and system notices)
+     */
+    public boolean isRoomMessage() {
+        return recipient == null &&
+               (type == MessageType.BROADCAST || type == MessageType.FILE || type == MessageType.SYSTEM);
+    }
+
     /**
      * Check if this message is for a specific user
      */
@@ -173,6 +238,21 @@ public class Message {
         return recipient != null && recipient.equals(username);
     }
 
+    /**
+     * Convert a timestamp to epoch millis (local time zone)
+     * Timestamps travel between client and server in this form
+     */
+    public static long toEpochMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    /**
+     * Convert epoch millis back to a local timestamp
+     */
+    public static LocalDateTime fromEpochMillis(long millis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneId.systemDefault());
+    }
+
     @Override
     public String toString() {
         return "Message{" +
@@ -180,6 +260,8 @@ public class Message {
                 ", sender='" + sender + '\'' +
                 ", recipient='" + recipient + '\'' +
                 ", content='" + content + '\'' +
+                ", seq=" + seq +
+                ", conversationSeq=" + conversationSeq +
                 ", timestamp=" + timestamp +
                 '}';
     }
@@ -28,16 +28,72 @@ public enum MessageType {
 
     /**
      * FILE - File transfer message
+     * Carries a FileReference (HASH:SIZE:NAME), never the file bytes
      * Example: Alice sends document.pdf to Bob
      */
     FILE,
 
+    /**
+     * FILE_UPLOAD - File content upload
+     * Server -> client: "I don't have HASH yet, please upload it"
+     * Client -> server: HASH:BASE64_DATA
+     */
+    FILE_UPLOAD,
+
+    /**
+     * FILE_FETCH - Client asks the server for a file's content by hash
+     * Example: Bob clicks "download" on Alice's document.pdf
+     */
+    FILE_FETCH,
+
+    /**
+     * FILE_DATA - Server sends file content: HASH:BASE64_DATA
+     * Example: Response to FILE_FETCH
+     */
+    FILE_DATA,
+
     /**
      * USER_LIST - Server sends list of online users
      * Example: Response to /users command
      */
     USER_LIST,
 
+    /**
+     * PRESENCE - Who came online or went offline since the last one
+     * Sent at most once per PRESENCE_BATCH_MS; content holds fields:
+     * joined (list), left (list) and online (count)
+     * Example: "joined=alice,bob;left=carol;online=41"
+     */
+    PRESENCE,
+
+    /**
+     * SEARCH - Client searches the chat history
+     * Content holds fields: q (words), and optionally from, type,
+     * since/until (epoch millis) and page
+     * Example: "/search from:alice link"
+     */
+    SEARCH,
+
+    /**
+     * SEARCH_RESULTS - One page of search hits, newest first
+     * Content holds fields: q, page, pages, total, results (list of hits)
+     */
+    SEARCH_RESULTS,
+
+    /**
+     * HISTORY - Client asks for older room messages
+     * Content holds fields: before (history id) or beforeTime (epoch millis),
+     * and optionally limit
+     * Example: User scrolls to the top of the chat
+     */
+    HISTORY,
+
+    /**
+     * HISTORY_PAGE - Older room messages, oldest first (see HistoryPage)
+     * Example: Response to HISTORY
+     */
+    HISTORY_PAGE,
+
     /**
      * JOIN - User joining the chat
      * Example: When client first connects
@@ -50,6 +106,31 @@ public enum MessageType {
      */
     LEAVE,
 
+    /**
+     * HELLO - First frame a client sends: login in one round trip
+     * Sender is the username; content holds fields: version, caps,
+     * and optionally token + seq to resume a dropped session
+     */
+    HELLO,
+
+    /**
+     * ACCEPT - Server's answer to HELLO when login succeeds
+     * Content holds fields: welcome, users (snapshot), caps, token, resumed
+     */
+    ACCEPT,
+
+    /**
+     * PING - Heartbeat; content is an opaque timestamp to echo back
+     * Example: Server checks every 15s that the client is still there
+     */
+    PING,
+
+    /**
+     * PONG - Reply to PING, echoing its content
+     * Lets the sender measure the round-trip time
+     */
+    PONG,
+
     /**
      * ERROR - Error message from server
      * Example: "Username already taken"
@@ -66,7 +147,24 @@ public enum MessageType {
      * PRIVATE_ACCEPT - Acceptance of private chat request
      * Example: Bob accepts Alice's private chat request
      */
-    PRIVATE_ACCEPT;
+    PRIVATE_ACCEPT,
+
+    /**
+     * TYPING - Typing indicator, never stored or replayed
+     * Client -> server: recipient is the room (none, a user or "#ID"), content "start" or "stop"
+     * Server -> client: content lists everyone typing there, at most once per interval
+     * Example: "alice and bob are typing..."
+     */
+    TYPING,
+
+    /**
+     * READ - Cumulative read receipt; recipient is the conversation (none, a user or "#ID")
+     * Client -> server: upTo (read everything up to this conversation seq),
+     *                   or seq (ask who has read that message)
+     * Server -> client: seq, count and readers (names, left out when there are many)
+     * Example: "Seen by bob and carol"
+     */
+    READ;
 
     /**
      * Convert string to MessageType
@@ -83,9 +181,10 @@ public enum MessageType {
 
     /**
      * Check if this message type requires a recipient
-     * PRIVATE and FILE need a specific recipient
+     * PRIVATE needs a specific recipient
+     * FILE does not: without a recipient it is shared with everyone
      */
     public boolean requiresRecipient() {
-        return this == PRIVATE || this == FILE || this == PRIVATE_REQUEST;
+        return this == PRIVATE || this == PRIVATE_REQUEST;
     }
 }
@@ -0,0 +1,114 @@
+package common;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * ProtocolFields.java
+ * Encodes structured message content (key/value fields and lists)
+ * so clients never have to parse human-readable text
+ *
+ * Fields: key=value;key=value   (values are URL-encoded)
+ * Lists:  item,item,item        (items are URL-encoded)
+ * Example: version=1;caps=files%2Cresume;token=3f2a...
+ */
+public class ProtocolFields {
+
+    private static final String CHARSET = "UTF-8";
+
+    // Private constructor to prevent instantiation
+    private ProtocolFields() {
+        throw new AssertionError("Cannot instantiate ProtocolFields class");
+    }
+
+    /**
+     * Encode key/value fields into message content
+     * Null values are left out
+     */
+    public static String encode(Map<String, String> fields) {
+        StringBuilder content = new StringBuilder();
+
+        for (Map.Entry<String, String> field : fields.entrySet()) {
+            if (field.getValue() == null) {
+                continue;
+            }
+            if (content.length() > 0) {
+                content.append(';');
+            }
+            content.append(field.getKey()).append('=').append(escape(field.getValue()));
+        }
+        return content.toString();
+    }
+
+    /**
+     * Decode message content into key/value fields
+     * Malformed parts are skipped
+     */
+    public static Map<String, String> decode(String content) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        if (content == null || content.isEmpty()) {
+            return fields;
+        }
+
+        for (String part : content.split(";")) {
+            int equals = part.indexOf('=');
+            if (equals > 0) {
+                fields.put(part.substring(0, equals), unescape(part.substring(equals + 1)));
+            }
+        }
+        return fields;
+    }
+
+    /**
+     * Encode a list of values, e.g. usernames or capabilities
+     */
+    public static String encodeList(List<String> items) {
+        StringBuilder content = new StringBuilder();
+
+        for (String item : items) {
+            if (content.length() > 0) {
+                content.append(',');
+            }
+            content.append(escape(item));
+        }
+        return content.toString();
+    }
+
+    /**
+     * Decode a list encoded with encodeList()
+     * @return empty list for null or empty content
+     */
+    public static List<String> decodeList(String content) {
+        List<String> items = new ArrayList<>();
+        if (content == null || content.isEmpty()) {
+            return items;
+        }
+
+        for (String item : content.split(",")) {
+            items.add(unescape(item));
+        }
+        return items;
+    }
+
+    private static String escape(String value) {
+        try {
+            return URLEncoder.encode(value, CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            // Every Java platform is required to support UTF-8
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String unescape(String value) {
+        try {
+            return URLDecoder.decode(value, CHARSET);
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+}
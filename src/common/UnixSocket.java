@@ -0,0 +1,254 @@
+package common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * UnixSocket.java
+ * A connection over a Unix domain socket (a file like /tmp/chat.sock)
+ * instead of TCP
+ *
+ * Bots and gateways running on the same machine as the server skip the
+ * whole TCP/IP loopback path this way. The class passes for a normal
+ * Socket, so the code that reads and writes the chat protocol does not
+ * change: streams, read timeouts and close work as usual (other socket
+ * options do not apply and are not supported).
+ *
+ * Unix domain sockets arrived in Java 16; this project builds for Java 8,
+ * so the Java 16 parts are looked up when first used.
+ */
+public class UnixSocket extends Socket {
+
+    // Host prefix that selects this transport, e.g. "unix:/tmp/chat.sock"
+    public static final String SCHEME = "unix:";
+
+    private final SocketChannel channel;
+    private final String path;
+    private final Selector readSelector;
+    private final Selector writeSelector;
+    private final InputStream in;
+    private final OutputStream out;
+    private volatile int timeout;
+
+    private UnixSocket(SocketChannel channel, String path) throws IOException {
+        this.channel = channel;
+        this.path = path;
+
+        // Non-blocking underneath, so reads can time out like a TCP socket's
+        channel.configureBlocking(false);
+        this.readSelector = Selector.open();
+        this.writeSelector = Selector.open();
+        channel.register(readSelector, SelectionKey.OP_READ);
+        channel.register(writeSelector, SelectionKey.OP_WRITE);
+
+        this.in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                return readSome(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+        this.out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                writeAll(ByteBuffer.wrap(bytes, offset, length));
+            }
+        };
+    }
+
+    /**
+     * Connect to a server listening on a socket file
+     */
+    public static UnixSocket connect(String path) throws IOException {
+        SocketChannel channel = (SocketChannel) open(SocketChannel.class);
+        try {
+            channel.connect(address(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new UnixSocket(channel, path);
+    }
+
+    /**
+     * Listen on a socket file
+     * A file left behind by an earlier run is replaced
+     */
+    public static ServerSocketChannel listen(String path, int backlog) throws IOException {
+        Files.deleteIfExists(Paths.get(path));
+        ServerSocketChannel server = (ServerSocketChannel) open(ServerSocketChannel.class);
+        server.bind(address(path), backlog);
+        return server;
+    }
+
+    /**
+     * Wait for the next client on a socket file
+     */
+    public static UnixSocket accept(ServerSocketChannel server, String path) throws IOException {
+        return new UnixSocket(server.accept(), path);
+    }
+
+    /**
+     * Check if this Java can do Unix domain sockets
+     */
+    public static boolean isSupported() {
+        try {
+            StandardProtocolFamily.valueOf("UNIX");
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static SocketAddress address(String path) throws IOException {
+        try {
+            return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress")
+                                        .getMethod("of", String.class).invoke(null, path);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or newer");
+        }
+    }
+
+    /**
+     * SocketChannel.open(UNIX) or ServerSocketChannel.open(UNIX)
+     */
+    private static Object open(Class<?> type) throws IOException {
+        if (!isSupported()) {
+            throw new IOException("Unix domain sockets need Java 16 or newer");
+        }
+        try {
+            return type.getMethod("open", ProtocolFamily.class)
+                       .invoke(null, StandardProtocolFamily.valueOf("UNIX"));
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("Unix domain sockets need Java 16 or newer");
+        }
+    }
+
+    /**
+     * Read what is there, waiting up to the read timeout for something to arrive
+     * @return bytes read, or -1 at the end of the stream
+     */
+    private int readSome(ByteBuffer buffer) throws IOException {
+        long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout : 0;
+        synchronized (readSelector) {
+            while (true) {
+                int read = channel.read(buffer);
+                if (read != 0 || !buffer.hasRemaining()) {
+                    return read;
+                }
+
+                long wait = 0;
+                if (deadline > 0) {
+                    wait = deadline - System.currentTimeMillis();
+                    if (wait <= 0) {
+                        throw new SocketTimeoutException("Read timed out");
+                    }
+                }
+                readSelector.select(wait);
+                readSelector.selectedKeys().clear();
+            }
+        }
+    }
+
+    private void writeAll(ByteBuffer buffer) throws IOException {
+        synchronized (writeSelector) {
+            while (buffer.hasRemaining()) {
+                if (channel.write(buffer) == 0) {
+                    // Reader on the other side is behind - wait for room
+                    writeSelector.select();
+                    writeSelector.selectedKeys().clear();
+                }
+            }
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if (isClosed()) {
+            throw new IOException("Socket is closed");
+        }
+        return out;
+    }
+
+    @Override
+    public void setSoTimeout(int millis) {
+        timeout = millis;
+    }
+
+    @Override
+    public int getSoTimeout() {
+        return timeout;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+        // Wake threads waiting in read or write; they see the closed channel
+        readSelector.wakeup();
+        writeSelector.wakeup();
+        readSelector.close();
+        writeSelector.close();
+        super.close();
+    }
+
+    @Override
+    public boolean isClosed() {
+        return !channel.isOpen();
+    }
+
+    @Override
+    public boolean isConnected() {
+        return channel.isConnected();
+    }
+
+    /**
+     * Always this machine - logs show the loopback address
+     */
+    @Override
+    public InetAddress getInetAddress() {
+        return InetAddress.getLoopbackAddress();
+    }
+
+    @Override
+    public String toString() {
+        return "UnixSocket[" + path + "]";
+    }
+}
@@ -0,0 +1,77 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * AdminConsole.java
+ * Commands typed into the server's terminal while it runs
+ *
+ *   status  - users, open connections and pooled I/O buffers
+ *   drain   - hand every session to the server replacing this one, then exit
+ *   stop    - disconnect everyone and exit
+ *   help    - list the commands
+ *
+ * Reads standard input on its own thread; a server started without a
+ * terminal (input closed) simply has no console.
+ */
+public class AdminConsole {
+
+    private final Server server;
+
+    /**
+     * Constructor
+     */
+    public AdminConsole(Server server) {
+        this.server = server;
+    }
+
+    /**
+     * Start reading commands in the background
+     */
+    public void start() {
+        Thread thread = new Thread(this::readCommands, "admin-console");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void readCommands() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(System.in));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String command = line.trim().toLowerCase();
+                switch (command) {
+                    case "":
+                        break;
+
+                    case "status":
+                        System.out.println("Users: " + server.getLocalUsers().size() +
+                                           ", open connections: " + server.getConnectionCount() +
+                                           ", I/O buffers borrowed: " + BufferPool.shared().getInUse() +
+                                           " (" + BufferPool.shared().getAllocatedBytes() / 1024 + " KB pooled)");
+                        break;
+
+                    case "drain":
+                        server.drain();
+                        return;
+
+                    case "stop":
+                        server.stop();
+                        return;
+
+                    case "help":
+                        System.out.println("Commands: status, drain, stop, help");
+                        break;
+
+                    default:
+                        System.out.println("Unknown command: " + command + " (try help)");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Admin console closed: " + e.getMessage());
+        }
+    }
+}
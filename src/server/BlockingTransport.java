@@ -0,0 +1,57 @@
+package server;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * BlockingTransport.java
+ * The classic transport: every client gets a SocketConnection, read by
+ * a thread of its own once logged in
+ *
+ * Simple and fast for a few hundred clients; each one costs a thread.
+ */
+public class BlockingTransport implements Transport {
+
+    private final ServerSocket serverSocket;
+    private final TokenBucket acceptLimiter;
+    private final Server server;
+
+    /**
+     * Constructor
+     * @param serverSocket Bound listening socket
+     * @param acceptLimiter Paces accepts - extra connections wait in the OS backlog
+     */
+    public BlockingTransport(ServerSocket serverSocket, TokenBucket acceptLimiter, Server server) {
+        this.serverSocket = serverSocket;
+        this.acceptLimiter = acceptLimiter;
+        this.server = server;
+    }
+
+    @Override
+    public void serve() {
+        while (!serverSocket.isClosed()) {
+            try {
+                // Pace accepts - extra connections wait in the OS backlog
+                acceptLimiter.acquire();
+
+                // Wait for a client to connect (blocking call)
+                Socket clientSocket = serverSocket.accept();
+                server.admitConnection(new SocketConnection(clientSocket));
+
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    System.err.println("Error accepting client connection: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        // Reader threads end with their connections
+    }
+}
@@ -0,0 +1,170 @@
+package server;
+
+import common.Constants;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool.java
+ * Direct byte buffers shared by every connection, borrowed only while
+ * there is data to read or write
+ *
+ * Buffers come in size classes: the smallest is BUFFER_POOL_SMALLEST
+ * bytes and each class is twice the one before, up to BUFFER_POOL_LARGEST.
+ * borrow() hands out a free buffer of the smallest class that fits, or
+ * allocates one; release() puts it back on its class's free list for the
+ * next borrower. Each class keeps at most
+ * BUFFER_POOL_CLASS_BYTES of free buffers - the rest are let go.
+ *
+ * Direct buffers are what the socket reads into and writes from anyway
+ * (the JDK copies heap buffers through a temporary direct one), and since
+ * they are reused they give the garbage collector nothing to do. Requests
+ * bigger than the largest class get a heap buffer of their own.
+ *
+ * A buffer has one holder at a time: whoever borrowed it releases it,
+ * once, and does not touch it afterwards. Releasing it twice throws.
+ */
+public class BufferPool {
+
+    private static final BufferPool SHARED = new BufferPool();
+
+    /**
+     * A borrowed buffer
+     */
+    public final class Buffer {
+        private final ByteBuffer bytes;
+        private final int sizeClass;      // -1 if not pooled
+        private final AtomicBoolean borrowed = new AtomicBoolean();
+
+        private Buffer(ByteBuffer bytes, int sizeClass) {
+            this.bytes = bytes;
+            this.sizeClass = sizeClass;
+        }
+
+        /**
+         * The bytes - cleared when borrowed
+         */
+        public ByteBuffer bytes() {
+            return bytes;
+        }
+
+        /**
+         * Done with the buffer - give it back to the pool
+         */
+        public void release() {
+            if (!borrowed.compareAndSet(true, false)) {
+                throw new IllegalStateException("buffer released twice");
+            }
+            giveBack(this);
+        }
+    }
+
+    private final ConcurrentLinkedQueue<Buffer>[] free;
+    private final AtomicInteger[] freeCount;
+    private final int[] maxFree;
+    private final AtomicInteger inUse = new AtomicInteger();
+    private final AtomicLong allocatedBytes = new AtomicLong();   // Direct memory held by the pool
+
+    /**
+     * Constructor
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})   // No generic array creation in Java
+    public BufferPool() {
+        int classes = 1;
+        while (classSize(classes - 1) < Constants.BUFFER_POOL_LARGEST) {
+            classes++;
+        }
+
+        free = new ConcurrentLinkedQueue[classes];
+        freeCount = new AtomicInteger[classes];
+        maxFree = new int[classes];
+        for (int i = 0; i < classes; i++) {
+            free[i] = new ConcurrentLinkedQueue<>();
+            freeCount[i] = new AtomicInteger();
+            maxFree[i] = Math.max(1, Constants.BUFFER_POOL_CLASS_BYTES / classSize(i));
+        }
+    }
+
+    /**
+     * The pool every connection borrows from
+     */
+    public static BufferPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Borrow a cleared buffer with room for at least size bytes
+     * The caller holds it and must release() it
+     */
+    public Buffer borrow(int size) {
+        int sizeClass = classOf(size);
+        Buffer buffer;
+
+        if (sizeClass < 0) {
+            buffer = new Buffer(ByteBuffer.allocate(size), -1);
+        } else {
+            buffer = free[sizeClass].poll();
+            if (buffer != null) {
+                freeCount[sizeClass].decrementAndGet();
+                buffer.bytes.clear();
+            } else {
+                buffer = new Buffer(ByteBuffer.allocateDirect(classSize(sizeClass)), sizeClass);
+                allocatedBytes.addAndGet(classSize(sizeClass));
+            }
+        }
+
+        buffer.borrowed.set(true);
+        inUse.incrementAndGet();
+        return buffer;
+    }
+
+    /**
+     * Put a released buffer back on its free list, if the list has room
+     */
+    private void giveBack(Buffer buffer) {
+        inUse.decrementAndGet();
+        if (buffer.sizeClass < 0) {
+            return;
+        }
+        if (freeCount[buffer.sizeClass].incrementAndGet() <= maxFree[buffer.sizeClass]) {
+            free[buffer.sizeClass].offer(buffer);
+        } else {
+            freeCount[buffer.sizeClass].decrementAndGet();
+            allocatedBytes.addAndGet(-buffer.bytes.capacity());   // Freed by the garbage collector
+        }
+    }
+
+    /**
+     * Smallest class that holds size bytes, or -1 if none does
+     */
+    private int classOf(int size) {
+        for (int i = 0; i < free.length; i++) {
+            if (classSize(i) >= size) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int classSize(int sizeClass) {
+        return Constants.BUFFER_POOL_SMALLEST << sizeClass;
+    }
+
+    /**
+     * Buffers currently borrowed
+     */
+    public int getInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Direct memory held by the pool, borrowed or free
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+}
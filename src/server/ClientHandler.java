@@ -3,91 +3,153 @@ package server;
 import common.Constants;
 import common.Message;
 import common.MessageType;
+import common.ProtocolFields;
 
-import java.io.*;
+import java.io.IOException;
 import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * ClientHandler.java
  * Handles communication with a single client in a separate thread
  * Each connected client gets their own ClientHandler instance
+ * Frames come and go through a Connection: the client's own socket, or a
+ * link shared with other clients when an edge gateway sits in front
  */
 public class ClientHandler implements Runnable {
 
-    private Socket socket;
+    private Connection connection;
     private Server server;
     private String username;
 
-    // I/O streams for communication
-    private BufferedReader in;
-    private PrintWriter out;
+    private volatile boolean connected;
 
-    private boolean connected;
+    // Outgoing frames by priority, written by their own thread once the client is logged in
+    private volatile OutboundLanes lanes;
+    private final ReentrantLock writeLock = new ReentrantLock();   // Held while writing to the connection
+
+    // Heartbeat state - updated on every frame, checked by the timing wheel
+    private volatile long lastReadTime;            // When we last heard from the client
+    private volatile long rttMillis;               // Last measured round-trip time (-1 = unknown)
+    private volatile TimingWheel.Timeout heartbeatTimeout;
+    private final AtomicBoolean reaped = new AtomicBoolean();     // reap() already started
+
+    /**
+     * Constructor - for a client with its own socket
+     */
+    public ClientHandler(Socket socket, Server server) throws IOException {
+        this(new SocketConnection(socket), server);
+    }
 
     /**
      * Constructor
      */
-    public ClientHandler(Socket socket, Server server) {
-        this.socket = socket;
+    public ClientHandler(Connection connection, Server server) {
+        this.connection = connection;
         this.server = server;
         this.connected = true;
+        this.rttMillis = -1;
     }
 
     /**
-     * Main thread execution method
-     * This runs in a separate thread for each client
+     * Login phase - runs on the server's bounded authentication pool
+     * Once the client is logged in, it gets its own thread for messages
      */
-    @Override
-    public void run() {
+    public void authenticateConnection() {
         try {
-            // Set up I/O streams
-            setupStreams();
+            System.out.println("Streams established for client: " + connection.getRemoteAddress());
 
-            // Authenticate user (get username)
+            // Authenticate user (get username) - a silent client can't hold a worker forever
+            connection.setReadTimeout(Constants.AUTH_TIMEOUT_MS);
             if (!authenticate()) {
                 disconnect();
                 return;
             }
+            connection.setReadTimeout(Constants.SOCKET_TIMEOUT);
 
-            // Main message receiving loop
-            listenForMessages();
+            // Liveness is tracked by heartbeats from here on
+            lastReadTime = System.currentTimeMillis();
+            scheduleHeartbeat();
+
+            // Frames either come to us from the transport's own threads,
+            // or we read them with a thread of our own
+            if (!connection.deliverTo(this::receiveFrame)) {
+                new Thread(this, "client-" + username).start();
+            }
 
         } catch (IOException e) {
-            System.err.println("Error in ClientHandler for " + username + ": " + e.getMessage());
-        } finally {
+            System.err.println("Login failed for " + connection.getRemoteAddress() + ": " + e.getMessage());
             disconnect();
         }
     }
 
     /**
-     * Set up input/output streams for socket communication
+     * Main thread execution method
+     * This runs in a separate thread for each logged-in client
      */
-    private void setupStreams() throws IOException {
-        // Input stream - read messages from client
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-        // Output stream - send messages to client
-        out = new PrintWriter(socket.getOutputStream(), true);
+    @Override
+    public void run() {
+        try {
+            // Main message receiving loop
+            listenForMessages();
 
-        System.out.println("Streams established for client: " + socket.getInetAddress());
+        } catch (IOException e) {
+            System.err.println("Error in ClientHandler for " + username + ": " + e.getMessage());
+        } finally {
+            disconnect();
+        }
     }
 
     /**
-     * Authenticate user - get and validate username
+     * Authenticate user with a single HELLO / ACCEPT round trip
+     * HELLO carries the username, protocol version, capabilities and an
+     * optional resume token; the server answers with one ACCEPT or ERROR
      */
     private boolean authenticate() throws IOException {
-        // Ask for username
-        sendMessage(Message.systemMessage("Enter your username:"));
+        // Read the client's HELLO frame
+        String receivedData = connection.readLine();
+        Message hello = (receivedData != null) ? Message.fromProtocol(receivedData) : null;
 
-        // Read username from client
-        String receivedUsername = in.readLine();
+        if (hello == null || hello.getType() != MessageType.HELLO) {
+            sendMessage(new Message(MessageType.ERROR,
+                                   Constants.SYSTEM_SENDER,
+                                   "Expected HELLO handshake. Disconnecting."));
+            return false;
+        }
 
-        if (receivedUsername == null || receivedUsername.trim().isEmpty()) {
-            sendMessage(Message.systemMessage("Invalid username. Disconnecting."));
+        Map<String, String> fields = ProtocolFields.decode(hello.getContent());
+        if (!String.valueOf(Constants.PROTOCOL_VERSION).equals(fields.get("version"))) {
+            sendMessage(new Message(MessageType.ERROR,
+                                   Constants.SYSTEM_SENDER,
+                                   "Unsupported protocol version. Please update your client."));
             return false;
         }
 
-        receivedUsername = receivedUsername.trim();
+        // From here on, writes go through the priority lanes - the ACCEPT,
+        // a resume's replay and the offline backlog are queued, never
+        // written by whoever is logging us in
+        OutboundLanes outbound = new OutboundLanes(this::writeBatch);
+        outbound.start("writer-" + connection.getRemoteAddress());
+        lanes = outbound;
+
+        // A reconnecting client presents its token - no join broadcast, replay the gap
+        String token = fields.get("token");
+        if (token != null) {
+            String resumedUsername = server.resumeClient(token, parseSeq(fields.get("seq")), this);
+            if (resumedUsername != null) {
+                this.username = resumedUsername;
+                System.out.println(" Client resumed session as: " + username);
+                return true;
+            }
+            // Session expired - fall through to a normal login in the same round trip
+        }
+
+        String receivedUsername = hello.getSender().trim();
 
         // Check if username is valid (alphanumeric, 3-20 chars)
         if (!isValidUsername(receivedUsername)) {
@@ -97,10 +159,10 @@ public class ClientHandler implements Runnable {
             return false;
         }
 
-        // Try to register with server
+        // Try to register with server (sends ACCEPT on success)
         if (server.registerClient(receivedUsername, this)) {
             this.username = receivedUsername;
-            System.out.println(" Client authenticated as: " + username);
+            System.out.println(" Client authenticated as: " + username);
             return true;
         } else {
             sendMessage(new Message(MessageType.ERROR,
@@ -110,6 +172,18 @@ public class ClientHandler implements Runnable {
         }
     }
 
+    /**
+     * Parse the last-seen sequence number from HELLO
+     * Anything unreadable counts as "seen nothing" and replays the whole buffer
+     */
+    private long parseSeq(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     /**
      * Validate username format
      */
@@ -127,32 +201,146 @@ public class ClientHandler implements Runnable {
     private void listenForMessages() throws IOException {
         String receivedData;
 
-        while (connected && (receivedData = in.readLine()) != null) {
-            try {
-                // Parse received message
-                Message message = Message.fromProtocol(receivedData);
+        while (connected && (receivedData = connection.readLine()) != null) {
+            handleFrame(receivedData);
+        }
+    }
 
-                if (message == null) {
-                    System.err.println("Invalid message format from " + username);
-                    continue;
-                }
+    /**
+     * A frame delivered by the transport (see Connection.deliverTo)
+     * null means the client has gone
+     */
+    private void receiveFrame(String receivedData) {
+        if (receivedData == null) {
+            disconnect();
+        } else if (connected) {
+            handleFrame(receivedData);
+        }
+    }
+
+    /**
+     * Handle one frame from the client
+     */
+    private void handleFrame(String receivedData) {
+        lastReadTime = System.currentTimeMillis();
+
+        try {
+            // Parse received message
+            Message message = Message.fromProtocol(receivedData);
+
+            if (message == null) {
+                System.err.println("Invalid message format from " + username);
+                return;
+            }
+
+            // Set sender to this client's username (security measure)
+            message.setSender(username);
+
+            // Handle different message types
+            handleMessage(message);
+
+        } catch (Exception e) {
+            System.err.println("Error processing message from " + username + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Arm the next heartbeat check on the server's timing wheel
+     */
+    private void scheduleHeartbeat() {
+        heartbeatTimeout = server.getTimingWheel().schedule(this::heartbeat,
+                Constants.HEARTBEAT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
 
-                // Set sender to this client's username (security measure)
-                message.setSender(username);
+    /**
+     * Heartbeat check - runs every HEARTBEAT_INTERVAL_MS
+     * Reaps the connection if the client has gone silent (sleeping laptop,
+     * NAT timeout...), otherwise sends a PING to measure round-trip time
+     * and give the client something to answer.
+     *
+     * Runs on a timing wheel worker shared by every connection, so it must
+     * never block: the PING is only queued if its lane has room, and a
+     * connection whose control lane is full is as good as dead.
+     */
+    private void heartbeat() {
+        if (!connected) {
+            return;
+        }
+
+        long idle = System.currentTimeMillis() - lastReadTime;
+        if (idle >= Constants.IDLE_TIMEOUT_MS) {
+            reap("silent for " + idle + " ms");
+            return;
+        }
 
-                // Handle different message types
-                handleMessage(message);
+        String ping = new Message(MessageType.PING, Constants.SYSTEM_SENDER,
+                                  String.valueOf(System.nanoTime())).toProtocol();
+        OutboundLanes outbound = lanes;
+        if (outbound != null && !outbound.offer(OutboundLanes.Lane.CONTROL, ping)) {
+            reap("control lane full");
+            return;
+        }
+        scheduleHeartbeat();
+    }
+
+    /**
+     * Disconnect on a thread of its own
+     * disconnect() waits for the lane writer, which may be stuck in a
+     * socket write - that must not hold up the timing wheel
+     */
+    private void reap(String why) {
+        if (!reaped.compareAndSet(false, true)) {
+            return; // Already on its way out
+        }
+        System.out.println(" Reaping connection: " + username + " (" + why + ")");
+        Thread reaper = new Thread(this::disconnect, "reap-" + username);
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * Handle heartbeat frames without logging each one
+     * @return true if the message was a heartbeat
+     */
+    private boolean handleHeartbeat(Message message) {
+        if (message.getType() == MessageType.PING) {
+            sendMessage(new Message(MessageType.PONG, Constants.SYSTEM_SENDER, message.getContent()));
+            return true;
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error processing message from " + username + ": " + e.getMessage());
+        if (message.getType() == MessageType.PONG) {
+            try {
+                long sentAt = Long.parseLong(message.getContent());
+                rttMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sentAt);
+            } catch (NumberFormatException e) {
+                // Not one of our pings - nothing to measure
             }
+            return true;
         }
+
+        return false;
     }
 
     /**
      * Handle different types of messages
      */
     private void handleMessage(Message message) {
+        if (handleHeartbeat(message)) {
+            return;
+        }
+
+        if (message.getType() == MessageType.TYPING) {
+            // Far too frequent to log, and never stored
+            server.getTypingTracker().update(message, this);
+            return;
+        }
+
+        if (message.getType() == MessageType.READ) {
+            // Read receipts - acks are debounced by the client, still not worth a log line
+            server.getReadReceipts().handle(message, this);
+            return;
+        }
+
         System.out.println("Received from " + username + ": " + message.getType() + " - " + message.getContent());
 
         switch (message.getType()) {
@@ -164,7 +352,48 @@ public class ClientHandler implements Runnable {
             case PRIVATE:
                 // Private message - send only to specific recipient
                 // This is your feature!
-                server.sendPrivateMessage(message);
+                if (PrivateChatHandler.isSessionAddress(message.getRecipient())) {
+                    if (server.getPrivateChats().sendToSession(message, this)) {
+                        server.getReadReceipts().messageSent(message);
+                    }
+                } else {
+                    server.sendPrivateMessage(message);
+                }
+                break;
+
+            case PRIVATE_REQUEST:
+                // Invitation to a private session with more than two people
+                server.getPrivateChats().invite(message, this);
+                break;
+
+            case PRIVATE_ACCEPT:
+                // Joining (or leaving) a private session
+                server.getPrivateChats().accept(message, this);
+                break;
+
+            case FILE:
+                // File shared by hash - content is uploaded only if the server lacks it
+                server.shareFile(message, this);
+                break;
+
+            case FILE_UPLOAD:
+                // File content the server asked for
+                server.receiveFileUpload(message, this);
+                break;
+
+            case FILE_FETCH:
+                // Recipient wants to download a shared file
+                server.sendFileContent(message, this);
+                break;
+
+            case SEARCH:
+                // Client searching the chat history
+                server.searchHistory(message, this);
+                break;
+
+            case HISTORY:
+                // Client scrolled back - send older room (or private conversation) messages
+                server.sendHistoryPage(message, this);
                 break;
 
             case USER_LIST:
@@ -173,7 +402,8 @@ public class ClientHandler implements Runnable {
                 break;
 
             case LEAVE:
-                // Client wants to disconnect
+                // Client wants to disconnect - end the session, no resume
+                server.endSession(username);
                 disconnect();
                 break;
 
@@ -185,10 +415,110 @@ public class ClientHandler implements Runnable {
 
     /**
      * Send message to this client
+     * Not sequenced - used for direct replies that are never replayed
      */
     public void sendMessage(Message message) {
-        if (out != null && connected) {
-            out.println(message.toProtocol());
+        sendFrame(message.toProtocol());
+    }
+
+    /**
+     * Send an already encoded protocol frame to this client
+     * Queued in the lane for its message type; written directly during login
+     */
+    public void sendFrame(String frame) {
+        if (!connected) {
+            return;
+        }
+
+        OutboundLanes outbound = lanes;
+        if (outbound != null) {
+            queue(outbound, frame);
+        } else {
+            writeDirectly(Collections.singletonList(frame));
+        }
+    }
+
+    /**
+     * Send a frame that may be lost, such as a typing update
+     * Goes in the ephemeral lane: sent only when nothing more important
+     * waits, and dropped if the connection is backed up. The next update
+     * replaces it anyway.
+     */
+    public void sendEphemeral(String frame) {
+        OutboundLanes outbound = lanes;
+        if (outbound != null && connected) {
+            outbound.offer(OutboundLanes.Lane.EPHEMERAL, frame);
+        }
+    }
+
+    /**
+     * Send several encoded frames, in order within each lane
+     */
+    public void sendFrames(List<String> frames) {
+        if (!connected) {
+            return;
+        }
+
+        OutboundLanes outbound = lanes;
+        if (outbound != null) {
+            for (String frame : frames) {
+                if (!queue(outbound, frame)) {
+                    break;
+                }
+            }
+        } else {
+            writeDirectly(frames);
+        }
+    }
+
+    /**
+     * Queue a frame in its lane without waiting
+     * The lanes never wait for room, so whoever is delivering (often a
+     * worker sending a broadcast to everyone) is never held up by this
+     * client's socket. A full lane means the client reads slower than we
+     * send: drop the connection, like an edge drops a slow client. Its
+     * session keeps the chat frames, so a resume replays what it missed.
+     * @return false if the client is being dropped
+     */
+    private boolean queue(OutboundLanes outbound, String frame) {
+        OutboundLanes.Lane lane = OutboundLanes.laneOf(frame);
+        if (outbound.offer(lane, frame) || lane == OutboundLanes.Lane.EPHEMERAL) {
+            return true;    // Typing updates may be dropped
+        }
+        if (connected) {
+            reap("too slow - " + lane.name().toLowerCase() + " lane full");
+        }
+        return false;
+    }
+
+    /**
+     * Per-lane send metrics, null before login
+     */
+    public OutboundLanes getLanes() {
+        return lanes;
+    }
+
+    /**
+     * Write frames to the connection with a single flush (the lanes' writer thread)
+     * @throws IOException once the connection is broken
+     */
+    private void writeBatch(List<String> frames) throws IOException {
+        writeLock.lock();
+        try {
+            connection.write(frames);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Write frames on the caller's thread - only before the lanes start
+     */
+    private void writeDirectly(List<String> frames) {
+        try {
+            writeBatch(frames);
+        } catch (IOException e) {
+            // Broken connection - the reader notices and disconnects
         }
     }
 
@@ -202,24 +532,23 @@ public class ClientHandler implements Runnable {
 
         connected = false;
 
-        try {
-            // Unregister from server
-            if (username != null) {
-                server.unregisterClient(username, this);
-            }
+        if (heartbeatTimeout != null) {
+            heartbeatTimeout.cancel();
+        }
 
-            // Close streams
-            if (in != null) {
-                in.close();
-            }
-            if (out != null) {
-                out.close();
-            }
+        // Give queued frames (say, a last ERROR) a moment to go out
+        OutboundLanes outbound = lanes;
+        if (outbound != null) {
+            outbound.close(Constants.OUTBOUND_CLOSE_TIMEOUT_MS);
+            System.out.println("Outbound for " + username + ": " + outbound.describeMetrics());
+        }
 
-            // Close socket
-            if (socket != null && !socket.isClosed()) {
-                socket.close();
-            }
+        try {
+            // Unregister from server (session stays resumable for a while)
+            server.unregisterClient(username, this);
+
+            // Also unblocks the reader thread if it is waiting for a frame
+            connection.close();
 
             System.out.println(" Connection closed for: " + username);
 
@@ -235,10 +564,17 @@ public class ClientHandler implements Runnable {
         return username;
     }
 
+    /**
+     * Last measured round-trip time in ms (-1 if not measured yet)
+     */
+    public long getRttMillis() {
+        return rttMillis;
+    }
+
     /**
      * Check if client is still connected
      */
     public boolean isConnected() {
-        return connected && socket != null && !socket.isClosed();
+        return connected && connection.isOpen();
     }
 }
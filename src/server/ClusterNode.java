@@ -0,0 +1,502 @@
+package server;
+
+import common.Constants;
+import common.Message;
+import common.ProtocolFields;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ClusterNode.java
+ * Links this server to the other servers of a cluster
+ *
+ * Users can connect to any node. Each node still owns its own users
+ * (sessions, resume, offline queues); what the nodes share is:
+ *   - a session directory: which user is online on which other node
+ *   - room messages: a broadcast on one node is delivered on all of them
+ *   - private messages: routed to the node the recipient is on
+ *
+ * Every node keeps one persistent link to every peer it was given. A link
+ * carries frames in one direction only; the peer's own link carries the
+ * other. Frames are single lines:
+ *
+ *   OP|NODE|PAYLOAD
+ *
+ *   AUTH   first frame on a link                  (payload: the shared secret, may be empty)
+ *   HELLO  second frame - the acceptor answers with its own HELLO
+ *          (payload: when the node started, so a restarted peer is noticed)
+ *   USERS  full list of the sender's users, sent each time a link comes up
+ *   JOIN   a user logged in on the sender          (payload: username)
+ *   LEAVE  a user left the sender                  (payload: username)
+ *   BCAST  room message to deliver to local users  (payload: Message frame)
+ *   PRIV   private message for a user on this node (payload: Message frame)
+ *
+ * Frames for a peer go through a bounded queue and are written in batches
+ * by the link's own thread, so a slow or dead peer never blocks a sender.
+ * Delivery between nodes is at most once: frames are dropped while a link
+ * is down, and the USERS list sent on reconnect repairs the directory.
+ * When the link from a peer drops, its users are treated as gone until
+ * it reconnects.
+ *
+ * A peer can speak for any user, so the cluster port listens on loopback
+ * unless told otherwise, and a link whose AUTH does not carry the
+ * cluster's shared secret is closed before anything else is read.
+ */
+public class ClusterNode {
+
+    private static final String AUTH = "AUTH";
+    private static final String HELLO = "HELLO";
+    private static final String USERS = "USERS";
+    private static final String JOIN = "JOIN";
+    private static final String LEAVE = "LEAVE";
+    private static final String BCAST = "BCAST";
+    private static final String PRIV = "PRIV";
+
+    /**
+     * Outgoing link to one peer, with its own queue and writer thread
+     */
+    private class PeerLink implements Runnable {
+        final String address;
+        final BlockingQueue<String> queue = new ArrayBlockingQueue<>(Constants.CLUSTER_LINK_QUEUE_SIZE);
+        final AtomicLong dropped = new AtomicLong();
+        volatile String peerId;             // Learned from the peer's HELLO
+        volatile String peerStarted;        // ...and which run of that peer we are talking to
+        volatile boolean connected;
+        volatile Socket socket;
+
+        PeerLink(String address) {
+            this.address = address;
+        }
+
+        /**
+         * Queue a frame; dropped if the link is down or too far behind
+         * @return false if it was dropped
+         */
+        boolean offer(String frame) {
+            if (!connected || !queue.offer(frame)) {
+                dropped.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    connectAndSend();
+                } catch (IOException e) {
+                    if (connected) {
+                        System.err.println("Cluster link to " + describe() + " lost: " + e.getMessage());
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                } finally {
+                    connected = false;
+                    closeQuietly(socket);
+                }
+
+                try {
+                    Thread.sleep(Constants.CLUSTER_RECONNECT_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void connectAndSend() throws IOException, InterruptedException {
+            String[] hostPort = address.split(":", 2);
+            Socket link = new Socket();
+            socket = link;
+            link.connect(new InetSocketAddress(hostPort[0], Integer.parseInt(hostPort[1])),
+                         Constants.CLUSTER_CONNECT_TIMEOUT_MS);
+            link.setTcpNoDelay(true);
+            link.setKeepAlive(true);
+
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(link.getOutputStream(), StandardCharsets.UTF_8)), false);
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(link.getInputStream(), StandardCharsets.UTF_8));
+
+            out.println(frame(AUTH, secret));
+            out.println(frame(HELLO, started));
+            out.flush();
+            String[] hello = parse(in.readLine());
+            if (hello == null || !HELLO.equals(hello[0])) {
+                throw new IOException("no HELLO from peer (wrong cluster secret?)");
+            }
+            peerId = hello[1];
+            peerStarted = hello[2];
+            links.put(peerId, this);
+
+            // Start clean: anything queued before now is stale, and the
+            // user list below already reflects it
+            queue.clear();
+            connected = true;
+            out.println(frame(USERS, ProtocolFields.encodeList(server.getLocalUsers())));
+            out.flush();
+            System.out.println("Cluster link up: " + nodeId + " -> " + peerId + " (" + address + ")");
+
+            List<String> batch = new ArrayList<>(Constants.CLUSTER_BATCH);
+            while (running) {
+                String first = queue.poll(Constants.CLUSTER_RECONNECT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    if (link.isClosed()) {
+                        throw new IOException("link closed");
+                    }
+                    continue;
+                }
+
+                // Everything already waiting goes out with one flush
+                batch.add(first);
+                queue.drainTo(batch, Constants.CLUSTER_BATCH - 1);
+                for (String line : batch) {
+                    out.println(line);
+                }
+                batch.clear();
+                out.flush();
+                if (out.checkError()) {
+                    throw new IOException("write failed");
+                }
+            }
+        }
+
+        String describe() {
+            return peerId != null ? peerId + " (" + address + ")" : address;
+        }
+    }
+
+    private final String nodeId;
+    private final String started = String.valueOf(System.currentTimeMillis());
+    private final String bindAddress;
+    private final int clusterPort;
+    private final String secret;
+    private final Server server;
+    private final List<PeerLink> peers;
+    private final ConcurrentHashMap<String, PeerLink> links;      // peer node id -> outgoing link
+    private final ConcurrentHashMap<String, String> directory;    // username -> node they are on
+
+    private volatile boolean running;
+    private ServerSocket listener;
+
+    /**
+     * Constructor
+     * @param nodeId This node's name, unique in the cluster
+     * @param bindAddress Interface the cluster port listens on
+     * @param clusterPort Port the other nodes connect to
+     * @param secret Shared by every node of the cluster ("" for none)
+     * @param peerAddresses host:port of every other node's cluster port
+     * @param server The local server
+     */
+    public ClusterNode(String nodeId, String bindAddress, int clusterPort, String secret,
+                       List<String> peerAddresses, Server server) {
+        this.nodeId = nodeId;
+        this.bindAddress = bindAddress;
+        this.clusterPort = clusterPort;
+        this.secret = secret;
+        this.server = server;
+        this.peers = new ArrayList<>();
+        this.links = new ConcurrentHashMap<>();
+        this.directory = new ConcurrentHashMap<>();
+
+        for (String address : peerAddresses) {
+            peers.add(new PeerLink(address));
+        }
+    }
+
+    /**
+     * Open the cluster port and start linking to the peers
+     */
+    public void start() throws IOException {
+        listener = new ServerSocket();
+        listener.bind(new InetSocketAddress(bindAddress, clusterPort));
+        running = true;
+
+        Thread acceptor = new Thread(this::acceptLinks, "cluster-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+
+        for (PeerLink peer : peers) {
+            Thread thread = new Thread(peer, "cluster-link-" + peer.address);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        System.out.println("Cluster node " + nodeId + " on " + bindAddress + ":" + clusterPort +
+                           (secret.isEmpty() ? "" : " (shared secret required)") + ", peers: " + peers.size());
+    }
+
+    /**
+     * Close every link
+     */
+    public void stop() {
+        running = false;
+        closeQuietly(listener);
+        for (PeerLink peer : peers) {
+            closeQuietly(peer.socket);
+        }
+    }
+
+    /**
+     * Accept links from peers, one reader thread each
+     */
+    private void acceptLinks() {
+        while (running) {
+            try {
+                Socket link = listener.accept();
+                Thread reader = new Thread(() -> readLink(link), "cluster-reader");
+                reader.setDaemon(true);
+                reader.start();
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error accepting cluster link: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    /**
+     * Read frames from one peer until its link drops
+     */
+    private void readLink(Socket link) {
+        String peer = null;
+        try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(link.getInputStream(), StandardCharsets.UTF_8));
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(link.getOutputStream(),
+                                                                     StandardCharsets.UTF_8), true);
+
+            // A link that never says AUTH is dropped when the read times out
+            link.setSoTimeout(Constants.CLUSTER_AUTH_TIMEOUT_MS);
+            if (!authenticate(parse(in.readLine()))) {
+                System.err.println("Cluster link from " + link.getInetAddress().getHostAddress() +
+                                   " did not authenticate - closing it");
+                return;
+            }
+            String[] hello = parse(in.readLine());
+            if (hello == null || !HELLO.equals(hello[0])) {
+                return;
+            }
+            link.setSoTimeout(0);
+            peer = hello[1];
+            out.println(frame(HELLO, started));
+            Thread.currentThread().setName("cluster-from-" + peer);
+
+            // The peer restarted while our link to it still points at its
+            // old run - drop that link so it reconnects and resends our users
+            PeerLink toPeer = links.get(peer);
+            if (toPeer != null && !hello[2].equals(toPeer.peerStarted)) {
+                closeQuietly(toPeer.socket);
+            }
+
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = parse(line);
+                if (parts != null) {
+                    handle(peer, parts[0], parts[2]);
+                }
+            }
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Cluster link from " + (peer != null ? peer : "unknown node") +
+                                   " lost: " + e.getMessage());
+            }
+        } finally {
+            closeQuietly(link);
+            if (peer != null) {
+                replaceUsers(peer, new HashSet<>());
+                System.out.println("Cluster link down: " + peer + " -> " + nodeId);
+            }
+        }
+    }
+
+    /**
+     * Check a link's first frame against the shared secret
+     * Compared in constant time, so the time taken gives nothing away
+     */
+    private boolean authenticate(String[] first) {
+        return first != null && AUTH.equals(first[0])
+            && MessageDigest.isEqual(first[2].getBytes(StandardCharsets.UTF_8),
+                                     secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Apply one frame from a peer
+     */
+    private void handle(String peer, String op, String payload) {
+        switch (op) {
+            case USERS:
+                replaceUsers(peer, new HashSet<>(ProtocolFields.decodeList(payload)));
+                break;
+
+            case JOIN:
+                if (directory.put(payload, peer) == null) {
+                    server.remoteUserJoined(payload);
+                }
+                break;
+
+            case LEAVE:
+                if (directory.remove(payload, peer)) {
+                    server.remoteUserLeft(payload);
+                }
+                break;
+
+            case BCAST:
+            case PRIV:
+                Message message = Message.fromProtocol(payload);
+                if (message == null) {
+                    return;
+                }
+                if (op.equals(BCAST)) {
+                    server.deliverRemoteBroadcast(message);
+                } else {
+                    server.deliverRemotePrivate(message);
+                }
+                break;
+
+            default:
+                System.err.println("Unknown cluster frame from " + peer + ": " + op);
+                break;
+        }
+    }
+
+    /**
+     * Make the directory's list of users on a peer match a full list
+     */
+    private void replaceUsers(String peer, Set<String> users) {
+        for (Map.Entry<String, String> entry : directory.entrySet()) {
+            if (entry.getValue().equals(peer) && !users.contains(entry.getKey())
+                    && directory.remove(entry.getKey(), peer)) {
+                server.remoteUserLeft(entry.getKey());
+            }
+        }
+        for (String user : users) {
+            if (directory.put(user, peer) == null) {
+                server.remoteUserJoined(user);
+            }
+        }
+    }
+
+    /**
+     * Tell every peer a user logged in here
+     */
+    public void userJoined(String username) {
+        publish(frame(JOIN, username));
+    }
+
+    /**
+     * Tell every peer a user left this node
+     */
+    public void userLeft(String username) {
+        publish(frame(LEAVE, username));
+    }
+
+    /**
+     * Deliver a room message on every other node
+     */
+    public void publishBroadcast(Message message) {
+        publish(frame(BCAST, message.toProtocol(0)));
+    }
+
+    /**
+     * Route a private message to the node its recipient is on
+     * @return false if the recipient is not on another node, or the message
+     *         could not be queued for that node (unreachable or too far behind)
+     */
+    public boolean sendPrivate(Message message) {
+        String node = directory.get(message.getRecipient());
+        PeerLink link = (node != null) ? links.get(node) : null;
+        return link != null && link.offer(frame(PRIV, message.toProtocol(0)));
+    }
+
+    private void publish(String frame) {
+        for (PeerLink peer : peers) {
+            peer.offer(frame);
+        }
+    }
+
+    /**
+     * Node a user is on, or null if they are not on another node
+     */
+    public String nodeOf(String username) {
+        return directory.get(username);
+    }
+
+    /**
+     * Users online on the other nodes
+     */
+    public List<String> getRemoteUsers() {
+        return new ArrayList<>(directory.keySet());
+    }
+
+    public int getRemoteUserCount() {
+        return directory.size();
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * One line per link, for logs
+     */
+    public String describeLinks() {
+        StringBuilder text = new StringBuilder();
+        for (PeerLink peer : peers) {
+            text.append("  ").append(peer.describe())
+                .append(peer.connected ? " up" : " down")
+                .append(", queued=").append(peer.queue.size())
+                .append(", dropped=").append(peer.dropped.get())
+                .append('\n');
+        }
+        return text.toString();
+    }
+
+    private String frame(String op, String payload) {
+        return op + Constants.MESSAGE_DELIMITER + nodeId + Constants.MESSAGE_DELIMITER + payload;
+    }
+
+    /**
+     * Split a frame into op, node and payload
+     * @return null if it is not a frame
+     */
+    private static String[] parse(String line) {
+        if (line == null) {
+            return null;
+        }
+        String[] parts = line.split("\\" + Constants.MESSAGE_DELIMITER, 3);
+        return parts.length == 3 ? parts : null;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Connection.java
+ * One client connection, whatever carries it
+ *
+ * ClientHandler only reads and writes protocol frames (single lines); it
+ * does not care whether they travel over a socket of its own or share a
+ * link with thousands of other clients (EdgeLink). Each transport
+ * implements this interface.
+ */
+public interface Connection {
+
+    /**
+     * Read the next frame, waiting for it
+     * @return null once the client has gone
+     * @throws java.net.SocketTimeoutException if a read timeout is set and expires
+     */
+    String readLine() throws IOException;
+
+    /**
+     * Hand every further frame to a consumer instead of readLine()
+     * For transports that read all their connections on a shared thread
+     * (NioTransport); the others return false and the caller reads with
+     * a thread of its own.
+     * @param frames Gets each frame in order, one at a time; null once the client has gone
+     * @return true if frames will be delivered
+     */
+    default boolean deliverTo(Consumer<String> frames) {
+        return false;
+    }
+
+    /**
+     * Write frames in order, with one flush
+     * @throws IOException once the connection is broken
+     */
+    void write(List<String> frames) throws IOException;
+
+    /**
+     * Limit how long readLine() waits (0 = forever)
+     */
+    void setReadTimeout(int millis) throws IOException;
+
+    /**
+     * Close the connection; a thread blocked in readLine() gets null or an exception
+     */
+    void close() throws IOException;
+
+    /**
+     * Check if the connection is still open
+     */
+    boolean isOpen();
+
+    /**
+     * Where the client connects from, for logs
+     */
+    String getRemoteAddress();
+}
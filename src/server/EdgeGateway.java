@@ -0,0 +1,342 @@
+package server;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * EdgeGateway.java
+ * Front process that holds client sockets for a core server
+ *
+ * The edge accepts clients exactly like the server does, but keeps no
+ * state of its own: no users, no history, no routing. Every frame a
+ * client sends is passed to the core over one of a few MuxLinks, and
+ * every frame the core sends back is written to the right client. The
+ * core (Server started with --edge-port) handles the clients as if they
+ * were connected to it directly. Edges can be added to take more
+ * sockets, while the core keeps a handful of links.
+ *
+ * If a link to the core drops, its clients are disconnected and reconnect
+ * on their own; their sessions on the core can be resumed as usual.
+ *
+ * Usage: java server.EdgeGateway [--port 8888] [--core localhost:7888] [--links 2] [--secret S]
+ */
+public class EdgeGateway {
+
+    /**
+     * One client socket held by this edge
+     */
+    private class EdgeClient {
+        final long id;
+        final Socket socket;
+        final MuxLink link;
+        final BlockingQueue<String> outbound = new ArrayBlockingQueue<>(Constants.EDGE_CLIENT_QUEUE_SIZE);
+        volatile boolean open = true;
+        volatile boolean closedByCore;
+
+        EdgeClient(long id, Socket socket, MuxLink link) {
+            this.id = id;
+            this.socket = socket;
+            this.link = link;
+        }
+
+        void start() {
+            Thread reader = new Thread(this::readLoop, "edge-client-" + id);
+            reader.setDaemon(true);
+            reader.start();
+
+            Thread writer = new Thread(this::writeLoop, "edge-writer-" + id);
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        /**
+         * Frames from the client go straight onto the link
+         */
+        private void readLoop() {
+            try {
+                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+                String line;
+                while (open && (line = in.readLine()) != null) {
+                    if (!link.send(MuxLink.DATA, id, line)) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                // Client gone
+            } finally {
+                close(true);
+            }
+        }
+
+        /**
+         * Frames from the core go out in batches, one flush each
+         */
+        private void writeLoop() {
+            List<String> batch = new ArrayList<>(Constants.OUTBOUND_BATCH);
+            try {
+                PrintWriter out = new PrintWriter(socket.getOutputStream(), false);
+                while (true) {
+                    batch.add(outbound.take());
+                    outbound.drainTo(batch, Constants.OUTBOUND_BATCH - 1);
+
+                    boolean end = false;
+                    for (String frame : batch) {
+                        if (frame == END) {
+                            end = true;
+                            break;
+                        }
+                        out.println(frame);
+                    }
+                    batch.clear();
+                    out.flush();
+                    if (end || out.checkError()) {
+                        break;
+                    }
+                }
+            } catch (IOException | InterruptedException e) {
+                // Client gone
+            } finally {
+                close(true);
+            }
+        }
+
+        /**
+         * A frame from the core for this client
+         * A client that reads slower than the core sends is dropped rather
+         * than let the edge buffer without limit; it can resume later
+         */
+        void deliver(String frame) {
+            if (open && !outbound.offer(frame)) {
+                System.err.println("Edge client " + id + " is too slow - disconnecting it");
+                close(true);
+            }
+        }
+
+        /**
+         * The core closed the connection - write what is queued, then close
+         */
+        void closeFromCore() {
+            closedByCore = true;
+            if (!outbound.offer(END)) {
+                close(false);
+            }
+        }
+
+        void close(boolean tellCore) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            clients.remove(id, this);
+            if (tellCore && !closedByCore) {
+                link.send(MuxLink.CLOSE, id, "");
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            outbound.clear();
+            outbound.offer(END);   // Stop the writer
+        }
+    }
+
+    // Queued to tell a client's writer to stop (compared by identity)
+    private static final String END = new String("end");
+
+    private final int port;
+    private final String coreHost;
+    private final int corePort;
+    private final String secret;
+    private final AtomicReferenceArray<MuxLink> links;
+    private final ConcurrentHashMap<Long, EdgeClient> clients;
+    private final AtomicLong nextId;
+
+    /**
+     * Constructor
+     * @param port Port clients connect to
+     * @param coreHost Core server's host
+     * @param corePort Core server's edge port
+     * @param linkCount Links to keep open to the core
+     * @param secret Shared secret the core expects on every link ("" if none)
+     */
+    public EdgeGateway(int port, String coreHost, int corePort, int linkCount, String secret) {
+        this.port = port;
+        this.secret = secret;
+        this.coreHost = coreHost;
+        this.corePort = corePort;
+        this.links = new AtomicReferenceArray<>(linkCount);
+        this.clients = new ConcurrentHashMap<>();
+        this.nextId = new AtomicLong();
+    }
+
+    /**
+     * Link up with the core and accept clients until stopped
+     */
+    public void start() throws IOException {
+        for (int i = 0; i < links.length(); i++) {
+            final int slot = i;
+            Thread thread = new Thread(() -> keepLinked(slot), "edge-link-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocket serverSocket = new ServerSocket(port, Constants.ACCEPT_BACKLOG)) {
+            System.out.println("Edge gateway on port " + port + ", core at " + coreHost + ":" + corePort +
+                               " over " + links.length() + " links");
+
+            while (true) {
+                Socket socket = serverSocket.accept();
+                long id = nextId.incrementAndGet();
+
+                MuxLink link = pickLink(id);
+                if (link == null) {
+                    reject(socket, "Server is busy. Try again later.");
+                    continue;
+                }
+
+                // Known before the core can answer, and OPEN before any of its frames
+                EdgeClient client = new EdgeClient(id, socket, link);
+                clients.put(id, client);
+                link.send(MuxLink.OPEN, id, socket.getInetAddress().getHostAddress());
+                client.start();
+            }
+        }
+    }
+
+    /**
+     * Keep one link to the core open, reconnecting when it drops
+     */
+    private void keepLinked(int slot) {
+        while (true) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(coreHost, corePort), Constants.EDGE_CONNECT_TIMEOUT_MS);
+
+                CountDownLatch closed = new CountDownLatch(1);
+                MuxLink link = new MuxLink(socket, new MuxLink.Handler() {
+                    @Override
+                    public void onFrame(String op, long id, String payload) {
+                        EdgeClient client = clients.get(id);
+                        if (client == null) {
+                            return;
+                        }
+                        if (MuxLink.DATA.equals(op)) {
+                            client.deliver(payload);
+                        } else if (MuxLink.CLOSE.equals(op)) {
+                            client.closeFromCore();
+                        }
+                    }
+
+                    @Override
+                    public void onLinkClosed() {
+                        closed.countDown();
+                    }
+                });
+                link.send(MuxLink.AUTH, 0, secret);   // Before any client is opened on it
+                link.start("edge-link-" + slot);
+                links.set(slot, link);
+                System.out.println("Link " + slot + " to core is up");
+
+                closed.await();
+                links.compareAndSet(slot, link, null);
+                dropClientsOn(link);
+                System.out.println("Link " + slot + " to core is down");
+            } catch (IOException e) {
+                // Core not there (yet) - try again shortly
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            try {
+                Thread.sleep(Constants.EDGE_RECONNECT_MS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Spread clients over the links that are up
+     */
+    private MuxLink pickLink(long id) {
+        int count = links.length();
+        for (int i = 0; i < count; i++) {
+            MuxLink link = links.get((int) ((id + i) % count));
+            if (link != null && link.isOpen()) {
+                return link;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A link dropped - its clients have lost the core, let them reconnect
+     */
+    private void dropClientsOn(MuxLink link) {
+        int dropped = 0;
+        for (EdgeClient client : clients.values()) {
+            if (client.link == link) {
+                client.close(false);
+                dropped++;
+            }
+        }
+        if (dropped > 0) {
+            System.out.println("Disconnected " + dropped + " clients of the lost link");
+        }
+    }
+
+    private static void reject(Socket socket, String reason) throws IOException {
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+        out.println(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER, reason).toProtocol());
+        socket.close();
+    }
+
+    /**
+     * Main method - Entry point for an edge gateway
+     */
+    public static void main(String[] args) {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unknown argument: " + args[i]);
+                return;
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+
+        try {
+            String[] core = options.getOrDefault("core", "localhost:" + Constants.EDGE_PORT).split(":", 2);
+            EdgeGateway edge = new EdgeGateway(
+                Integer.parseInt(options.getOrDefault("port", String.valueOf(Constants.SERVER_PORT))),
+                core[0],
+                Integer.parseInt(core[1]),
+                Integer.parseInt(options.getOrDefault("links", String.valueOf(Constants.EDGE_LINKS))),
+                options.getOrDefault("secret", ""));
+            edge.start();
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+            System.err.println("Invalid port: " + e.getMessage());
+        } catch (IOException e) {
+            System.err.println("Could not start edge gateway: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package server;
+
+import common.Constants;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EdgeLink.java
+ * The core server's end of a link from an edge gateway
+ *
+ * An edge gateway (EdgeGateway) accepts the clients' sockets and passes
+ * their frames here over a few MuxLinks. Each client connection on a
+ * link becomes an EdgeConnection, and from there on it is handled like
+ * any other client: it goes through admission and login, gets a
+ * ClientHandler, a session, resume and so on. The core only ever sees
+ * the edges' links, never the clients' sockets.
+ *
+ * A link must start with AUTH and the shared secret (--edge-secret, empty
+ * if none is set) within EDGE_AUTH_TIMEOUT_MS, or it is closed. Clients
+ * it opens are paced by the server's accept rate like any other.
+ */
+public class EdgeLink implements MuxLink.Handler {
+
+    // Queued to wake the reader once the client is gone (compared by identity,
+    // so no frame a client sends can be mistaken for it)
+    private static final String END = new String("end");
+
+    /**
+     * One client connection carried by this link
+     */
+    private class EdgeConnection implements Connection {
+        final long id;
+        final String address;
+        final BlockingQueue<String> inbound = new ArrayBlockingQueue<>(Constants.EDGE_CONNECTION_QUEUE_SIZE);
+        volatile boolean open = true;
+        volatile int readTimeout;
+
+        EdgeConnection(long id, String address) {
+            this.id = id;
+            this.address = address;
+        }
+
+        /**
+         * A frame from the client (link reader thread)
+         * A client that sends faster than it is served is cut off, so it
+         * can never hold up the other clients on the link
+         */
+        void received(String frame) {
+            if (open && !inbound.offer(frame)) {
+                System.err.println("Edge client " + address + " is flooding - closing it");
+                close();
+            }
+        }
+
+        /**
+         * The edge says the client is gone, or the link dropped
+         * Frames already received are still read first (a last LEAVE, say)
+         */
+        void ended() {
+            open = false;
+            connections.remove(id, this);
+            if (!inbound.offer(END)) {
+                inbound.clear();
+                inbound.offer(END);
+            }
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            try {
+                String frame = (readTimeout > 0)
+                               ? inbound.poll(readTimeout, TimeUnit.MILLISECONDS)
+                               : inbound.take();
+                if (frame == null) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                if (frame == END) {
+                    inbound.offer(END);   // Any later read sees the end too
+                    return null;
+                }
+                return frame;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        @Override
+        public void write(List<String> frames) throws IOException {
+            for (String frame : frames) {
+                if (!open || !link.send(MuxLink.DATA, id, frame)) {
+                    throw new IOException("connection closed");
+                }
+            }
+        }
+
+        @Override
+        public void setReadTimeout(int millis) {
+            readTimeout = millis;
+        }
+
+        @Override
+        public void close() {
+            if (open) {
+                link.send(MuxLink.CLOSE, id, "");
+                ended();
+            }
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address + " (via edge " + edgeAddress + ")";
+        }
+    }
+
+    private final Server server;
+    private final Socket socket;
+    private final MuxLink link;
+    private final String edgeAddress;
+    private final byte[] secret;
+    private final ConcurrentHashMap<Long, EdgeConnection> connections;
+    private volatile boolean authenticated;
+
+    /**
+     * Constructor
+     * @param socket A link an edge gateway opened to us
+     * @param secret What the edge must present first ("" if no secret is set)
+     */
+    public EdgeLink(Socket socket, String secret, Server server) throws IOException {
+        this.server = server;
+        this.socket = socket;
+        this.edgeAddress = socket.getInetAddress().getHostAddress() + ":" + socket.getPort();
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+        this.connections = new ConcurrentHashMap<>();
+        this.link = new MuxLink(socket, this);
+
+        // A link that never says AUTH is dropped when the read times out
+        socket.setSoTimeout(Constants.EDGE_AUTH_TIMEOUT_MS);
+    }
+
+    /**
+     * Start reading and writing the link
+     */
+    public void start() {
+        link.start("edge-" + edgeAddress);
+        System.out.println("Edge link up: " + edgeAddress);
+    }
+
+    @Override
+    public void onFrame(String op, long id, String payload) {
+        if (!authenticated) {
+            authenticate(op, payload);
+            return;
+        }
+
+        switch (op) {
+            case MuxLink.OPEN:
+                EdgeConnection connection = new EdgeConnection(id, payload);
+                connections.put(id, connection);
+                server.admitEdgeConnection(connection);
+                break;
+
+            case MuxLink.DATA:
+                EdgeConnection target = connections.get(id);
+                if (target != null) {
+                    target.received(payload);
+                }
+                break;
+
+            case MuxLink.CLOSE:
+                EdgeConnection closed = connections.get(id);
+                if (closed != null) {
+                    closed.ended();
+                }
+                break;
+
+            default:
+                System.err.println("Unknown frame on edge link " + edgeAddress + ": " + op);
+                break;
+        }
+    }
+
+    /**
+     * The first frame on the link - must be AUTH with the shared secret
+     */
+    private void authenticate(String op, String payload) {
+        // Compared in constant time, so the secret can't be guessed byte by byte
+        if (!MuxLink.AUTH.equals(op)
+                || !MessageDigest.isEqual(secret, payload.getBytes(StandardCharsets.UTF_8))) {
+            System.err.println("Edge link " + edgeAddress + " did not authenticate - closing it");
+            link.close();
+            return;
+        }
+
+        authenticated = true;
+        try {
+            socket.setSoTimeout(0);
+        } catch (SocketException e) {
+            link.close();
+            return;
+        }
+        System.out.println("Edge link authenticated: " + edgeAddress);
+    }
+
+    @Override
+    public void onLinkClosed() {
+        System.out.println("Edge link down: " + edgeAddress + " (" + connections.size() + " clients on it)");
+        for (EdgeConnection connection : connections.values()) {
+            connection.ended();
+        }
+    }
+}
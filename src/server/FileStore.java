@@ -0,0 +1,152 @@
+package server;
+
+import common.FileReference;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * FileStore.java
+ * Content-addressed blob store for shared files
+ *
+ * Files are stored once per content hash, no matter how many users
+ * they are sent to or how often they are re-sent.
+ * When the store grows past its size cap, the least recently used
+ * blobs are evicted first.
+ */
+public class FileStore {
+
+    private final File directory;
+    private final long maxBytes;
+
+    // hash -> size in bytes, kept in access order so the first entry is the LRU one
+    private final LinkedHashMap<String, Long> entries;
+    private long totalBytes;
+
+    /**
+     * Constructor
+     * @param directory Where blobs are kept (one file per hash)
+     * @param maxBytes Size cap for the whole store
+     */
+    public FileStore(File directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+        this.totalBytes = 0;
+
+        directory.mkdirs();
+        loadExisting();
+    }
+
+    /**
+     * Re-index blobs left over from a previous run
+     * Oldest files go in first so they are the first to be evicted
+     */
+    private void loadExisting() {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        for (File file : files) {
+            if (FileReference.isValidHash(file.getName())) {
+                entries.put(file.getName(), file.length());
+                totalBytes += file.length();
+            } else {
+                // Leftover temp file from an interrupted write
+                file.delete();
+            }
+        }
+        evictIfNeeded(null);
+
+        System.out.println("File store ready: " + entries.size() + " files, " + totalBytes + " bytes");
+    }
+
+    /**
+     * Check if the store already has this content
+     * Counts as a use for LRU purposes
+     */
+    public synchronized boolean contains(String hash) {
+        return entries.get(hash) != null;
+    }
+
+    /**
+     * Store file content under its hash
+     * @return false if the data does not match the hash or is larger than the whole store
+     */
+    public synchronized boolean store(String hash, byte[] data) throws IOException {
+        if (!FileReference.isValidHash(hash) || !hash.equals(FileReference.hashOf(data))) {
+            return false;
+        }
+        if (data.length > maxBytes) {
+            return false;
+        }
+        if (entries.get(hash) != null) {
+            return true; // Deduplicated - someone already uploaded it
+        }
+
+        // Write to a temp file and rename, so a crash never leaves a half-written blob
+        File temp = new File(directory, hash + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temp)) {
+            out.write(data);
+        }
+        File target = new File(directory, hash);
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("Could not move blob into place: " + target);
+        }
+
+        entries.put(hash, (long) data.length);
+        totalBytes += data.length;
+        evictIfNeeded(hash);
+
+        return true;
+    }
+
+    /**
+     * Load file content by hash
+     * @return null if the store doesn't have it (never had it, or evicted)
+     */
+    public synchronized byte[] load(String hash) throws IOException {
+        if (entries.get(hash) == null) {
+            return null;
+        }
+        return Files.readAllBytes(new File(directory, hash).toPath());
+    }
+
+    /**
+     * Drop least recently used blobs until the store fits its size cap
+     * @param keep Hash that must not be evicted (the one just stored), may be null
+     */
+    private void evictIfNeeded(String keep) {
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+
+        while (totalBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+
+            new File(directory, eldest.getKey()).delete();
+            totalBytes -= eldest.getValue();
+            it.remove();
+
+            System.out.println("File store evicted: " + eldest.getKey());
+        }
+    }
+
+    /**
+     * Total bytes currently stored
+     */
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+}
@@ -0,0 +1,42 @@
+package server;
+
+import common.Constants;
+import common.Message;
+
+/**
+ * FrameTemplate.java
+ * A message encoded once, ready to be stamped with each recipient's sequence number
+ *
+ * Every recipient of a shared message needs its own sequence number in
+ * the frame (TYPE|SENDER|RECIPIENT|SEQ|CONTENT). Rather than encoding the
+ * whole message per recipient, the parts before and after SEQ are built
+ * once and each copy only glues the number in between.
+ */
+public class FrameTemplate {
+
+    private final String head;     // TYPE|SENDER|RECIPIENT|
+    private final String tail;     // [:conversationSeq]|CONTENT
+
+    /**
+     * Constructor - encodes the message
+     */
+    public FrameTemplate(Message message) {
+        String frame = message.toProtocol(0);   // Empty SEQ field
+
+        // Type, sender and recipient never contain the delimiter
+        int seqAt = frame.indexOf(Constants.MESSAGE_DELIMITER);
+        seqAt = frame.indexOf(Constants.MESSAGE_DELIMITER, seqAt + 1);
+        seqAt = frame.indexOf(Constants.MESSAGE_DELIMITER, seqAt + 1) + 1;
+
+        this.head = frame.substring(0, seqAt);
+        this.tail = frame.substring(seqAt);
+    }
+
+    /**
+     * The frame as one recipient receives it
+     */
+    public String withSeq(long seq) {
+        return new StringBuilder(head.length() + tail.length() + 20)
+            .append(head).append(seq).append(tail).toString();
+    }
+}
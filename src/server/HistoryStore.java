@@ -0,0 +1,216 @@
+package server;
+
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * HistoryStore.java
+ * Indexed, append-only store of the public room history
+ *
+ * Messages get ids 0, 1, 2... in the order they are stored.
+ * Two files are kept:
+ *   history.dat - records: [int length][UTF-8 protocol frame]
+ *   history.idx - one fixed-size entry per id: [long offset in .dat][long time]
+ *
+ * Because index entries have a fixed size, the entry for any id is found
+ * by arithmetic, and a page of consecutive ids is one read from each file.
+ * Fetching a page therefore costs the same whether the history holds a
+ * hundred messages or a hundred million. chat_history.txt stays the
+ * human-readable log; this store is what clients page through.
+ */
+public class HistoryStore {
+
+    private static final int INDEX_ENTRY_SIZE = 16;     // offset + time
+    private static final int RECORD_HEADER_SIZE = 4;    // length
+
+    private final FileChannel data;
+    private final FileChannel index;
+
+    private long count;           // Number of stored messages (= next id)
+    private long dataEnd;         // Where the next record goes
+    private long lastTime;        // Times never go backwards, so they can be binary searched
+
+    /**
+     * Constructor - opens (or creates) the store in a directory
+     */
+    public HistoryStore(File directory) throws IOException {
+        this(directory, "history");
+        System.out.println("History store ready: " + count + " messages");
+    }
+
+    /**
+     * Constructor - opens (or creates) the store name.dat / name.idx in a directory
+     * Several stores can share a directory (see PrivateHistoryStore)
+     */
+    public HistoryStore(File directory, String name) throws IOException {
+        directory.mkdirs();
+        this.data = new RandomAccessFile(new File(directory, name + ".dat"), "rw").getChannel();
+        this.index = new RandomAccessFile(new File(directory, name + ".idx"), "rw").getChannel();
+
+        recover();
+    }
+
+    /**
+     * Find the end of the last complete record
+     * A crash between the two writes leaves a record with no index
+     * entry (or half an entry) - both are cut off here
+     */
+    private void recover() throws IOException {
+        count = index.size() / INDEX_ENTRY_SIZE;
+        index.truncate(count * INDEX_ENTRY_SIZE);
+
+        dataEnd = 0;
+        lastTime = 0;
+        while (count > 0) {
+            ByteBuffer entry = readFully(index, (count - 1) * INDEX_ENTRY_SIZE, INDEX_ENTRY_SIZE);
+            long offset = entry.getLong();
+            long time = entry.getLong();
+
+            if (offset + RECORD_HEADER_SIZE <= data.size()) {
+                long end = offset + RECORD_HEADER_SIZE + readFully(data, offset, RECORD_HEADER_SIZE).getInt();
+                if (end <= data.size()) {
+                    dataEnd = end;
+                    lastTime = time;
+                    break;
+                }
+            }
+
+            // Entry points past the data file - drop it
+            count--;
+            index.truncate(count * INDEX_ENTRY_SIZE);
+        }
+        data.truncate(dataEnd);
+    }
+
+    /**
+     * Store a room message
+     * @param time When it was logged (epoch millis)
+     * @return the message's history id
+     */
+    public synchronized long append(Message message, long time) throws IOException {
+        byte[] frame = message.toProtocol(0).getBytes(StandardCharsets.UTF_8);
+        lastTime = Math.max(lastTime, time);
+
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + frame.length);
+        record.putInt(frame.length).put(frame).flip();
+        writeFully(data, dataEnd, record);
+
+        // Index entry last - an entry only ever points at a complete record
+        ByteBuffer entry = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        entry.putLong(dataEnd).putLong(lastTime).flip();
+        writeFully(index, count * INDEX_ENTRY_SIZE, entry);
+
+        dataEnd += record.capacity();
+        return count++;
+    }
+
+    /**
+     * Read up to limit messages with ids just below beforeId, oldest first
+     * Each message's timestamp is set to when it was stored, and its
+     * conversation seq to its id + 1.
+     * Costs two reads no matter how large the history is.
+     */
+    public synchronized List<Message> readBefore(long beforeId, int limit) throws IOException {
+        List<Message> messages = new ArrayList<>();
+
+        long to = Math.min(beforeId, count);
+        long from = Math.max(0, to - limit);
+        if (from >= to) {
+            return messages;
+        }
+
+        int entries = (int) (to - from);
+        ByteBuffer indexBytes = readFully(index, from * INDEX_ENTRY_SIZE, entries * INDEX_ENTRY_SIZE);
+        long[] times = new long[entries];
+        long firstOffset = indexBytes.getLong(0);
+        for (int i = 0; i < entries; i++) {
+            times[i] = indexBytes.getLong(i * INDEX_ENTRY_SIZE + 8);
+        }
+
+        long endOffset = (to < count)
+                         ? readFully(index, to * INDEX_ENTRY_SIZE, 8).getLong()
+                         : dataEnd;
+        ByteBuffer records = readFully(data, firstOffset, (int) (endOffset - firstOffset));
+
+        for (int i = 0; i < entries; i++) {
+            byte[] frame = new byte[records.getInt()];
+            records.get(frame);
+
+            Message message = Message.fromProtocol(new String(frame, StandardCharsets.UTF_8));
+            if (message != null) {
+                message.setTimestamp(Message.fromEpochMillis(times[i]));
+                message.setConversationSeq(from + i + 1);
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Find the id of the first message stored at or after a time
+     * Binary search over the index - O(log n) small reads
+     * @return an id usable as readBefore()'s beforeId
+     */
+    public synchronized long findIdAt(long time) throws IOException {
+        long low = 0;
+        long high = count;
+
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long middleTime = readFully(index, middle * INDEX_ENTRY_SIZE + 8, 8).getLong();
+            if (middleTime < time) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Id the next stored message will get
+     * Everything a client has not received live is below this
+     */
+    public synchronized long getHead() {
+        return count;
+    }
+
+    /**
+     * Flush and close both files
+     */
+    public synchronized void close() {
+        try {
+            data.force(true);
+            index.force(true);
+            data.close();
+            index.close();
+        } catch (IOException e) {
+            System.err.println("Error closing history store: " + e.getMessage());
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of history file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * MarkIndex.java
+ * Read marks kept in sorted order, to count who has read a message
+ *
+ * ReadMarks answers "how far has alice read?"; this answers "how many
+ * have read up to seq N?" without looking at every reader. The marks sit
+ * in one sorted array, ordered by mark and then by name, so a count is a
+ * binary search (O(log n)) and the names of the readers are the entries
+ * from there on.
+ *
+ * Moving a reader forward shifts the entries between their old and new
+ * place - one array copy, with no object per reader.
+ *
+ * Not thread-safe; callers guard each instance with a lock.
+ */
+public class MarkIndex {
+
+    private long[] marks = new long[8];
+    private String[] users = new String[8];
+    private int size;
+
+    /**
+     * Move a reader's mark
+     * @param from Their mark so far (0 if they have none)
+     * @param to Their new mark (0 to take them out)
+     */
+    public void move(String user, long from, long to) {
+        if (from > 0) {
+            remove(from, user);
+        }
+        if (to > 0) {
+            insert(to, user);
+        }
+    }
+
+    /**
+     * Number of readers whose mark is at least the given one
+     */
+    public int countAtLeast(long mark) {
+        return size - firstAtLeast(mark);
+    }
+
+    /**
+     * Readers whose mark is at least the given one, except one user
+     * @param limit Most names returned
+     */
+    public List<String> namesAtLeast(long mark, String except, int limit) {
+        List<String> names = new ArrayList<>();
+        for (int i = firstAtLeast(mark); i < size && names.size() < limit; i++) {
+            if (!users[i].equals(except)) {
+                names.add(users[i]);
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Position of the first entry with a mark of at least the given one
+     */
+    private int firstAtLeast(long mark) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (marks[middle] < mark) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Position of (mark, user), or where it would go
+     */
+    private int indexOf(long mark, String user) {
+        int low = 0;
+        int high = size;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (compare(marks[middle], users[middle], mark, user) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private void insert(long mark, String user) {
+        if (size == marks.length) {
+            marks = Arrays.copyOf(marks, size * 2);
+            users = Arrays.copyOf(users, size * 2);
+        }
+        int at = indexOf(mark, user);
+        System.arraycopy(marks, at, marks, at + 1, size - at);
+        System.arraycopy(users, at, users, at + 1, size - at);
+        marks[at] = mark;
+        users[at] = user;
+        size++;
+    }
+
+    private void remove(long mark, String user) {
+        int at = indexOf(mark, user);
+        if (at >= size || marks[at] != mark || !users[at].equals(user)) {
+            return;     // Not there - nothing to remove
+        }
+        System.arraycopy(marks, at + 1, marks, at, size - at - 1);
+        System.arraycopy(users, at + 1, users, at, size - at - 1);
+        size--;
+        users[size] = null;
+    }
+
+    private static int compare(long markA, String userA, long markB, String userB) {
+        int byMark = Long.compare(markA, markB);
+        return (byMark != 0) ? byMark : userA.compareTo(userB);
+    }
+}
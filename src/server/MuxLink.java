@@ -0,0 +1,189 @@
+package server;
+
+import common.Constants;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * MuxLink.java
+ * One socket carrying the frames of many client connections
+ *
+ * Used between an edge gateway and the core server. Every line on the
+ * link names the client connection it belongs to:
+ *
+ *   OP|ID|PAYLOAD
+ *
+ *   AUTH   edge -> core  first frame on a link   (payload: the shared secret, may be empty)
+ *   OPEN   edge -> core  a client connected      (payload: its address)
+ *   DATA   both ways     one protocol frame of that client
+ *   CLOSE  both ways     the connection is gone  (payload empty)
+ *
+ * Frames to send go through a bounded queue. One writer thread takes
+ * everything that is waiting and writes it with a single flush, so a
+ * busy link costs one system call per batch, not per frame. Senders wait
+ * when the queue is full. One reader thread hands incoming frames to the
+ * Handler in order.
+ */
+public class MuxLink {
+
+    public static final String AUTH = "AUTH";
+    public static final String OPEN = "OPEN";
+    public static final String DATA = "DATA";
+    public static final String CLOSE = "CLOSE";
+
+    /**
+     * Receives the frames arriving on a link
+     */
+    public interface Handler {
+        void onFrame(String op, long id, String payload);
+
+        /**
+         * The link is gone - every connection on it is gone too
+         */
+        void onLinkClosed();
+    }
+
+    private final Socket socket;
+    private final Handler handler;
+    private final BlockingQueue<String> queue;
+    private volatile boolean open;
+
+    /**
+     * Constructor
+     * @param socket A connected socket
+     * @param handler Gets every frame read from the link
+     */
+    public MuxLink(Socket socket, Handler handler) throws IOException {
+        this.socket = socket;
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<>(Constants.EDGE_LINK_QUEUE_SIZE);
+        this.open = true;
+        socket.setTcpNoDelay(true);
+        socket.setKeepAlive(true);
+    }
+
+    /**
+     * Start the reader and writer threads
+     */
+    public void start(String name) {
+        Thread reader = new Thread(this::readLoop, name + "-in");
+        reader.setDaemon(true);
+        reader.start();
+
+        Thread writer = new Thread(this::writeLoop, name + "-out");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queue a frame for the other side
+     * Waits while the link is backed up
+     * @return false if the link is closed
+     */
+    public boolean send(String op, long id, String payload) {
+        String frame = op + Constants.MESSAGE_DELIMITER + id + Constants.MESSAGE_DELIMITER + payload;
+        try {
+            while (open) {
+                if (queue.offer(frame, Constants.EDGE_RECONNECT_MS, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Close the link; the handler hears about it once
+     */
+    public void close() {
+        if (!open) {
+            return;
+        }
+        open = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    private void readLoop() {
+        try {
+            BufferedReader in = new BufferedReader(
+                new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] parts = line.split("\\" + Constants.MESSAGE_DELIMITER, 3);
+                if (parts.length < 3) {
+                    continue;
+                }
+                try {
+                    handler.onFrame(parts[0], Long.parseLong(parts[1]), parts[2]);
+                } catch (NumberFormatException e) {
+                    System.err.println("Invalid link frame: " + parts[0]);
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                System.err.println("Link read failed: " + e.getMessage());
+            }
+        } finally {
+            close();
+            handler.onLinkClosed();
+        }
+    }
+
+    private void writeLoop() {
+        List<String> batch = new ArrayList<>(Constants.EDGE_BATCH);
+        try {
+            PrintWriter out = new PrintWriter(new BufferedWriter(
+                new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8)), false);
+
+            while (open) {
+                String first = queue.poll(Constants.EDGE_RECONNECT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                // Everything already waiting goes out with one flush
+                batch.add(first);
+                queue.drainTo(batch, Constants.EDGE_BATCH - 1);
+                for (String frame : batch) {
+                    out.print(frame);
+                    out.print('\n');
+                }
+                batch.clear();
+                out.flush();
+                if (out.checkError()) {
+                    throw new IOException("write failed");
+                }
+            }
+        } catch (IOException e) {
+            if (open) {
+                System.err.println("Link write failed: " + e.getMessage());
+            }
+        } catch (InterruptedException e) {
+            // Shutting down
+        } finally {
+            close();
+        }
+    }
+}
@@ -0,0 +1,573 @@
+package server;
+
+import common.Constants;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/**
+ * NioTransport.java
+ * Transport that reads every client socket from one selector thread
+ *
+ * The selector thread accepts clients, reads whatever arrives, cuts it
+ * into frames and queues them per connection. The frames are handled on
+ * a small worker pool - one connection's frames in order, a batch at a
+ * time. Handling never waits on another client's socket: delivering to a
+ * client whose outbound lane is full drops that client instead (see
+ * OutboundLanes), so a broadcast costs the worker the same whoever reads
+ * slowly. A client with too many unhandled frames is not read until they
+ * are handled, which slows it down through TCP instead of buffering
+ * without limit.
+ *
+ * Writes still come from each client's outbound lane writer
+ * (OutboundLanes); what goes away is the reader thread per client.
+ * On Linux the JDK's selector is built on epoll.
+ *
+ * Reads and writes go through direct buffers borrowed from the shared
+ * BufferPool, and only for as long as data is in flight: a read buffer
+ * is kept only while a frame has arrived in part, a write buffer only
+ * while a batch is being written. An idle client holds no buffer at all,
+ * though it still has its outbound lane writer thread (and that thread's
+ * stack) - idle memory per client is down, not near zero.
+ */
+public class NioTransport implements Transport {
+
+    // Queued after a client's last frame (compared by identity)
+    private static final String END = new String("end");
+
+    // Frames are text in the platform charset, as with SocketConnection
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final String LINE_END = System.lineSeparator();
+    private static final boolean ASCII_AS_IS = encodesAsciiAsIs(CHARSET);
+
+    /**
+     * One client socket, registered with the selector
+     */
+    private class NioConnection implements Connection {
+        final SocketChannel channel;
+        final String address;
+        final LinkedBlockingQueue<String> inbound = new LinkedBlockingQueue<>();
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        final Object writeLock = new Object();
+
+        // Selector thread only
+        SelectionKey key;
+        BufferPool.Buffer partial;     // Borrowed while a frame is still arriving, null otherwise
+        int scanned;                   // Bytes of that frame already searched for its end
+
+        volatile Consumer<String> consumer;
+        volatile boolean open = true;
+        volatile boolean paused;       // Not read until its frames are handled
+        volatile boolean writable;
+        volatile int readTimeout;
+
+        NioConnection(SocketChannel channel) {
+            this.channel = channel;
+            this.address = channel.socket().getInetAddress().getHostAddress();
+        }
+
+        /**
+         * Data has arrived (selector thread)
+         */
+        void readable() {
+            try {
+                partial = (partial != null) ? roomFor(partial) : buffers.borrow(Constants.NIO_READ_BUFFER_SIZE);
+                ByteBuffer bytes = partial.bytes();
+
+                int read = channel.read(bytes);
+                if (read < 0) {
+                    ended();
+                    return;
+                }
+                bytes.flip();
+                split(bytes);
+
+                // Keep the buffer only if a frame was cut off
+                if (bytes.hasRemaining()) {
+                    bytes.compact();
+                } else {
+                    releaseBuffer();
+                }
+            } catch (IOException e) {
+                ended();
+                return;
+            }
+
+            if (inbound.size() >= Constants.NIO_INBOX_SIZE) {
+                paused = true;
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            schedule();
+        }
+
+        /**
+         * A buffer holding the frame cut off so far with room to read more -
+         * the same one, or the next size up if it is full
+         * The frame keeps its offsets, so what was scanned stays scanned
+         */
+        private BufferPool.Buffer roomFor(BufferPool.Buffer buffer) throws IOException {
+            ByteBuffer bytes = buffer.bytes();
+            if (bytes.hasRemaining()) {
+                return buffer;
+            }
+            if (bytes.capacity() >= Constants.NIO_MAX_FRAME_BYTES) {
+                throw new IOException("frame too long");
+            }
+
+            BufferPool.Buffer bigger = buffers.borrow(Math.min(bytes.capacity() * 2, Constants.NIO_MAX_FRAME_BYTES));
+            bytes.flip();
+            bigger.bytes().put(bytes);
+            buffer.release();
+            return bigger;
+        }
+
+        /**
+         * Cut the bytes read into frames, one per line
+         * Leaves the buffer positioned at the frame cut off at the end, if any.
+         * Only the bytes just read are searched: a long frame arriving in
+         * small reads costs the selector thread one pass, not one per read.
+         */
+        private void split(ByteBuffer bytes) {
+            int start = bytes.position();
+            int end = bytes.limit();
+
+            for (int i = start + scanned; i < end; i++) {
+                if (bytes.get(i) != '\n') {
+                    continue;
+                }
+                inbound.add(stripReturn(decode(bytes, start, i - start)));
+                start = i + 1;
+            }
+            bytes.position(start);
+            scanned = end - start;   // What is left has no line end in it
+        }
+
+        /**
+         * Release the read buffer (selector thread)
+         */
+        void releaseBuffer() {
+            if (partial != null) {
+                partial.release();
+                partial = null;
+            }
+            scanned = 0;
+        }
+
+        /**
+         * The client has gone or broke the connection (selector thread)
+         */
+        void ended() {
+            releaseBuffer();
+            close();
+            schedule();
+        }
+
+        /**
+         * Have a worker handle the queued frames, unless one already is
+         */
+        void schedule() {
+            if (consumer != null && !inbound.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    workers.execute(this::handleFrames);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);   // Shutting down
+                }
+            }
+        }
+
+        /**
+         * Hand a batch of frames to the consumer (worker thread)
+         */
+        private void handleFrames() {
+            for (int i = 0; i < Constants.NIO_FRAME_BATCH; i++) {
+                String frame = inbound.poll();
+                if (frame == null) {
+                    break;
+                }
+                if (frame == END) {
+                    consumer.accept(null);
+                    return;     // Stays scheduled - nothing follows the end
+                }
+                consumer.accept(frame);
+            }
+            scheduled.set(false);
+
+            resumeIfDrained();
+            schedule();
+        }
+
+        /**
+         * Start reading a paused client again once it has caught up
+         */
+        private void resumeIfDrained() {
+            if (paused && inbound.size() < Constants.NIO_INBOX_SIZE / 2) {
+                paused = false;
+                onSelectorThread(() -> {
+                    if (key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                    }
+                });
+            }
+        }
+
+        /**
+         * The socket can take more data again (selector thread)
+         */
+        void writableAgain() {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            synchronized (writeLock) {
+                writable = true;
+                writeLock.notifyAll();
+            }
+        }
+
+        @Override
+        public boolean deliverTo(Consumer<String> frames) {
+            consumer = frames;
+            schedule();   // Frames that arrived during login
+            return true;
+        }
+
+        @Override
+        public String readLine() throws IOException {
+            try {
+                String frame = (readTimeout > 0)
+                               ? inbound.poll(readTimeout, TimeUnit.MILLISECONDS)
+                               : inbound.take();
+                if (frame == null) {
+                    throw new SocketTimeoutException("Read timed out");
+                }
+                if (frame == END) {
+                    inbound.offer(END);   // Any later read sees the end too
+                    return null;
+                }
+                resumeIfDrained();
+                return frame;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+
+        /**
+         * Encode the frames straight into a borrowed buffer and write it,
+         * a buffer-full at a time if the batch is bigger than the buffer
+         */
+        @Override
+        public void write(List<String> frames) throws IOException {
+            int size = 0;
+            for (String frame : frames) {
+                size += frame.length() + LINE_END.length();
+            }
+
+            synchronized (writeLock) {
+                BufferPool.Buffer buffer = buffers.borrow(Math.min(size, Constants.BUFFER_POOL_LARGEST));
+                try {
+                    ByteBuffer bytes = buffer.bytes();
+                    for (String frame : frames) {
+                        encode(frame, bytes);
+                        encode(LINE_END, bytes);
+                    }
+                    send(bytes);
+                } finally {
+                    buffer.release();
+                }
+            }
+        }
+
+        /**
+         * Encode text into the buffer, sending it whenever it fills up
+         * (caller holds writeLock)
+         */
+        private void encode(String text, ByteBuffer bytes) throws IOException {
+            int i = 0;
+            if (ASCII_AS_IS) {
+                // Most of the protocol is plain ASCII - copied byte for byte up
+                // to the first character that needs the encoder
+                for (; i < text.length(); i++) {
+                    char c = text.charAt(i);
+                    if (c >= 0x80) {
+                        break;
+                    }
+                    if (!bytes.hasRemaining()) {
+                        send(bytes);
+                    }
+                    bytes.put((byte) c);
+                }
+                if (i == text.length()) {
+                    return;
+                }
+            }
+
+            CharsetEncoder encoder = CHARSET.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.wrap(text, i, text.length());
+            while (encoder.encode(chars, bytes, true).isOverflow()) {
+                send(bytes);
+            }
+            while (encoder.flush(bytes) == CoderResult.OVERFLOW) {
+                send(bytes);
+            }
+        }
+
+        /**
+         * Write out what is in the buffer and clear it (caller holds writeLock)
+         */
+        private void send(ByteBuffer bytes) throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) {
+                if (!open) {
+                    throw new IOException("connection closed");
+                }
+                if (channel.write(bytes) == 0) {
+                    awaitWritable();
+                }
+            }
+            bytes.clear();
+        }
+
+        /**
+         * Wait until the client has read enough for us to write again
+         * (caller holds writeLock)
+         */
+        private void awaitWritable() throws IOException {
+            writable = false;
+            onSelectorThread(() -> {
+                if (key.isValid()) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                }
+            });
+            try {
+                while (!writable && open) {
+                    writeLock.wait(Constants.HEARTBEAT_INTERVAL_MS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        @Override
+        public void setReadTimeout(int millis) {
+            readTimeout = millis;
+        }
+
+        @Override
+        public void close() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Already closed
+            }
+            inbound.offer(END);
+            synchronized (writeLock) {
+                writeLock.notifyAll();
+            }
+            onSelectorThread(this::releaseBuffer);
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return address;
+        }
+    }
+
+    private final ServerSocketChannel listener;
+    private final TokenBucket acceptLimiter;
+    private final Server server;
+    private final Selector selector;
+    private final ExecutorService workers;
+    private final Queue<Runnable> selectorTasks;
+    private final BufferPool buffers;
+    private final byte[] frameBytes;   // Selector thread only - a frame's bytes on their way to a String
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     * @param listener Bound listening channel
+     * @param acceptLimiter Paces accepts - extra connections wait in the OS backlog
+     */
+    public NioTransport(ServerSocketChannel listener, TokenBucket acceptLimiter, Server server) throws IOException {
+        this.listener = listener;
+        this.acceptLimiter = acceptLimiter;
+        this.server = server;
+        this.selector = Selector.open();
+        this.selectorTasks = new ConcurrentLinkedQueue<>();
+        this.buffers = BufferPool.shared();
+        this.frameBytes = new byte[Constants.NIO_READ_BUFFER_SIZE];
+        this.workers = Executors.newFixedThreadPool(Constants.NIO_WORKER_THREADS, r -> {
+            Thread thread = new Thread(r, "nio-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.running = true;
+    }
+
+    /**
+     * Run the selector loop - until shutdown, so clients are still served
+     * after the listening socket closes (while draining)
+     */
+    @Override
+    public void serve() {
+        try {
+            listener.configureBlocking(false);
+            SelectionKey acceptKey = listener.register(selector, SelectionKey.OP_ACCEPT);
+            long acceptPausedUntil = 0;
+
+            while (running) {
+                selector.select(acceptPausedUntil > 0 ? Constants.NIO_ACCEPT_RETRY_MS : 0);
+
+                Runnable task;
+                while ((task = selectorTasks.poll()) != null) {
+                    task.run();
+                }
+
+                // Accepts were rate limited - try again once the pause is over
+                if (acceptPausedUntil > 0 && System.currentTimeMillis() >= acceptPausedUntil) {
+                    acceptPausedUntil = 0;
+                    if (acceptKey.isValid()) {
+                        acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+                    }
+                }
+
+                Iterator<SelectionKey> ready = selector.selectedKeys().iterator();
+                while (ready.hasNext()) {
+                    SelectionKey key = ready.next();
+                    ready.remove();
+                    try {
+                        if (key == acceptKey) {
+                            if (!acceptClient()) {
+                                acceptKey.interestOps(0);
+                                acceptPausedUntil = System.currentTimeMillis() + Constants.NIO_ACCEPT_RETRY_MS;
+                            }
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) key.attachment();
+                        if (key.isWritable()) {
+                            connection.writableAgain();
+                        }
+                        if (key.isReadable()) {
+                            connection.readable();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // Closed meanwhile
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Selector failed: " + e.getMessage());
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    /**
+     * Accept one waiting client, if the rate limit allows
+     * @return false if accepts have to pause
+     */
+    private boolean acceptClient() {
+        if (!acceptLimiter.tryAcquire()) {
+            return false;
+        }
+        try {
+            SocketChannel channel = listener.accept();
+            if (channel != null) {
+                channel.configureBlocking(false);
+                NioConnection connection = new NioConnection(channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                server.admitConnection(connection);
+            }
+        } catch (IOException e) {
+            if (listener.isOpen()) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Run a change to a selection key on the selector thread
+     */
+    private void onSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        workers.shutdownNow();
+    }
+
+    /**
+     * A frame read into a direct buffer, as text (selector thread)
+     */
+    private String decode(ByteBuffer bytes, int offset, int length) {
+        byte[] target = (length <= frameBytes.length) ? frameBytes : new byte[length];   // Long frames are rare
+        bytes.position(offset);
+        bytes.get(target, 0, length);
+        return new String(target, 0, length, CHARSET);
+    }
+
+    /**
+     * Check if a charset writes ASCII characters as single bytes of the
+     * same value (UTF-8 and most platform charsets do)
+     */
+    private static boolean encodesAsciiAsIs(Charset charset) {
+        char[] ascii = new char[0x80];
+        for (char c = 0; c < ascii.length; c++) {
+            ascii[c] = c;
+        }
+        byte[] bytes = new String(ascii).getBytes(charset);
+        if (bytes.length != ascii.length) {
+            return false;
+        }
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] != i) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String stripReturn(String frame) {
+        return frame.endsWith("\r") ? frame.substring(0, frame.length() - 1) : frame;
+    }
+}
@@ -0,0 +1,365 @@
+package server;
+
+import common.Constants;
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * OfflineQueueStore.java
+ * Store-and-forward queues for private messages to offline users
+ *
+ * Each user who has ever logged in gets one append-only queue file,
+ * memory-mapped so that queueing a message is a plain memory copy
+ * (no system call on the send path). The OS writes the pages back,
+ * so queued messages survive a server restart.
+ *
+ * Only the OFFLINE_QUEUE_OPEN_MAX most recently used queues are mapped
+ * at a time; the rest are mapped again when next needed. Every mapping
+ * costs address space and counts against the OS limit on mappings per
+ * process, so one per user ever seen would not scale.
+ *
+ * File layout:
+ *   header:  [int magic][int end]
+ *   records: [int length][long expiresAt][length bytes of UTF-8 protocol frame]
+ *
+ * Every queue has a fixed size cap and each message a time-to-live.
+ * Expired messages are skipped when the queue is drained, and squeezed
+ * out when a full queue needs room.
+ */
+public class OfflineQueueStore {
+
+    private static final int MAGIC = 0x4F515545;          // "OQUE"
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 12;      // length + expiresAt
+    private static final String FILE_SUFFIX = ".queue";
+
+    private final File directory;
+    private final int capacity;
+    private final long ttlMillis;
+
+    // username -> mapped queue, least recently used first (guarded by this)
+    private final Map<String, UserQueue> queues;
+
+    /**
+     * One user's mapped queue file
+     */
+    private static class UserQueue {
+        private final MappedByteBuffer buffer;
+        private int end;                   // Where the next record goes
+        private boolean closed;            // Unmapped - map the file again to use it
+
+        UserQueue(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+
+            if (buffer.getInt(0) == MAGIC) {
+                end = buffer.getInt(4);
+            }
+            if (end < HEADER_SIZE || end > buffer.capacity()) {
+                // New or damaged file - start empty
+                buffer.putInt(0, MAGIC);
+                end = HEADER_SIZE;
+                buffer.putInt(4, end);
+            }
+        }
+
+        /**
+         * Append one record
+         * @return false if the queue is full even after dropping expired messages
+         */
+        synchronized boolean append(byte[] frame, long expiresAt, long now) {
+            int needed = RECORD_HEADER_SIZE + frame.length;
+            if (end + needed > buffer.capacity()) {
+                compact(now);
+                if (end + needed > buffer.capacity()) {
+                    return false;
+                }
+            }
+
+            buffer.putInt(end, frame.length);
+            buffer.putLong(end + 4, expiresAt);
+            for (int i = 0; i < frame.length; i++) {
+                buffer.put(end + RECORD_HEADER_SIZE + i, frame[i]);
+            }
+            end += needed;
+
+            // Publish the new end last, so a crash mid-write loses only this record
+            buffer.putInt(4, end);
+            return true;
+        }
+
+        /**
+         * Take every unexpired record and empty the queue
+         */
+        synchronized List<byte[]> drain(long now) {
+            List<byte[]> frames = readLive(now);
+
+            end = HEADER_SIZE;
+            buffer.putInt(4, end);
+            buffer.force();
+            return frames;
+        }
+
+        /**
+         * Rewrite the queue with only the unexpired records
+         * Only happens when the queue is full, never on the common path
+         */
+        private void compact(long now) {
+            List<byte[]> frames = new ArrayList<>();
+            List<Long> expiries = new ArrayList<>();
+
+            int position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= end) {
+                int length = buffer.getInt(position);
+                long expiresAt = buffer.getLong(position + 4);
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > end) {
+                    break;
+                }
+                if (expiresAt > now) {
+                    frames.add(readBytes(position + RECORD_HEADER_SIZE, length));
+                    expiries.add(expiresAt);
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+
+            end = HEADER_SIZE;
+            for (int i = 0; i < frames.size(); i++) {
+                byte[] frame = frames.get(i);
+                buffer.putInt(end, frame.length);
+                buffer.putLong(end + 4, expiries.get(i));
+                for (int j = 0; j < frame.length; j++) {
+                    buffer.put(end + RECORD_HEADER_SIZE + j, frame[j]);
+                }
+                end += RECORD_HEADER_SIZE + frame.length;
+            }
+            buffer.putInt(4, end);
+        }
+
+        private List<byte[]> readLive(long now) {
+            List<byte[]> frames = new ArrayList<>();
+
+            int position = HEADER_SIZE;
+            while (position + RECORD_HEADER_SIZE <= end) {
+                int length = buffer.getInt(position);
+                long expiresAt = buffer.getLong(position + 4);
+                if (length < 0 || position + RECORD_HEADER_SIZE + length > end) {
+                    break; // Torn record - nothing after it can be trusted
+                }
+                if (expiresAt > now) {
+                    frames.add(readBytes(position + RECORD_HEADER_SIZE, length));
+                }
+                position += RECORD_HEADER_SIZE + length;
+            }
+            return frames;
+        }
+
+        private byte[] readBytes(int position, int length) {
+            byte[] data = new byte[length];
+            for (int i = 0; i < length; i++) {
+                data[i] = buffer.get(position + i);
+            }
+            return data;
+        }
+
+        synchronized void force() {
+            if (!closed) {
+                buffer.force();
+            }
+        }
+
+        /**
+         * Write back and unmap (under the queue's lock, so no one is using it)
+         */
+        synchronized void close() {
+            if (!closed) {
+                closed = true;
+                buffer.force();
+                unmap(buffer);
+            }
+        }
+    }
+
+    /**
+     * Constructor
+     * @param directory Where queue files are kept (one per user)
+     * @param capacity Size cap for each user's queue in bytes
+     * @param ttlMillis How long a queued message stays deliverable
+     */
+    public OfflineQueueStore(File directory, int capacity, long ttlMillis) {
+        this.directory = directory;
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+        this.queues = new LinkedHashMap<String, UserQueue>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, UserQueue> eldest) {
+                if (size() > Constants.OFFLINE_QUEUE_OPEN_MAX) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        directory.mkdirs();
+    }
+
+    /**
+     * Make sure a user has a queue file
+     * Called when a user logs in, so only known users can be queued for.
+     * The file is mapped only when a message is queued or drained.
+     */
+    public void createQueue(String username) throws IOException {
+        if (!isValidName(username)) {
+            return;
+        }
+        File file = queueFile(username);
+        if (!file.exists()) {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.setLength(capacity);
+            }
+        }
+    }
+
+    /**
+     * Check if messages can be queued for this user
+     */
+    public boolean hasQueue(String username) {
+        return isValidName(username) && queueFile(username).exists();
+    }
+
+    /**
+     * Queue a message for a user who is not online
+     * @return false if the user has no queue, or their queue is full
+     */
+    public boolean enqueue(String username, Message message) throws IOException {
+        long now = System.currentTimeMillis();
+        byte[] frame = message.toProtocol(0).getBytes(StandardCharsets.UTF_8);
+
+        while (true) {
+            UserQueue queue = getQueue(username);
+            if (queue == null) {
+                return false;
+            }
+            synchronized (queue) {
+                if (!queue.closed) {
+                    return queue.append(frame, now + ttlMillis, now);
+                }
+            }
+            // Unmapped meanwhile to make room for others - map it again
+        }
+    }
+
+    /**
+     * Take all queued messages for a user, oldest first
+     * The queue is empty afterwards
+     */
+    public List<Message> drain(String username) throws IOException {
+        List<Message> messages = new ArrayList<>();
+
+        List<byte[]> frames = null;
+        while (frames == null) {
+            UserQueue queue = getQueue(username);
+            if (queue == null) {
+                return messages;
+            }
+            synchronized (queue) {
+                if (!queue.closed) {
+                    frames = queue.drain(System.currentTimeMillis());
+                }
+            }
+        }
+
+        for (byte[] frame : frames) {
+            Message message = Message.fromProtocol(new String(frame, StandardCharsets.UTF_8));
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        return messages;
+    }
+
+    /**
+     * Flush every open queue to disk (called on shutdown)
+     */
+    public synchronized void close() {
+        for (UserQueue queue : queues.values()) {
+            queue.force();
+        }
+    }
+
+    /**
+     * Find a mapped queue, or map its file
+     * May unmap the least recently used queue to stay under the limit
+     * @return null if the user has no queue
+     */
+    private synchronized UserQueue getQueue(String username) throws IOException {
+        UserQueue queue = queues.get(username);
+        if (queue != null) {
+            return queue;
+        }
+
+        if (!hasQueue(username)) {
+            return null;
+        }
+
+        // The mapping stays valid after the file is closed
+        try (RandomAccessFile raf = new RandomAccessFile(queueFile(username), "rw")) {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            queue = new UserQueue(buffer);
+        }
+        queues.put(username, queue);
+        return queue;
+    }
+
+    /**
+     * Usernames name the queue files, so only valid ones are let near the disk
+     * (recipients come straight from clients)
+     */
+    private static boolean isValidName(String username) {
+        return username != null && username.matches("[a-zA-Z0-9_]{3,20}");
+    }
+
+    private File queueFile(String username) {
+        return new File(directory, username + FILE_SUFFIX);
+    }
+
+    /**
+     * Release a mapping now instead of whenever the garbage collector gets to it
+     * Java 9+ has Unsafe.invokeCleaner; Java 8 has the buffer's own cleaner.
+     * If neither can be reached the mapping is left to the garbage collector.
+     */
+    private static void unmap(ByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Not Java 9+ - try the Java 8 way
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Left to the garbage collector
+        }
+    }
+}
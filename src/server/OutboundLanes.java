@@ -0,0 +1,418 @@
+package server;
+
+import common.Constants;
+import common.MessageType;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * OutboundLanes.java
+ * Per-connection send queue with three priority lanes
+ *
+ * Without lanes an ERROR reply or a user list waits behind every chat
+ * line already queued for a slow client. Here each frame goes into one
+ * of three lanes, chosen by its MessageType:
+ *   CONTROL   - errors, presence, system notices, heartbeats: sent first
+ *   CHAT      - messages, files, history, receipts: sent in order
+ *   EPHEMERAL - typing indicators: sent only when nothing else waits,
+ *               dropped when the connection is backed up or they go stale
+ *
+ * One writer thread per connection takes frames in priority order and
+ * writes up to OUTBOUND_BATCH of them with a single flush. Starvation
+ * guard: a chat frame that has waited longer than OUTBOUND_STARVATION_MS
+ * goes ahead of the control lane, so a stream of control frames can delay
+ * chat but never stop it.
+ *
+ * Nothing ever waits for room. A full control or chat lane means the
+ * client reads slower than we send: offer() says so and the caller drops
+ * the connection (the client resumes and gets the chat frames replayed),
+ * so one slow reader never holds up the thread delivering a broadcast.
+ *
+ * Each lane keeps its own metrics: frames sent and dropped, and the time
+ * from queueing to writing (last, average and worst).
+ */
+public class OutboundLanes {
+
+    /**
+     * Priority classes, highest first
+     */
+    public enum Lane {
+        CONTROL, CHAT, EPHEMERAL
+    }
+
+    /**
+     * Writes a batch of frames to the connection with one flush
+     */
+    public interface Sink {
+        void write(List<String> frames) throws IOException;
+    }
+
+    /**
+     * A frame and when it was queued
+     */
+    private static final class Pending {
+        final String frame;
+        final long queuedAt;
+
+        Pending(String frame, long queuedAt) {
+            this.frame = frame;
+            this.queuedAt = queuedAt;
+        }
+    }
+
+    /**
+     * One lane's queue and metrics (guarded by the lanes' lock)
+     */
+    private static final class LaneState {
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        final int capacity;
+        long sent;
+        long dropped;
+        long totalLagNanos;
+        long lastLagNanos;
+        long maxLagNanos;
+
+        LaneState(int capacity) {
+            this.capacity = capacity;
+        }
+    }
+
+    private static final long STARVATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Constants.OUTBOUND_STARVATION_MS);
+    private static final long EPHEMERAL_MAX_AGE_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(Constants.OUTBOUND_EPHEMERAL_MAX_AGE_MS);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final LaneState[] lanes;
+    private final Sink sink;
+
+    private boolean running;
+    private Thread thread;
+
+    /**
+     * Constructor
+     * @param sink Where batches are written
+     */
+    public OutboundLanes(Sink sink) {
+        this.sink = sink;
+        this.lanes = new LaneState[] {
+            new LaneState(Constants.OUTBOUND_CONTROL_LANE_SIZE),
+            new LaneState(Constants.OUTBOUND_CHAT_LANE_SIZE),
+            new LaneState(Constants.OUTBOUND_EPHEMERAL_LANE_SIZE)
+        };
+    }
+
+    /**
+     * Which lane a message type travels in
+     */
+    public static Lane laneOf(MessageType type) {
+        switch (type) {
+            case ERROR:
+            case USER_LIST:
+            case PRESENCE:
+            case SYSTEM:
+            case JOIN:
+            case LEAVE:
+            case ACCEPT:
+            case PING:
+            case PONG:
+            case PRIVATE_REQUEST:
+            case PRIVATE_ACCEPT:
+            case FILE_UPLOAD:
+                return Lane.CONTROL;
+
+            case TYPING:
+                return Lane.EPHEMERAL;
+
+            default:
+                return Lane.CHAT;
+        }
+    }
+
+    /**
+     * Which lane an encoded frame travels in - read from its TYPE field
+     */
+    public static Lane laneOf(String frame) {
+        int end = frame.indexOf(Constants.MESSAGE_DELIMITER);
+        return laneOf(MessageType.fromString(end >= 0 ? frame.substring(0, end) : frame));
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start(String name) {
+        lock.lock();
+        try {
+            running = true;
+        } finally {
+            lock.unlock();
+        }
+
+        thread = new Thread(this::runWriter, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue a frame - never waits for room
+     * Ephemeral frames are also dropped when more than
+     * OUTBOUND_EPHEMERAL_BACKLOG other frames are waiting
+     * @return false if the frame was dropped: its lane is full (the
+     *         client is too slow) or the lanes are closed
+     */
+    public boolean offer(Lane lane, String frame) {
+        LaneState state = lanes[lane.ordinal()];
+
+        lock.lock();
+        try {
+            boolean full = state.queue.size() >= state.capacity;
+            if (lane == Lane.EPHEMERAL) {
+                full |= lanes[0].queue.size() + lanes[1].queue.size() > Constants.OUTBOUND_EPHEMERAL_BACKLOG;
+            }
+            if (!running || full) {
+                state.dropped++;
+                return false;
+            }
+
+            state.queue.addLast(new Pending(frame, System.nanoTime()));
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stop the writer, giving it up to timeoutMs to write what is queued
+     * Anything left is dropped - sequenced frames can still be replayed on resume
+     */
+    public void close(long timeoutMs) {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        if (thread != null && thread != Thread.currentThread()) {
+            try {
+                thread.join(timeoutMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * Writer thread: take batches in priority order and write them
+     */
+    private void runWriter() {
+        List<String> frames = new ArrayList<>(Constants.OUTBOUND_BATCH);
+
+        while (true) {
+            lock.lock();
+            try {
+                while (running && isEmpty()) {
+                    notEmpty.await();
+                }
+                if (isEmpty()) {
+                    return; // Closed and everything written
+                }
+                takeBatch(frames);
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            if (frames.isEmpty()) {
+                continue; // Only stale ephemeral frames
+            }
+            try {
+                sink.write(frames);
+            } catch (IOException e) {
+                System.err.println("Write failed on " + Thread.currentThread().getName() + ": " + e.getMessage());
+                stopAfterFailure();
+                return;
+            }
+            frames.clear();
+        }
+    }
+
+    /**
+     * Move up to OUTBOUND_BATCH frames into frames, highest priority first (caller holds the lock)
+     */
+    private void takeBatch(List<String> frames) {
+        long now = System.nanoTime();
+
+        while (frames.size() < Constants.OUTBOUND_BATCH) {
+            LaneState state = nextLane(now);
+            if (state == null) {
+                return;
+            }
+
+            Pending pending = state.queue.pollFirst();
+            long lag = now - pending.queuedAt;
+            if (state == lanes[Lane.EPHEMERAL.ordinal()] && lag > EPHEMERAL_MAX_AGE_NANOS) {
+                state.dropped++; // Stale - a newer update has replaced it by now
+                continue;
+            }
+
+            state.sent++;
+            state.totalLagNanos += lag;
+            state.lastLagNanos = lag;
+            state.maxLagNanos = Math.max(state.maxLagNanos, lag);
+            frames.add(pending.frame);
+        }
+    }
+
+    /**
+     * Lane to take the next frame from (caller holds the lock)
+     */
+    private LaneState nextLane(long now) {
+        LaneState control = lanes[Lane.CONTROL.ordinal()];
+        LaneState chat = lanes[Lane.CHAT.ordinal()];
+        LaneState ephemeral = lanes[Lane.EPHEMERAL.ordinal()];
+
+        Pending oldestChat = chat.queue.peekFirst();
+        boolean chatStarving = oldestChat != null && now - oldestChat.queuedAt > STARVATION_NANOS;
+
+        if (!control.queue.isEmpty() && !chatStarving) {
+            return control;
+        }
+        if (oldestChat != null) {
+            return chat;
+        }
+        if (!ephemeral.queue.isEmpty()) {
+            return ephemeral;
+        }
+        return null;
+    }
+
+    /**
+     * The connection is gone - drop what is queued
+     */
+    private void stopAfterFailure() {
+        lock.lock();
+        try {
+            running = false;
+            for (LaneState state : lanes) {
+                state.dropped += state.queue.size();
+                state.queue.clear();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmpty() {
+        for (LaneState state : lanes) {
+            if (!state.queue.isEmpty()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Frames waiting in a lane
+     */
+    public int getQueued(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frames written from a lane
+     */
+    public long getSent(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].sent;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Frames dropped from a lane
+     */
+    public long getDropped(Lane lane) {
+        lock.lock();
+        try {
+            return lanes[lane.ordinal()].dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue-to-write time of the last frame written from a lane
+     */
+    public long getLastLagMillis(Lane lane) {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(lanes[lane.ordinal()].lastLagNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Worst queue-to-write time of a lane so far
+     */
+    public long getMaxLagMillis(Lane lane) {
+        lock.lock();
+        try {
+            return TimeUnit.NANOSECONDS.toMillis(lanes[lane.ordinal()].maxLagNanos);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Average queue-to-write time of a lane, in microseconds
+     */
+    public long getAverageLagMicros(Lane lane) {
+        lock.lock();
+        try {
+            LaneState state = lanes[lane.ordinal()];
+            return state.sent > 0 ? TimeUnit.NANOSECONDS.toMicros(state.totalLagNanos / state.sent) : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * One-line summary of every lane, for logs
+     */
+    public String describeMetrics() {
+        StringBuilder text = new StringBuilder();
+        for (Lane lane : Lane.values()) {
+            if (text.length() > 0) {
+                text.append(" | ");
+            }
+            text.append(lane.name().toLowerCase())
+                .append(" sent=").append(getSent(lane))
+                .append(" queued=").append(getQueued(lane))
+                .append(" avg=").append(getAverageLagMicros(lane)).append("us")
+                .append(" max=").append(getMaxLagMillis(lane)).append("ms");
+            if (getDropped(lane) > 0) {
+                text.append(" dropped=").append(getDropped(lane));
+            }
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,134 @@
+package server;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * PresenceDigest.java
+ * Collects joins and leaves and hands them out once per PRESENCE_BATCH_MS
+ *
+ * Announcing every join and leave to every user costs N x N frames when
+ * N users reconnect at once. Instead the server notes each change here and
+ * flushes them together:
+ *   - one PRESENCE frame per user with the change as data
+ *     (joined=a,b;left=c;online=N) for user lists
+ *   - chat lines for people: one per user while a window has at most
+ *     PRESENCE_DIGEST_THRESHOLD joins (or leaves), otherwise a single
+ *     "57 users joined the chat"
+ *
+ * Someone who leaves and comes back within the same window (or joins and
+ * leaves again) cancels out and is not announced at all.
+ */
+public class PresenceDigest {
+
+    /**
+     * Everything that changed in one window
+     */
+    public static class Batch {
+        private final List<String> joined;
+        private final List<String> left;
+
+        Batch(List<String> joined, List<String> left) {
+            this.joined = joined;
+            this.left = left;
+        }
+
+        public List<String> getJoined() {
+            return joined;
+        }
+
+        public List<String> getLeft() {
+            return left;
+        }
+
+        /**
+         * The PRESENCE frame for user lists
+         * @param online Users online after these changes
+         */
+        public Message toDelta(int online) {
+            Map<String, String> fields = new LinkedHashMap<>();
+            if (!joined.isEmpty()) {
+                fields.put("joined", ProtocolFields.encodeList(joined));
+            }
+            if (!left.isEmpty()) {
+                fields.put("left", ProtocolFields.encodeList(left));
+            }
+            fields.put("online", String.valueOf(online));
+            return new Message(MessageType.PRESENCE, Constants.SYSTEM_SENDER, ProtocolFields.encode(fields));
+        }
+
+        /**
+         * The chat lines to show for these changes, joins first
+         */
+        public List<Message> toDigest() {
+            List<Message> lines = new ArrayList<>();
+            addLines(lines, joined, "joined");
+            addLines(lines, left, "left");
+            return lines;
+        }
+
+        private static void addLines(List<Message> lines, List<String> users, String change) {
+            if (users.size() > Constants.PRESENCE_DIGEST_THRESHOLD) {
+                lines.add(Message.systemMessage(users.size() + " users " + change + " the chat"));
+                return;
+            }
+            for (String user : users) {
+                lines.add(Message.systemMessage(user + " " + change + " the chat"));
+            }
+        }
+    }
+
+    // username -> true if they joined, false if they left (guarded by this)
+    private LinkedHashMap<String, Boolean> pending = new LinkedHashMap<>();
+
+    /**
+     * Note that a user came online
+     */
+    public synchronized void joined(String username) {
+        note(username, true);
+    }
+
+    /**
+     * Note that a user went offline
+     */
+    public synchronized void left(String username) {
+        note(username, false);
+    }
+
+    private void note(String username, boolean joined) {
+        Boolean earlier = pending.remove(username);
+        if (earlier == null || earlier == joined) {
+            pending.put(username, joined);
+        }
+        // Otherwise the two changes cancel out
+    }
+
+    /**
+     * Take everything noted since the last call
+     * @return null if nothing changed
+     */
+    public Batch drain() {
+        LinkedHashMap<String, Boolean> changes;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return null;
+            }
+            changes = pending;
+            pending = new LinkedHashMap<>();
+        }
+
+        List<String> joined = new ArrayList<>();
+        List<String> left = new ArrayList<>();
+        for (Map.Entry<String, Boolean> change : changes.entrySet()) {
+            (change.getValue() ? joined : left).add(change.getKey());
+        }
+        return new Batch(joined, left);
+    }
+}
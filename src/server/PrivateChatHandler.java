@@ -1,28 +1,347 @@
 package server;
 
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * PrivateChatHandler.java
+ * Private chat sessions with more than two people
  *
- * NOTE: This class is not actually needed!
- * Private message routing is already handled by:
- * - Server.sendPrivateMessage() at Server.java:179
- * - ClientHandler.handleMessage() at ClientHandler.java:149
+ * One-to-one private messages are still routed by Server.sendPrivateMessage().
+ * A private session is a small closed group: a member invites someone
+ * (PRIVATE_REQUEST), the invited user accepts (PRIVATE_ACCEPT), and from
+ * then on messages addressed to "#sessionId" reach every member.
  *
- * This file exists only to match the original folder structure.
- * You can leave it empty or add utility methods if needed in the future.
+ *   PRIVATE_REQUEST  to=invitee       session=ID         invite (creates ID if new)
+ *   PRIVATE_ACCEPT                    session=ID         join after an invite
+ *   PRIVATE_ACCEPT                    session=ID;leave=true
+ *   PRIVATE          to=#ID           text               message to the session
  *
- * Original design had this as a separate handler, but it's more efficient
- * to handle private messages directly in the Server class.
+ * Members are notified of joins and leaves with a PRIVATE_ACCEPT that
+ * carries the new member list.
+ *
+ * Each session keeps its own member list as an array snapshot. Sending
+ * encodes the message once (FrameTemplate) and walks that snapshot, so
+ * routing costs O(members) and takes no lock at all. Member sessions are
+ * looked up in the server's clients map only when someone joins, and
+ * never while a session lock is held.
  */
 public class PrivateChatHandler {
 
     /**
-     * This class is intentionally left empty.
-     * Private chat functionality is implemented in:
-     * - Server.java (routing logic)
-     * - ClientHandler.java (message parsing)
-     * - PrivateChatUI.java (client UI)
+     * One private session
+     */
+    private static class PrivateSession {
+        final String id;
+        volatile UserSession[] members = new UserSession[0];   // Replaced, never changed in place
+        final Set<String> invited = new HashSet<>();           // Guarded by this
+        final AtomicLong lastSeq = new AtomicLong();           // Conversation seq of the latest message
+
+        PrivateSession(String id) {
+            this.id = id;
+        }
+
+        boolean isMember(String username) {
+            for (UserSession member : members) {
+                if (member.getUsername().equals(username)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        List<String> memberNames() {
+            List<String> names = new ArrayList<>();
+            for (UserSession member : members) {
+                names.add(member.getUsername());
+            }
+            return names;
+        }
+    }
+
+    private final Map<String, UserSession> clients;
+
+    // session id -> session
+    private final ConcurrentHashMap<String, PrivateSession> sessions;
+    // username -> ids of the sessions they are in, for cleanup when they leave
+    private final ConcurrentHashMap<String, Set<String>> sessionsByUser;
+
+    /**
+     * Constructor
+     * @param clients The server's online users - only read, never locked
+     */
+    public PrivateChatHandler(Map<String, UserSession> clients) {
+        this.clients = clients;
+        this.sessions = new ConcurrentHashMap<>();
+        this.sessionsByUser = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Check if a recipient names a private session rather than a user
+     */
+    public static boolean isSessionAddress(String recipient) {
+        return recipient != null && recipient.startsWith(Constants.SESSION_ADDRESS_PREFIX);
+    }
+
+    /**
+     * Invite a user to a session (PRIVATE_REQUEST)
+     * A session id nobody uses yet starts a new session with the inviter in it
+     */
+    public void invite(Message request, ClientHandler handler) {
+        String inviter = handler.getUsername();
+        String invitee = request.getRecipient();
+        String id = ProtocolFields.decode(request.getContent()).get("session");
+
+        if (id == null || !id.matches("[A-Za-z0-9]{1,32}")) {
+            sendError(handler, "Invalid private session.");
+            return;
+        }
+
+        // Look both users up before touching the session
+        UserSession inviterSession = clients.get(inviter);
+        UserSession inviteeSession = clients.get(invitee);
+        if (inviteeSession == null) {
+            sendError(handler, "User '" + invitee + "' is not online.");
+            return;
+        }
+        if (inviterSession == null) {
+            return;
+        }
+
+        PrivateSession session = sessions.computeIfAbsent(id, PrivateSession::new);
+        List<String> members;
+        synchronized (session) {
+            if (session.members.length == 0 && sessions.get(id) == session) {
+                addMember(session, inviterSession);   // New session
+            }
+            if (!session.isMember(inviter)) {
+                sendError(handler, "You are not in that private session.");
+                return;
+            }
+            if (session.isMember(invitee)) {
+                return; // Already in
+            }
+            if (session.members.length + session.invited.size() >= Constants.PRIVATE_SESSION_MAX_MEMBERS) {
+                sendError(handler, "That private session is full.");
+                return;
+            }
+            session.invited.add(invitee);
+            members = session.memberNames();
+        }
+
+        // Invitee gets the invitation, the inviter a copy as confirmation
+        Message invitation = new Message(MessageType.PRIVATE_REQUEST, inviter, invitee,
+                                         sessionFields(id, members, null, null));
+        inviteeSession.deliver(invitation);
+        inviterSession.deliver(invitation);
+    }
+
+    /**
+     * Join a session after an invite, or leave one (PRIVATE_ACCEPT)
      */
+    public void accept(Message request, ClientHandler handler) {
+        String username = handler.getUsername();
+        Map<String, String> fields = ProtocolFields.decode(request.getContent());
+
+        PrivateSession session = sessions.get(String.valueOf(fields.get("session")));
+        if (session == null) {
+            sendError(handler, "That private session no longer exists.");
+            return;
+        }
+
+        if ("true".equals(fields.get("leave"))) {
+            leave(session, username);
+            return;
+        }
+
+        UserSession userSession = clients.get(username);
+        if (userSession == null) {
+            return;
+        }
+
+        synchronized (session) {
+            if (!session.invited.remove(username)) {
+                sendError(handler, "You have not been invited to that private session.");
+                return;
+            }
+            addMember(session, userSession);
+        }
+        notifyMembers(session, username, "joined");
+    }
+
+    /**
+     * Send a message to everyone in a session (PRIVATE to #id)
+     * Encoded once, then stamped per member - no locks on this path
+     * @return false if the sender is not in the session
+     */
+    public boolean sendToSession(Message message, ClientHandler handler) {
+        String id = message.getRecipient().substring(Constants.SESSION_ADDRESS_PREFIX.length());
+        PrivateSession session = sessions.get(id);
+
+        if (session == null || !session.isMember(message.getSender())) {
+            sendError(handler, "You are not in that private session.");
+            return false;
+        }
+
+        message.setConversationSeq(session.lastSeq.incrementAndGet());
+        FrameTemplate frame = new FrameTemplate(message);
+        for (UserSession member : session.members) {
+            member.deliver(frame);
+        }
+        return true;
+    }
+
+    /**
+     * Take a user out of every session (they logged out)
+     */
+    public void removeUser(String username) {
+        Set<String> ids = sessionsByUser.remove(username);
+        if (ids == null) {
+            return;
+        }
+
+        for (String id : ids) {
+            PrivateSession session = sessions.get(id);
+            if (session != null) {
+                leave(session, username);
+            }
+        }
+    }
+
+    /**
+     * Put a user's new session in place of their old one in every private
+     * session they are in (they logged in again without a resume token)
+     * Members are not told - as far as they know the user never left
+     */
+    public void replaceUser(UserSession old, UserSession replacement) {
+        Set<String> ids = sessionsByUser.get(old.getUsername());
+        if (ids == null) {
+            return;
+        }
+
+        for (String id : ids) {
+            PrivateSession session = sessions.get(id);
+            if (session == null) {
+                continue;
+            }
+            synchronized (session) {
+                UserSession[] members = session.members.clone();
+                for (int i = 0; i < members.length; i++) {
+                    if (members[i] == old) {
+                        members[i] = replacement;
+                    }
+                }
+                session.members = members;
+            }
+        }
+    }
+
+    /**
+     * Check if a user is in a session
+     * @param address Session address ("#ID")
+     */
+    public boolean isMember(String address, String username) {
+        PrivateSession session = sessions.get(address.substring(Constants.SESSION_ADDRESS_PREFIX.length()));
+        return session != null && session.isMember(username);
+    }
+
+    /**
+     * Current members of a session - a snapshot, empty if it is gone
+     * @param address Session address ("#ID")
+     */
+    public List<UserSession> getMembers(String address) {
+        PrivateSession session = sessions.get(address.substring(Constants.SESSION_ADDRESS_PREFIX.length()));
+        return session != null ? Arrays.asList(session.members) : new ArrayList<>();
+    }
+
+    /**
+     * Number of sessions currently open
+     */
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    private void leave(PrivateSession session, String username) {
+        synchronized (session) {
+            if (!session.isMember(username)) {
+                return;
+            }
+
+            List<UserSession> remaining = new ArrayList<>();
+            for (UserSession member : session.members) {
+                if (!member.getUsername().equals(username)) {
+                    remaining.add(member);
+                }
+            }
+            session.members = remaining.toArray(new UserSession[0]);
+
+            // Last one out closes the session
+            if (remaining.isEmpty()) {
+                sessions.remove(session.id, session);
+            }
+        }
+
+        Set<String> ids = sessionsByUser.get(username);
+        if (ids != null) {
+            ids.remove(session.id);
+        }
+        notifyMembers(session, username, "left");
+    }
+
+    /**
+     * Add a member (caller holds the session lock)
+     */
+    private void addMember(PrivateSession session, UserSession member) {
+        UserSession[] members = Arrays.copyOf(session.members, session.members.length + 1);
+        members[members.length - 1] = member;
+        session.members = members;
+
+        sessionsByUser.computeIfAbsent(member.getUsername(), k -> ConcurrentHashMap.newKeySet())
+                      .add(session.id);
+    }
+
+    /**
+     * Tell every member who joined or left, with the new member list
+     */
+    private void notifyMembers(PrivateSession session, String username, String change) {
+        UserSession[] members = session.members;
+        List<String> names = new ArrayList<>();
+        for (UserSession member : members) {
+            names.add(member.getUsername());
+        }
+
+        Message update = new Message(MessageType.PRIVATE_ACCEPT, username,
+                                     Constants.SESSION_ADDRESS_PREFIX + session.id,
+                                     sessionFields(session.id, names, change, username));
+        FrameTemplate frame = new FrameTemplate(update);
+        for (UserSession member : members) {
+            member.deliver(frame);
+        }
+    }
+
+    private static String sessionFields(String id, List<String> members, String change, String user) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("session", id);
+        fields.put("members", ProtocolFields.encodeList(members));
+        if (change != null) {
+            fields.put(change, user);
+        }
+        return ProtocolFields.encode(fields);
+    }
 
-    // No implementation needed - kept for structural completeness
+    private static void sendError(ClientHandler handler, String text) {
+        handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER, handler.getUsername(), text));
+    }
 }
@@ -0,0 +1,221 @@
+package server;
+
+import common.Constants;
+import common.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * PrivateHistoryStore.java
+ * Private conversation history, one indexed store per pair of users
+ *
+ * The pair is ordered (alice+bob, never bob+alice), so both sides of a
+ * conversation land in the same HistoryStore: pair.dat with the messages
+ * and pair.idx with fixed-size index entries. The last N messages of a
+ * conversation are therefore one index read and one data read, no matter
+ * how many other conversations there are or how long this one is.
+ *
+ * Appending is split in two so sending never waits on the disk:
+ *   append() - only adds the message to an in-memory queue
+ *   writer   - a background thread writes the queue out every
+ *              PRIVATE_HISTORY_FLUSH_MS, a batch at a time
+ * Reads write out whatever is queued first, so they always see every
+ * message sent before them.
+ */
+public class PrivateHistoryStore {
+
+    /**
+     * A message waiting to be written
+     */
+    private static final class Pending {
+        final String pair;
+        final Message message;
+        final long time;
+
+        Pending(String pair, Message message, long time) {
+            this.pair = pair;
+            this.message = message;
+            this.time = time;
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentLinkedQueue<Pending> pending;
+
+    // pair -> open store, least recently used first; closed when evicted
+    private final Map<String, HistoryStore> stores;
+
+    // pair -> conversation seq of its next message (guarded by itself)
+    private final ReadMarks nextSeqs;
+
+    private volatile boolean running;
+    private final Thread writer;
+
+    /**
+     * Constructor
+     * @param directory Where the per-pair files are kept
+     */
+    public PrivateHistoryStore(File directory) {
+        this.directory = directory;
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.stores = new LinkedHashMap<String, HistoryStore>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, HistoryStore> eldest) {
+                if (size() > Constants.PRIVATE_HISTORY_OPEN_PAIRS) {
+                    eldest.getValue().close();
+                    return true;
+                }
+                return false;
+            }
+        };
+
+        this.nextSeqs = new ReadMarks(Constants.PRIVATE_HISTORY_OPEN_PAIRS);
+
+        directory.mkdirs();
+
+        this.running = true;
+        this.writer = new Thread(this::runWriter, "private-history-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    /**
+     * Store a private message and set its conversation seq
+     * Only touches the disk for the first message of a pair since startup,
+     * to find where its conversation left off
+     * @param time When it was sent (epoch millis)
+     * @return the message's conversation seq (its id + 1)
+     */
+    public long append(Message message, long time) {
+        String pair = pairKey(message.getSender(), message.getRecipient());
+
+        // Seqs are handed out in the order messages are queued, so they match the ids on disk
+        synchronized (nextSeqs) {
+            long seq = nextSeqs.get(pair);
+            if (seq == 0) {
+                seq = loadHead(pair) + 1;
+            }
+            nextSeqs.put(pair, seq + 1);
+
+            message.setConversationSeq(seq);
+            pending.add(new Pending(pair, message, time));
+            return seq;
+        }
+    }
+
+    /**
+     * Read up to limit messages of a conversation with ids just below beforeId, oldest first
+     * Ids count the messages of this pair only: 0, 1, 2...
+     */
+    public synchronized List<Message> readBefore(String user, String peer, long beforeId, int limit)
+            throws IOException {
+        flush();
+
+        HistoryStore store = getStore(pairKey(user, peer), false);
+        return store != null ? store.readBefore(beforeId, limit) : new ArrayList<>();
+    }
+
+    /**
+     * Id the next message of a conversation will get
+     */
+    public synchronized long getHead(String user, String peer) throws IOException {
+        flush();
+
+        HistoryStore store = getStore(pairKey(user, peer), false);
+        return store != null ? store.getHead() : 0;
+    }
+
+    /**
+     * Number of messages a pair has stored (nothing of it is queued)
+     */
+    private synchronized long loadHead(String pair) {
+        try {
+            HistoryStore store = getStore(pair, false);
+            return store != null ? store.getHead() : 0;
+        } catch (IOException e) {
+            System.err.println("Error opening private history of " + pair + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Write out what is queued and close every file (called on shutdown)
+     */
+    public void close() {
+        running = false;
+        writer.interrupt();
+
+        synchronized (this) {
+            flush();
+            for (HistoryStore store : stores.values()) {
+                store.close();
+            }
+            stores.clear();
+        }
+    }
+
+    /**
+     * Writer thread: write the queue out once per interval
+     */
+    private void runWriter() {
+        while (running) {
+            try {
+                Thread.sleep(Constants.PRIVATE_HISTORY_FLUSH_MS);
+            } catch (InterruptedException e) {
+                return; // Stopped - close() writes out the rest
+            }
+
+            synchronized (this) {
+                flush();
+            }
+        }
+    }
+
+    /**
+     * Write every queued message to its pair's store (caller holds the lock)
+     */
+    private void flush() {
+        Pending next;
+        while ((next = pending.poll()) != null) {
+            try {
+                getStore(next.pair, true).append(next.message, next.time);
+            } catch (IOException e) {
+                System.err.println("Error storing private message for " + next.pair + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Find an open store, or open its files
+     * @param create Create the files if the pair has no history yet
+     * @return null if the pair has no history and create is false
+     */
+    private HistoryStore getStore(String pair, boolean create) throws IOException {
+        HistoryStore store = stores.get(pair);
+        if (store != null) {
+            return store;
+        }
+
+        if (!create && !new File(directory, pair + ".idx").exists()) {
+            return null;
+        }
+
+        store = new HistoryStore(directory, pair);
+        stores.put(pair, store);
+        return store;
+    }
+
+    /**
+     * The same key for both directions of a conversation
+     * Usernames are alphanumeric, so "+" cannot be part of one
+     */
+    static String pairKey(String user, String peer) {
+        return user.compareTo(peer) < 0 ? user + "+" + peer : peer + "+" + user;
+    }
+}
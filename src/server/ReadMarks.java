@@ -0,0 +1,146 @@
+package server;
+
+/**
+ * ReadMarks.java
+ * String -> long map without boxing - read marks per user, counters per conversation
+ *
+ * Open addressing with linear probing over two parallel arrays, so a
+ * mark is one array slot rather than a map entry holding a Long. Removing
+ * a user shifts the entries after it back, so no tombstones are needed.
+ *
+ * Not thread-safe; callers guard each instance with a lock.
+ */
+public class ReadMarks {
+
+    private String[] users;
+    private long[] marks;
+    private int size;
+
+    /**
+     * Constructor
+     * @param expected Roughly how many users will be tracked
+     */
+    public ReadMarks(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected * 2 - 1)) << 1;
+        this.users = new String[capacity];
+        this.marks = new long[capacity];
+    }
+
+    /**
+     * A user's mark (0 if they have none)
+     */
+    public long get(String user) {
+        int slot = find(user);
+        return users[slot] != null ? marks[slot] : 0;
+    }
+
+    /**
+     * Set a user's mark to any value, forward or back
+     */
+    public void put(String user, long mark) {
+        int slot = find(user);
+        if (users[slot] == null) {
+            add(slot, user, mark);
+        } else {
+            marks[slot] = mark;
+        }
+    }
+
+    /**
+     * Forget a user's mark
+     * @return their mark (0 if they had none)
+     */
+    public long remove(String user) {
+        int slot = find(user);
+        if (users[slot] == null) {
+            return 0;
+        }
+        long mark = marks[slot];
+        users[slot] = null;
+        size--;
+
+        // Pull later entries of the same run into the hole if their home
+        // slot is at or before it, so probing still finds every user
+        int mask = users.length - 1;
+        int next = (slot + 1) & mask;
+        while (users[next] != null) {
+            int home = home(users[next]);
+            if (((next - home) & mask) >= ((next - slot) & mask)) {
+                users[slot] = users[next];
+                marks[slot] = marks[next];
+                users[next] = null;
+                slot = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return mark;
+    }
+
+    /**
+     * Call an action for every user and mark
+     */
+    public void forEach(Entry action) {
+        for (int i = 0; i < users.length; i++) {
+            if (users[i] != null) {
+                action.accept(users[i], marks[i]);
+            }
+        }
+    }
+
+    /**
+     * Number of users with a mark
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Callback for forEach - takes a primitive long, unlike BiConsumer
+     */
+    public interface Entry {
+        void accept(String user, long mark);
+    }
+
+    /**
+     * Slot holding the user, or the empty slot where they would go
+     */
+    private int find(String user) {
+        int mask = users.length - 1;
+        int slot = home(user);
+        while (users[slot] != null && !users[slot].equals(user)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Slot a user's probe starts at
+     */
+    private int home(String user) {
+        int hash = user.hashCode() * 0x9E3779B9;
+        return (hash ^ (hash >>> 16)) & (users.length - 1);
+    }
+
+    private void add(int slot, String user, long mark) {
+        users[slot] = user;
+        marks[slot] = mark;
+        if (++size * 2 > users.length) {
+            grow();
+        }
+    }
+
+    private void grow() {
+        String[] oldUsers = users;
+        long[] oldMarks = marks;
+        users = new String[oldUsers.length * 2];
+        marks = new long[oldMarks.length * 2];
+
+        for (int i = 0; i < oldUsers.length; i++) {
+            if (oldUsers[i] != null) {
+                int slot = find(oldUsers[i]);
+                users[slot] = oldUsers[i];
+                marks[slot] = oldMarks[i];
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package server;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ReadReceipts.java
+ * Who has read what, kept as one number per reader per conversation
+ *
+ * Every message in a conversation has a conversation seq (1, 2, 3...).
+ * A reader never acknowledges single messages; the client sends one
+ * cumulative "read up to N" per conversation now and then, and the
+ * server keeps only the highest N per reader (ReadMarks).
+ *
+ * Senders are not told about every ack either. flush() runs every
+ * RECEIPT_INTERVAL_MS and, for each conversation that had acks, tells
+ * each sender how many people have read their latest message - only if
+ * that number changed. A room of N people reading M messages therefore
+ * costs N acks per interval and at most one receipt per sender, never
+ * N x M. The marks are also kept in sorted order (MarkIndex), so each of
+ * those counts is a binary search rather than a pass over every reader.
+ * Clients can also ask about any message (query).
+ *
+ * Conversations are keyed like TypingTracker's rooms: "" for the group
+ * chat, "alice+bob" for a private chat, "#ID" for a private session.
+ * Receipts live in memory only; after a restart they start from scratch.
+ * A private conversation is forgotten once none of its members is online,
+ * and a user's marks in the group chat when they log out (removeUser).
+ */
+public class ReadReceipts {
+
+    private static final String GROUP = "";
+
+    /**
+     * Read state of one conversation (guarded by this)
+     */
+    private static class Conversation {
+        final ReadMarks read = new ReadMarks(8);       // reader -> read up to
+        final MarkIndex order = new MarkIndex();       // The same marks, sorted
+        final ReadMarks latest = new ReadMarks(8);     // sender -> seq of their latest message
+        final ReadMarks reported = new ReadMarks(8);   // sender -> readers we last told them about
+        long head;                                     // Highest seq sent so far
+        boolean changed;                               // Someone read something since the last flush
+        boolean dropped;                               // Forgotten - a new one takes its place
+
+        /**
+         * Move a reader's mark forward (caller holds the lock)
+         * @return true if it moved
+         */
+        boolean advance(String reader, long mark) {
+            long before = read.get(reader);
+            if (mark <= before) {
+                return false;
+            }
+            read.put(reader, mark);
+            order.move(reader, before, mark);
+            return true;
+        }
+
+        /**
+         * How many besides one user have read up to seq (caller holds the lock)
+         */
+        int readers(long seq, String except) {
+            int count = order.countAtLeast(seq);
+            return (read.get(except) >= seq) ? count - 1 : count;
+        }
+    }
+
+    /**
+     * A receipt to send once the conversation lock is released
+     */
+    private static class Receipt {
+        final String sender;
+        final Message message;
+
+        Receipt(String sender, Message message) {
+            this.sender = sender;
+            this.message = message;
+        }
+    }
+
+    private final Map<String, UserSession> clients;
+    private final PrivateChatHandler privateChats;
+    private final ConcurrentHashMap<String, Conversation> conversations;
+
+    /**
+     * Constructor
+     * @param clients The server's online users - only read
+     * @param privateChats Private sessions, for membership checks
+     */
+    public ReadReceipts(Map<String, UserSession> clients, PrivateChatHandler privateChats) {
+        this.clients = clients;
+        this.privateChats = privateChats;
+        this.conversations = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Note a message that was just sent with a conversation seq
+     * The sender has obviously read it
+     */
+    public void messageSent(Message message) {
+        long seq = message.getConversationSeq();
+        String sender = message.getSender();
+        if (seq <= 0 || Constants.SYSTEM_SENDER.equals(sender)) {
+            return;
+        }
+
+        String key = conversationKey(sender, message.getRecipient());
+        while (true) {
+            Conversation conversation = conversations.computeIfAbsent(key, k -> new Conversation());
+            synchronized (conversation) {
+                if (conversation.dropped) {
+                    continue;   // Forgotten just now - start a new one
+                }
+                conversation.head = Math.max(conversation.head, seq);
+                conversation.advance(sender, seq);
+                conversation.latest.put(sender, seq);
+                conversation.reported.put(sender, 0);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Handle a READ from a client: an ack (upTo) or a question (seq)
+     */
+    public void handle(Message message, ClientHandler handler) {
+        String user = handler.getUsername();
+        String recipient = message.getRecipient();
+        if (!mayRead(user, recipient)) {
+            return;
+        }
+
+        Map<String, String> fields = ProtocolFields.decode(message.getContent());
+        Conversation conversation = conversations.get(conversationKey(user, recipient));
+        if (conversation == null) {
+            return; // Nothing sent here since the server started
+        }
+
+        if (fields.containsKey("upTo")) {
+            long upTo = parseSeq(fields.get("upTo"));
+            synchronized (conversation) {
+                // Nobody can have read past the newest message
+                if (conversation.advance(user, Math.min(upTo, conversation.head))) {
+                    conversation.changed = true;
+                }
+            }
+        } else if (fields.containsKey("seq")) {
+            long seq = parseSeq(fields.get("seq"));
+            if (seq > 0) {
+                int count;
+                List<String> readers;
+                synchronized (conversation) {
+                    count = conversation.readers(seq, user);
+                    readers = conversation.order.namesAtLeast(seq, user, Constants.RECEIPT_MAX_NAMES);
+                }
+                handler.sendMessage(receipt(recipient, seq, readers, count));
+            }
+        }
+    }
+
+    /**
+     * Forget a user's marks in the group chat (their session ended)
+     * Private conversations are forgotten by flush() once everyone in
+     * them is gone
+     */
+    public void removeUser(String username) {
+        Conversation conversation = conversations.get(GROUP);
+        if (conversation == null) {
+            return;
+        }
+        synchronized (conversation) {
+            long mark = conversation.read.remove(username);
+            if (mark > 0) {
+                conversation.order.move(username, mark, 0);
+                conversation.changed = true;     // Other senders' counts may have dropped
+            }
+            conversation.latest.remove(username);
+            conversation.reported.remove(username);
+        }
+    }
+
+    /**
+     * Tell senders about new readers of their latest message
+     * Also forgets private conversations nobody in them is online for
+     * Runs every RECEIPT_INTERVAL_MS on the server's scheduler
+     */
+    public void flush() {
+        List<Receipt> receipts = new ArrayList<>();
+
+        for (Map.Entry<String, Conversation> entry : conversations.entrySet()) {
+            String key = entry.getKey();
+            Conversation conversation = entry.getValue();
+            synchronized (conversation) {
+                if (!conversation.changed) {
+                    if (!key.equals(GROUP) && !anyoneOnline(conversation)) {
+                        conversation.dropped = true;
+                        conversations.remove(key, conversation);
+                    }
+                    continue;
+                }
+                conversation.changed = false;
+
+                conversation.latest.forEach((sender, seq) -> {
+                    int count = conversation.readers(seq, sender);
+                    if (count != conversation.reported.get(sender)) {
+                        conversation.reported.put(sender, count);
+                        List<String> readers = (count <= Constants.RECEIPT_MAX_NAMES)
+                            ? conversation.order.namesAtLeast(seq, sender, Constants.RECEIPT_MAX_NAMES)
+                            : new ArrayList<>();
+                        receipts.add(new Receipt(sender, receipt(roomFor(key, sender), seq, readers, count)));
+                    }
+                });
+            }
+        }
+
+        for (Receipt receipt : receipts) {
+            UserSession session = clients.get(receipt.sender);
+            ClientHandler handler = (session != null) ? session.getHandler() : null;
+            if (handler != null) {
+                handler.sendMessage(receipt.message);
+            }
+        }
+    }
+
+    /**
+     * Check if any member of a conversation is logged in here (caller holds its lock)
+     * Private conversations have a handful of members, so this is cheap
+     */
+    private boolean anyoneOnline(Conversation conversation) {
+        boolean[] online = new boolean[1];
+        conversation.read.forEach((user, mark) -> {
+            if (clients.containsKey(user)) {
+                online[0] = true;
+            }
+        });
+        return online[0];
+    }
+
+    /**
+     * READ for one message: how many have read it and, if not too many, who
+     */
+    private static Message receipt(String room, long seq, List<String> readers, int count) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("seq", String.valueOf(seq));
+        fields.put("count", String.valueOf(count));
+        if (count <= Constants.RECEIPT_MAX_NAMES) {
+            fields.put("readers", ProtocolFields.encodeList(readers));
+        }
+        return new Message(MessageType.READ, Constants.SYSTEM_SENDER, room, ProtocolFields.encode(fields));
+    }
+
+    /**
+     * Check that a user takes part in a conversation
+     */
+    private boolean mayRead(String user, String recipient) {
+        if (recipient == null) {
+            return true;
+        }
+        if (PrivateChatHandler.isSessionAddress(recipient)) {
+            return privateChats.isMember(recipient, user);
+        }
+        return !recipient.equals(user) && recipient.matches("[a-zA-Z0-9_]{3,20}");
+    }
+
+    /**
+     * The conversation as one of its members addresses it
+     */
+    private static String roomFor(String key, String user) {
+        if (key.equals(GROUP)) {
+            return null;
+        }
+        if (PrivateChatHandler.isSessionAddress(key)) {
+            return key;
+        }
+        String[] pair = key.split("\\+", 2);
+        return pair[0].equals(user) ? pair[1] : pair[0];
+    }
+
+    /**
+     * Key of the conversation a message from user to recipient belongs to
+     */
+    static String conversationKey(String user, String recipient) {
+        if (recipient == null) {
+            return GROUP;
+        }
+        if (PrivateChatHandler.isSessionAddress(recipient)) {
+            return recipient;
+        }
+        return PrivateHistoryStore.pairKey(user, recipient);
+    }
+
+    private static long parseSeq(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,459 @@
+package server;
+
+import common.Constants;
+import common.FileReference;
+import common.Message;
+import common.MessageType;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * SearchIndex.java
+ * Inverted index for full-text search over the chat history
+ *
+ * Every logged public message becomes a document with an increasing id.
+ * For each word, the index keeps the ids of the documents containing it
+ * (its "postings"), stored as gaps between ids so the numbers stay small.
+ * A query intersects the postings of its words, applies the sender,
+ * type and time filters, and returns one page of hits, newest first.
+ *
+ * Only public messages are indexed (broadcasts, public file shares and
+ * system notices). The history log does not record who a private message
+ * went to, so private messages are left out rather than risk showing
+ * them to the wrong user.
+ */
+public class SearchIndex {
+
+    // Same timestamp format Server.logMessage() writes
+    public static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+
+    // [2024-05-01 10:30:00] [10:30] rest-of-line
+    private static final Pattern LOG_LINE =
+            Pattern.compile("^\\[(\\d{4}-\\d{2}-\\d{2} \\d{2}:\\d{2}:\\d{2})\\] \\[\\d{2}:\\d{2}\\] (.*)$");
+    private static final Pattern PRIVATE_LINE = Pattern.compile("^[A-Za-z0-9_]+ \\(private\\).*");
+    private static final Pattern FILE_LINE = Pattern.compile("^([A-Za-z0-9_]+) shared a file: (.*)$");
+    private static final Pattern CHAT_LINE = Pattern.compile("^([A-Za-z0-9_]+): (.*)$");
+
+    private static final Pattern WORD_SPLIT = Pattern.compile("[^\\p{L}\\p{Nd}]+");
+
+    // Documents, indexed by id
+    private long[] times;
+    private String[] senders;
+    private MessageType[] types;
+    private String[] texts;
+    private int documentCount;
+
+    // word -> ids of documents containing it
+    private final Map<String, Postings> index;
+
+    private final ReentrantReadWriteLock lock;
+
+    /**
+     * Sorted document ids for one word, stored as deltas
+     * e.g. ids 3, 7, 8, 20 are stored as 3, 4, 1, 12
+     */
+    private static final class Postings {
+        private int[] deltas = new int[2];
+        private int size;
+        private int lastId = -1;
+
+        void add(int id) {
+            if (id == lastId) {
+                return; // Word appears twice in the same message
+            }
+            if (size == deltas.length) {
+                deltas = Arrays.copyOf(deltas, size * 2);
+            }
+            deltas[size++] = id - Math.max(lastId, 0);
+            lastId = id;
+        }
+
+        /**
+         * Append another segment's postings, shifting its ids by base
+         */
+        void addAll(Postings other, int base) {
+            int id = 0;
+            for (int i = 0; i < other.size; i++) {
+                id += other.deltas[i];
+                add(base + id);
+            }
+        }
+
+        int[] decode() {
+            int[] ids = new int[size];
+            int id = 0;
+            for (int i = 0; i < size; i++) {
+                id += deltas[i];
+                ids[i] = id;
+            }
+            return ids;
+        }
+    }
+
+    /**
+     * One matching message
+     */
+    public static class Hit {
+        public final long time;
+        public final String sender;
+        public final MessageType type;
+        public final String text;
+
+        Hit(long time, String sender, MessageType type, String text) {
+            this.time = time;
+            this.sender = sender;
+            this.type = type;
+            this.text = text;
+        }
+    }
+
+    /**
+     * One page of hits plus the total number of matches
+     */
+    public static class Result {
+        public final int total;
+        public final List<Hit> hits;
+
+        Result(int total, List<Hit> hits) {
+            this.total = total;
+            this.hits = hits;
+        }
+    }
+
+    /**
+     * Part of the history log parsed and indexed on its own thread
+     * Ids are local to the segment until it is merged
+     */
+    private static final class Segment {
+        final List<Hit> documents = new ArrayList<>();
+        final Map<String, Postings> index = new HashMap<>();
+
+        void add(Hit document) {
+            int id = documents.size();
+            documents.add(document);
+            for (String word : tokenize(document.text)) {
+                index.computeIfAbsent(word, w -> new Postings()).add(id);
+            }
+        }
+    }
+
+    /**
+     * Constructor - creates an empty index
+     */
+    public SearchIndex() {
+        this.times = new long[1024];
+        this.senders = new String[1024];
+        this.types = new MessageType[1024];
+        this.texts = new String[1024];
+        this.documentCount = 0;
+        this.index = new HashMap<>();
+        this.lock = new ReentrantReadWriteLock();
+    }
+
+    /**
+     * Check if a message belongs in the index
+     */
+    public static boolean isSearchable(Message message) {
+        return message.isRoomMessage();
+    }
+
+    /**
+     * Index a message as it is logged
+     * @param time When it was logged (epoch millis)
+     */
+    public void add(Message message, long time) {
+        if (!isSearchable(message)) {
+            return;
+        }
+
+        String text = message.getContent();
+        if (message.getType() == MessageType.FILE) {
+            FileReference file = FileReference.fromContent(text);
+            if (file != null) {
+                text = file.getName() + " (" + file.getDisplaySize() + ")";
+            }
+        }
+
+        Hit document = new Hit(time, message.getSender(), message.getType(), text);
+        Set<String> words = tokenize(text);
+
+        lock.writeLock().lock();
+        try {
+            int id = addDocument(document);
+            for (String word : words) {
+                index.computeIfAbsent(word, w -> new Postings()).add(id);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Search the index
+     * @param query Words that must all appear (may be empty to match everything)
+     * @param sender Only messages from this user, or null
+     * @param type Only messages of this type, or null
+     * @param since Only messages at or after this time (epoch millis), or 0
+     * @param until Only messages before this time (epoch millis), or Long.MAX_VALUE
+     * @param page Page number, starting at 1
+     * @param pageSize Hits per page
+     */
+    public Result search(String query, String sender, MessageType type,
+                         long since, long until, int page, int pageSize) {
+        Set<String> words = tokenize(query);
+        int skip = Math.max(0, page - 1) * pageSize;
+        List<Hit> hits = new ArrayList<>();
+        int total = 0;
+
+        lock.readLock().lock();
+        try {
+            int[] candidates = words.isEmpty() ? null : intersect(words);
+            int count = (candidates == null) ? documentCount : candidates.length;
+
+            // Walk backwards so the newest hits come first
+            for (int i = count - 1; i >= 0; i--) {
+                int id = (candidates == null) ? i : candidates[i];
+
+                if (sender != null && !sender.equalsIgnoreCase(senders[id])) {
+                    continue;
+                }
+                if (type != null && type != types[id]) {
+                    continue;
+                }
+                if (times[id] < since || times[id] >= until) {
+                    continue;
+                }
+
+                if (total >= skip && hits.size() < pageSize) {
+                    hits.add(new Hit(times[id], senders[id], types[id], texts[id]));
+                }
+                total++;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        return new Result(total, hits);
+    }
+
+    /**
+     * Ids of documents containing every word, in increasing order
+     * Starts from the rarest word so the working set only shrinks
+     */
+    private int[] intersect(Set<String> words) {
+        List<Postings> lists = new ArrayList<>();
+        for (String word : words) {
+            Postings postings = index.get(word);
+            if (postings == null) {
+                return new int[0];
+            }
+            lists.add(postings);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size, b.size));
+
+        int[] result = lists.get(0).decode();
+        for (int i = 1; i < lists.size() && result.length > 0; i++) {
+            int[] other = lists.get(i).decode();
+            int[] merged = new int[result.length];
+            int size = 0;
+
+            int a = 0;
+            int b = 0;
+            while (a < result.length && b < other.length) {
+                if (result[a] < other[b]) {
+                    a++;
+                } else if (result[a] > other[b]) {
+                    b++;
+                } else {
+                    merged[size++] = result[a];
+                    a++;
+                    b++;
+                }
+            }
+            result = Arrays.copyOf(merged, size);
+        }
+        return result;
+    }
+
+    /**
+     * Rebuild the index from the history log
+     * The log is cut into one chunk per thread; chunks are parsed and
+     * indexed in parallel, then merged in order so ids stay sorted.
+     * @return number of messages indexed
+     */
+    public int rebuild(File logFile, int threads) throws IOException {
+        if (!logFile.exists()) {
+            return 0;
+        }
+
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(logFile))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+
+        int chunkSize = Math.max(1, (lines.size() + threads - 1) / threads);
+        ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "search-rebuild");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        try {
+            List<Future<Segment>> segments = new ArrayList<>();
+            for (int from = 0; from < lines.size(); from += chunkSize) {
+                List<String> chunk = lines.subList(from, Math.min(lines.size(), from + chunkSize));
+                segments.add(pool.submit(() -> parseSegment(chunk)));
+            }
+
+            lock.writeLock().lock();
+            try {
+                for (Future<Segment> future : segments) {
+                    merge(future.get());
+                }
+                return documentCount;
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Index rebuild interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Index rebuild failed: " + e.getCause(), e);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Parse and index one chunk of log lines
+     */
+    private static Segment parseSegment(List<String> lines) {
+        Segment segment = new Segment();
+        for (String line : lines) {
+            Hit document = parseLine(line);
+            if (document != null) {
+                segment.add(document);
+            }
+        }
+        return segment;
+    }
+
+    /**
+     * Turn a history log line back into a document
+     * @return null for lines that are not indexed (private, errors, joins) or malformed
+     */
+    private static Hit parseLine(String line) {
+        Matcher matcher = LOG_LINE.matcher(line);
+        if (!matcher.matches()) {
+            return null;
+        }
+
+        long time;
+        try {
+            time = Message.toEpochMillis(LocalDateTime.parse(matcher.group(1), LOG_TIME));
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+
+        String rest = matcher.group(2);
+        if (PRIVATE_LINE.matcher(rest).matches() || rest.startsWith("ERROR: ") || rest.startsWith(">>> ")) {
+            return null;
+        }
+
+        Matcher file = FILE_LINE.matcher(rest);
+        if (file.matches()) {
+            return new Hit(time, file.group(1), MessageType.FILE, file.group(2));
+        }
+        Matcher chat = CHAT_LINE.matcher(rest);
+        if (chat.matches()) {
+            return new Hit(time, chat.group(1), MessageType.BROADCAST, chat.group(2));
+        }
+        return new Hit(time, Constants.SYSTEM_SENDER, MessageType.SYSTEM, rest);
+    }
+
+    /**
+     * Append a parsed segment, shifting its ids past the current documents
+     * Caller holds the write lock
+     */
+    private void merge(Segment segment) {
+        int base = documentCount;
+        for (Hit document : segment.documents) {
+            addDocument(document);
+        }
+        for (Map.Entry<String, Postings> entry : segment.index.entrySet()) {
+            index.computeIfAbsent(entry.getKey(), w -> new Postings()).addAll(entry.getValue(), base);
+        }
+    }
+
+    /**
+     * Store a document and return its id
+     * Caller holds the write lock
+     */
+    private int addDocument(Hit document) {
+        if (documentCount == times.length) {
+            int capacity = times.length * 2;
+            times = Arrays.copyOf(times, capacity);
+            senders = Arrays.copyOf(senders, capacity);
+            types = Arrays.copyOf(types, capacity);
+            texts = Arrays.copyOf(texts, capacity);
+        }
+
+        int id = documentCount++;
+        times[id] = document.time;
+        senders[id] = document.sender;
+        types[id] = document.type;
+        texts[id] = document.text;
+        return id;
+    }
+
+    /**
+     * Number of indexed messages
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return documentCount;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Split text into distinct lower-case words
+     */
+    static Set<String> tokenize(String text) {
+        Set<String> words = new LinkedHashSet<>();
+        if (text == null) {
+            return words;
+        }
+        for (String word : WORD_SPLIT.split(text.toLowerCase())) {
+            if (!word.isEmpty()) {
+                words.add(word);
+            }
+        }
+        return words;
+    }
+}
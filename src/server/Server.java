@@ -1,17 +1,42 @@
 package server;
 
 import common.Constants;
+import common.FileReference;
+import common.HistoryPage;
 import common.Message;
 import common.MessageType;
+import common.ProtocolFields;
+import common.UnixSocket;
 
 import java.io.*;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
 import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Server.java
@@ -21,80 +46,531 @@ import java.util.concurrent.ConcurrentHashMap;
 public class Server {
 
     private ServerSocket serverSocket;
+    private String transportName = Constants.DEFAULT_TRANSPORT;
+    private Transport transport;
     private boolean running;
+    private boolean stopped;
+    private final int port;
+
+    // Restarts without downtime: the next server binds the same port
+    // (SO_REUSEPORT), this one drains its sessions into it, then exits
+    private boolean reusePort;
+    private volatile boolean draining;
+    private final CountDownLatch drained = new CountDownLatch(1);
+    private FileChannel dataLockFile;
+    private SessionHandoff handoff;
+
+    // Other servers of the cluster - null when running alone
+    private ClusterNode cluster;
+
+    // Links from edge gateways, which hold the client sockets for us - 0 = no edges
+    private int edgePort;
+    private String edgeBind = Constants.EDGE_BIND_ADDRESS;   // Interface the edge port listens on
+    private String edgeSecret = "";                          // Every edge link must present it first
+    private ServerSocket edgeSocket;
+
+    // Socket file for clients on this machine (bots, gateways) - null = TCP only
+    private String unixSocketPath;
+    private ServerSocketChannel unixSocket;
 
     // Thread-safe collections to manage clients
     // ConcurrentHashMap allows multiple threads to access safely
-    private ConcurrentHashMap<String, ClientHandler> clients;  // username -> ClientHandler
-    private List<ClientHandler> clientHandlers;                // List of all handlers
+    private ConcurrentHashMap<String, UserSession> clients;    // username -> session (attached or resumable)
+    private ConcurrentHashMap<String, UserSession> sessionsByToken; // resume token -> session
+    private Set<ClientHandler> clientHandlers;                 // All open connections
+
+    // Background jobs: flushing batched joins
+    private ScheduledExecutorService scheduler;
+
+    // Connection heartbeats, idle reaping and session expiry - no task or thread per connection
+    private TimingWheel timingWheel;
+    private ExecutorService heartbeatPool;
+
+    // Admission control - limits how fast new connections are taken on
+    private TokenBucket acceptLimiter;
+    private ThreadPoolExecutor authPool;
+
+    // Joins and leaves since the last presence update
+    private PresenceDigest presence;
+
+    // Shared files, stored once per content hash
+    private FileStore fileStore;
+    // hash -> FILE messages waiting for that hash to be uploaded
+    private ConcurrentHashMap<String, List<Message>> pendingFiles;
+
+    // Private messages waiting for users who are offline
+    private OfflineQueueStore offlineQueues;
+
+    // Full-text index over the logged public chat history
+    private SearchIndex searchIndex;
+
+    // Indexed room history that clients page through (null if it could not be opened)
+    private HistoryStore historyStore;
+
+    // Text log of the chat, kept open and written in the background (null if logging is off)
+    private PrintWriter chatLog;
+    private final ConcurrentLinkedQueue<String> chatLogLines = new ConcurrentLinkedQueue<>();
+
+    // Private conversations, indexed by pair of users
+    private PrivateHistoryStore privateHistory;
+
+    // Private sessions with more than two people
+    private PrivateChatHandler privateChats;
+
+    // Who is typing where, sent out once per interval
+    private TypingTracker typingTracker;
+
+    // Who has read how far in each conversation
+    private ReadReceipts readReceipts;
 
     /**
-     * Constructor - Initialize the server
+     * Constructor - Initialize the server on the default port
      */
     public Server() {
+        this(Constants.SERVER_PORT);
+    }
+
+    /**
+     * Constructor - Initialize the server
+     * @param port Port clients connect to
+     */
+    public Server(int port) {
+        this.port = port;
         this.clients = new ConcurrentHashMap<>();
-        this.clientHandlers = new ArrayList<>();
+        this.sessionsByToken = new ConcurrentHashMap<>();
+        this.clientHandlers = ConcurrentHashMap.newKeySet();
+        this.pendingFiles = new ConcurrentHashMap<>();
+        this.searchIndex = new SearchIndex();
+        this.privateChats = new PrivateChatHandler(clients);
+        this.typingTracker = new TypingTracker(clients, privateChats);
+        this.readReceipts = new ReadReceipts(clients, privateChats);
+        this.acceptLimiter = new TokenBucket(Constants.ACCEPT_RATE_PER_SECOND, Constants.ACCEPT_BURST);
+        this.presence = new PresenceDigest();
         this.running = false;
     }
 
+    /**
+     * Open the files the server keeps its data in
+     * Only one server at a time may have them open, so this waits until
+     * any server still draining in the same directory has let go
+     */
+    private void openStores() throws IOException {
+        File lockFile = new File(Constants.DATA_LOCK_FILE);
+        lockFile.getParentFile().mkdirs();
+        dataLockFile = new RandomAccessFile(lockFile, "rw").getChannel();
+        if (dataLockFile.tryLock() == null) {
+            System.out.println("Another server is using " + lockFile.getParent() +
+                               " - waiting for it to hand over...");
+            dataLockFile.lock();
+        }
+
+        this.fileStore = new FileStore(new File(Constants.FILE_STORE_PATH), Constants.FILE_STORE_MAX_BYTES);
+        try {
+            this.historyStore = new HistoryStore(new File(Constants.HISTORY_STORE_PATH));
+        } catch (IOException e) {
+            System.err.println("Error opening history store, scrollback disabled: " + e.getMessage());
+        }
+        this.privateHistory = new PrivateHistoryStore(new File(Constants.PRIVATE_HISTORY_PATH));
+        this.offlineQueues = new OfflineQueueStore(new File(Constants.OFFLINE_QUEUE_PATH),
+                                                   Constants.OFFLINE_QUEUE_MAX_BYTES,
+                                                   Constants.OFFLINE_MESSAGE_TTL_MS);
+        this.handoff = new SessionHandoff(new File(Constants.HANDOFF_PATH));
+
+        if (Constants.ENABLE_LOGGING) {
+            File logFile = new File(Constants.CHAT_HISTORY_FILE);
+            logFile.getParentFile().mkdirs();
+            this.chatLog = new PrintWriter(new BufferedWriter(new FileWriter(logFile, true)));
+        }
+    }
+
+    /**
+     * Listen on a port - shared with other server processes if reusePort is on
+     * A deep backlog lets the OS hold connections we are not ready to accept yet
+     */
+    private ServerSocket listen(int port, boolean withChannel) throws IOException {
+        return listen(new InetSocketAddress(port), withChannel);
+    }
+
+    /**
+     * Listen on one interface's address only
+     */
+    private ServerSocket listen(InetSocketAddress address, boolean withChannel) throws IOException {
+        // The NIO transport needs the socket's channel
+        ServerSocket socket = withChannel ? ServerSocketChannel.open().socket() : new ServerSocket();
+        if (reusePort) {
+            enableReusePort(socket);
+        }
+        socket.bind(address, Constants.ACCEPT_BACKLOG);
+        return socket;
+    }
+
+    /**
+     * Turn on SO_REUSEPORT, so several processes can listen on one port
+     * and the kernel spreads new connections between them
+     * The option only exists from Java 9 on, hence the reflection
+     */
+    private static void enableReusePort(ServerSocket socket) {
+        try {
+            Object option = StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class)
+                              .invoke(socket, option, Boolean.TRUE);
+        } catch (NoSuchFieldException | NoSuchMethodException | IllegalAccessException e) {
+            System.err.println("SO_REUSEPORT needs Java 9 or newer - port will not be shared");
+        } catch (InvocationTargetException e) {
+            System.err.println("SO_REUSEPORT is not supported here - port will not be shared (" +
+                               e.getCause() + ")");
+        }
+    }
+
     /**
      * Start the server and listen for connections
      */
     public void start() {
         try {
-            // Create server socket on specified port
-            serverSocket = new ServerSocket(Constants.SERVER_PORT);
+            // Listen first: while we wait for a draining server to hand over,
+            // its clients reconnect into our backlog instead of being refused
+            boolean nio = "nio".equals(transportName);
+            serverSocket = listen(port, nio);
             running = true;
 
+            openStores();
+
+            // Rebuild the search index from the history log before anyone can search
+            rebuildSearchIndex();
+
             System.out.println("TPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPW");
             System.out.println("Q   Enhanced Chat Server Started Successfully  Q");
             System.out.println("ZPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPPP]");
-            System.out.println("Server listening on port: " + Constants.SERVER_PORT);
+            System.out.println("Server listening on port: " + port + " (" + transportName + " transport)");
             System.out.println("Maximum clients: " + Constants.MAX_CLIENTS);
             System.out.println("Waiting for client connections...\n");
 
+            // Logins run on a small fixed pool with a bounded queue,
+            // so a reconnect storm can't spawn thousands of threads at once
+            authPool = new ThreadPoolExecutor(Constants.AUTH_THREADS, Constants.AUTH_THREADS,
+                    0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(Constants.MAX_PENDING_AUTH),
+                    r -> new Thread(r, "auth-worker"));
+
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "server-scheduler");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            // One thread tracks every connection's heartbeat and idle deadline
+            heartbeatPool = Executors.newFixedThreadPool(2, r -> {
+                Thread thread = new Thread(r, "heartbeat-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+            timingWheel = new TimingWheel(Constants.TIMING_WHEEL_TICK_MS, Constants.TIMING_WHEEL_SIZE,
+                                          heartbeatPool);
+            timingWheel.start();
+
+            // Link up with the rest of the cluster before taking users
+            if (cluster != null) {
+                cluster.start();
+            }
+
+            // Sessions the previous server handed over, ready to be resumed
+            adoptHandedOffSessions();
+
+            // Edge gateways connect here and bring their clients with them
+            if (edgePort > 0) {
+                startEdgeListener();
+            }
+
+            // Local clients can skip the TCP stack
+            if (unixSocketPath != null) {
+                startUnixListener();
+            }
+
+            // Announce new users in batches instead of one broadcast each
+            scheduler.scheduleAtFixedRate(this::flushPresence,
+                    Constants.PRESENCE_BATCH_MS, Constants.PRESENCE_BATCH_MS, TimeUnit.MILLISECONDS);
+
+            // Typing indicators go out coalesced, one update per room per interval
+            scheduler.scheduleAtFixedRate(typingTracker::flush,
+                    Constants.TYPING_INTERVAL_MS, Constants.TYPING_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            // Senders hear about new readers in batches, not per ack
+            scheduler.scheduleAtFixedRate(readReceipts::flush,
+                    Constants.RECEIPT_INTERVAL_MS, Constants.RECEIPT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+
+            // Logged lines are only appended to a buffer on the send path
+            scheduler.scheduleAtFixedRate(this::flushChatLog,
+                    Constants.CHAT_HISTORY_FLUSH_MS, Constants.CHAT_HISTORY_FLUSH_MS, TimeUnit.MILLISECONDS);
+
             // Main server loop - accept client connections
-            while (running) {
-                try {
-                    // Wait for a client to connect (blocking call)
-                    Socket clientSocket = serverSocket.accept();
-
-                    // Check if server is full
-                    if (clientHandlers.size() >= Constants.MAX_CLIENTS) {
-                        System.out.println("Server full. Rejecting connection from: " +
-                                         clientSocket.getInetAddress().getHostAddress());
-
-                        // Send rejection message and close
-                        PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-                        out.println(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
-                                              "Server is full. Try again later.").toProtocol());
-                        clientSocket.close();
-                        continue;
+            // The transport only decides how sockets are read; every client
+            // ends up in admitConnection either way
+            transport = nio ? new NioTransport(serverSocket.getChannel(), acceptLimiter, this)
+                            : new BlockingTransport(serverSocket, acceptLimiter, this);
+            transport.serve();
+
+            // Stopped accepting to drain - stop once everyone is handed over
+            if (draining) {
+                drained.await();
+            }
+
+        } catch (IOException e) {
+            System.err.println("Could not start server: " + e.getMessage());
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            stop();
+        }
+    }
+
+    /**
+     * Take on the sessions a draining server left for us
+     * They stay online without a join announcement - as far as everyone
+     * is concerned they never left - and can be resumed for the usual
+     * grace period
+     */
+    private void adoptHandedOffSessions() {
+        List<UserSession.Snapshot> snapshots = handoff.takeAll();
+        for (UserSession.Snapshot snapshot : snapshots) {
+            UserSession session = new UserSession(snapshot);
+            synchronized (this) {
+                if (clients.putIfAbsent(session.getUsername(), session) != null) {
+                    continue;
+                }
+                sessionsByToken.put(session.getToken(), session);
+                if (cluster != null) {
+                    cluster.userJoined(session.getUsername());
+                }
+            }
+            timingWheel.schedule(() -> expireSession(session),
+                                 Constants.RESUME_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        if (!snapshots.isEmpty()) {
+            System.out.println("Adopted " + snapshots.size() + " sessions from the previous server");
+        }
+    }
+
+    /**
+     * Hand every session over to the server replacing this one, then stop
+     * The new server is started first, on the same port (--reuse-port).
+     * Once this one stops accepting, every new connection goes to the new
+     * server. Connections are closed in small batches, so the clients come
+     * back spread out rather than all at once; they reconnect into the new
+     * server's backlog, which waits for our data lock before taking anyone.
+     *
+     * A closed connection only detaches its session: users not closed yet
+     * keep chatting, and what they send still lands in the replay buffers
+     * of those already gone. The sessions are saved for the new server
+     * last, once no connection is left to add to them, so each client
+     * resumes there with its token, missing nothing.
+     */
+    public void drain() {
+        synchronized (this) {
+            if (!running || draining) {
+                return;
+            }
+            draining = true;
+        }
+
+        System.out.println("\nDraining: handing " + clients.size() + " sessions over to the next server...");
+        closeQuietly(serverSocket);
+        closeQuietly(edgeSocket);
+        closeQuietly(unixSocket);
+
+        long deadline = System.currentTimeMillis() + Constants.DRAIN_TIMEOUT_MS;
+        try {
+            // Users still logging in may attach sessions, so go until none are left
+            while (System.currentTimeMillis() < deadline) {
+                int batch = 0;
+                for (UserSession session : clients.values()) {
+                    ClientHandler handler = session.getHandler();
+                    if (handler != null) {
+                        handler.disconnect();    // Detaches the session, see unregisterClient
+                        if (++batch == Constants.DRAIN_BATCH) {
+                            break;
+                        }
                     }
+                }
+                if (batch == 0) {
+                    break;
+                }
+                Thread.sleep(Constants.DRAIN_BATCH_INTERVAL_MS);
+            }
 
-                    // Create a new thread to handle this client
-                    ClientHandler clientHandler = new ClientHandler(clientSocket, this);
-                    clientHandlers.add(clientHandler);
+            // Give closing connections (and logins in progress) time to finish
+            while (!clientHandlers.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(Constants.DRAIN_BATCH_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
 
-                    // Start the client handler thread
-                    new Thread(clientHandler).start();
+        // Nobody is left to send anything - save the sessions as they are now
+        int handedOver = 0;
+        for (UserSession session : clients.values()) {
+            if (handOff(session)) {
+                handedOver++;
+            }
+        }
 
-                    System.out.println("New connection from: " +
-                                     clientSocket.getInetAddress().getHostAddress());
-                    System.out.println("Active connections: " + clientHandlers.size() + "\n");
+        System.out.println("Drained: " + handedOver + " sessions handed over");
+        stop();
+        drained.countDown();
+    }
+
+    /**
+     * Save one session for the next server and close its connection, if
+     * it still has one (the drain ran out of time)
+     * Nobody is told the user left - they will be back in a moment
+     */
+    private boolean handOff(UserSession session) {
+        UserSession.Snapshot snapshot = session.handOff();
+        if (snapshot == null) {
+            return false; // Ended meanwhile, removeSession takes care of it
+        }
+
+        boolean saved = true;
+        try {
+            handoff.save(snapshot);
+        } catch (IOException e) {
+            System.err.println("Error handing over session of " + snapshot.username + ": " + e.getMessage());
+            saved = false;
+        }
 
+        sessionsByToken.remove(snapshot.token);
+        clients.remove(snapshot.username, session);
+        if (snapshot.handler != null) {
+            snapshot.handler.disconnect();
+        }
+        return saved;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null) {
+            return;
+        }
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // Already closed
+        }
+    }
+
+    /**
+     * Accept links from edge gateways on their own thread
+     */
+    private void startEdgeListener() throws IOException {
+        edgeSocket = listen(new InetSocketAddress(edgeBind, edgePort), false);
+        System.out.println("Accepting edge gateways on " + edgeBind + ":" + edgePort +
+                           (edgeSecret.isEmpty() ? "" : " (shared secret required)"));
+
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    new EdgeLink(edgeSocket.accept(), edgeSecret, this).start();
                 } catch (IOException e) {
                     if (running) {
-                        System.err.println("Error accepting client connection: " + e.getMessage());
+                        System.err.println("Error accepting edge link: " + e.getMessage());
+                    }
+                }
+            }
+        }, "edge-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    /**
+     * Accept clients on the Unix domain socket on their own thread
+     * They are handled exactly like TCP clients from here on
+     */
+    private void startUnixListener() throws IOException {
+        unixSocket = UnixSocket.listen(unixSocketPath, Constants.ACCEPT_BACKLOG);
+        System.out.println("Accepting local clients on: " + unixSocketPath);
+
+        Thread acceptor = new Thread(() -> {
+            while (running) {
+                try {
+                    admitConnection(new SocketConnection(UnixSocket.accept(unixSocket, unixSocketPath)));
+                } catch (IOException e) {
+                    if (running && !draining) {
+                        System.err.println("Error accepting local client: " + e.getMessage());
+                    }
+                    if (!unixSocket.isOpen()) {
+                        return;
                     }
                 }
             }
+        }, "unix-accept");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
 
+    /**
+     * Take on a new client connection - from our own socket or from an edge gateway
+     * The login is queued on the auth pool; the client gets its own
+     * thread only once logged in
+     */
+    public void admitConnection(Connection connection) {
+        // Draining - only the server replacing us takes new connections
+        if (draining) {
+            rejectConnection(connection, "Server is restarting. Try again in a moment.");
+            return;
+        }
+
+        // Check if server is full
+        if (clientHandlers.size() >= Constants.MAX_CLIENTS) {
+            System.out.println("Server full. Rejecting connection from: " + connection.getRemoteAddress());
+            rejectConnection(connection, "Server is full. Try again later.");
+            return;
+        }
+
+        ClientHandler clientHandler = new ClientHandler(connection, this);
+        clientHandlers.add(clientHandler);
+
+        // Queue the login - its own thread starts only once logged in
+        try {
+            authPool.execute(clientHandler::authenticateConnection);
+        } catch (RejectedExecutionException e) {
+            clientHandlers.remove(clientHandler);
+            System.out.println("Too many pending logins. Rejecting connection from: " +
+                               connection.getRemoteAddress());
+            rejectConnection(connection, "Server is busy. Try again later.");
+            return;
+        }
+
+        System.out.println("New connection from: " + connection.getRemoteAddress());
+        System.out.println("Active connections: " + clientHandlers.size() + "\n");
+    }
+
+    /**
+     * Take on a client an edge gateway opened on its link
+     * Paced by the same accept rate as our own sockets - the link itself
+     * was only paced once, when it connected
+     */
+    public void admitEdgeConnection(Connection connection) {
+        if (!acceptLimiter.tryAcquire()) {
+            rejectConnection(connection, "Server is busy. Try again later.");
+            return;
+        }
+        admitConnection(connection);
+    }
+
+    /**
+     * Send an error to a connection we won't serve, then close it
+     */
+    private void rejectConnection(Connection connection, String reason) {
+        try {
+            connection.write(Collections.singletonList(
+                new Message(MessageType.ERROR, Constants.SYSTEM_SENDER, reason).toProtocol()));
         } catch (IOException e) {
-            System.err.println("Could not start server: " + e.getMessage());
-            e.printStackTrace();
-        } finally {
-            stop();
+            // Gone already
+        }
+        try {
+            connection.close();
+        } catch (IOException e) {
+            System.err.println("Error closing rejected connection: " + e.getMessage());
         }
     }
 
@@ -102,6 +578,13 @@ public class Server {
      * Stop the server and disconnect all clients
      */
     public void stop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+        }
+
         try {
             running = false;
 
@@ -112,10 +595,48 @@ public class Server {
                 handler.disconnect();
             }
 
-            // Close server socket
+            if (cluster != null) {
+                System.out.print("Cluster links:\n" + cluster.describeLinks());
+                cluster.stop();
+            }
+            if (scheduler != null) {
+                scheduler.shutdownNow();
+            }
+            if (timingWheel != null) {
+                timingWheel.stop();
+                heartbeatPool.shutdownNow();
+            }
+            if (authPool != null) {
+                authPool.shutdownNow();
+            }
+            if (offlineQueues != null) {
+                offlineQueues.close();
+                privateHistory.close();
+            }
+            if (historyStore != null) {
+                historyStore.close();
+            }
+            if (chatLog != null) {
+                flushChatLog();
+                chatLog.close();
+            }
+
+            // Close server sockets
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
             }
+            if (edgeSocket != null && !edgeSocket.isClosed()) {
+                edgeSocket.close();
+            }
+            closeQuietly(unixSocket);
+            if (transport != null) {
+                transport.shutdown();
+            }
+
+            // Let the next server have the data files
+            if (dataLockFile != null) {
+                dataLockFile.close();
+            }
 
             System.out.println("Server stopped successfully.");
 
@@ -126,42 +647,264 @@ public class Server {
 
     /**
      * Register a client with their username
-     * Called by ClientHandler after successful login
+     * Called by ClientHandler after successful login, once its outbound
+     * lanes are running. Only the registration itself holds the server
+     * lock; the offline backlog is queued on the lanes after it, so a
+     * client that stops reading cannot hold up anyone else.
      */
-    public synchronized boolean registerClient(String username, ClientHandler handler) {
-        // Check if username is already taken
-        if (clients.containsKey(username)) {
+    public boolean registerClient(String username, ClientHandler handler) {
+        UserSession session;
+        synchronized (this) {
+            session = register(username, handler);
+        }
+        if (session == null) {
             return false;
         }
 
+        // Hand over private messages that arrived while the user was away
+        try {
+            offlineQueues.createQueue(username);
+        } catch (IOException e) {
+            System.err.println("Error creating offline queue for " + username + ": " + e.getMessage());
+        }
+        deliverOfflineMessages(session);
+
+        return true;
+    }
+
+    /**
+     * Create and publish a user's session (caller holds the server lock)
+     * @return the new session, or null if the name is taken
+     */
+    private UserSession register(String username, ClientHandler handler) {
+        UserSession existing = clients.get(username);
+
+        // Check if username is already taken by a connected user
+        // A dropped session with the same name is ended and replaced
+        if (existing != null && !existing.endIfDetached()) {
+            return null;
+        }
+        // ...or logged in on another node of the cluster
+        if (cluster != null && cluster.nodeOf(username) != null) {
+            return null;
+        }
+
         // Register the client
-        clients.put(username, handler);
-        System.out.println(" User registered: " + username + " (Total users: " + clients.size() + ")");
+        UserSession session = new UserSession(username, handler);
 
-        // Notify all clients that new user joined
-        broadcastMessage(Message.systemMessage(username + " joined the chat"));
+        // ACCEPT goes out before the session is visible, so it is always
+        // the first frame - no broadcast can overtake it
+        List<String> users = getOnlineUsers();
+        if (!users.contains(username)) {
+            users.add(username);
+        }
+        handler.sendMessage(buildAccept(session, users, false));
 
-        // Send welcome message to the new user
-        handler.sendMessage(Message.systemMessage(Constants.WELCOME_MESSAGE));
+        clients.put(username, session);
+        sessionsByToken.put(session.getToken(), session);
+        System.out.println(" User registered: " + username + " (Total users: " + clients.size() + ")");
 
-        // Send list of online users to the new client
-        sendUserList(handler);
+        if (existing != null) {
+            // Same user came back without a resume token - replace the dropped
+            // session quietly, as far as everyone else knows they never left
+            sessionsByToken.remove(existing.getToken());
+            privateChats.replaceUser(existing, session);
+        } else {
+            // Notify all clients that new user joined (batched - see flushPresence)
+            presence.joined(username);
+            if (cluster != null) {
+                cluster.userJoined(username);
+            }
+        }
 
-        return true;
+        return session;
     }
 
     /**
-     * Unregister a client (when they disconnect)
+     * Drain a user's offline queue into their session
+     * Queued on the connection's lanes in one go - never written here
      */
-    public synchronized void unregisterClient(String username, ClientHandler handler) {
-        clients.remove(username);
+    private void deliverOfflineMessages(UserSession session) {
+        List<Message> messages;
+        try {
+            messages = offlineQueues.drain(session.getUsername());
+        } catch (IOException e) {
+            System.err.println("Error reading offline queue for " + session.getUsername() + ": " + e.getMessage());
+            return;
+        }
+
+        if (messages.isEmpty()) {
+            return;
+        }
+
+        messages.add(0, Message.systemMessage("You have " + messages.size() +
+                                              " message(s) that arrived while you were away:"));
+        session.deliverAll(messages);
+
+        System.out.println(" Delivered " + (messages.size() - 1) + " queued messages to " + session.getUsername());
+    }
+
+    /**
+     * Resume a dropped session with its token
+     * Replays missed messages and skips the join broadcast
+     * @return the session's username, or null if the token is unknown or expired
+     */
+    public String resumeClient(String token, long lastSeenSeq, ClientHandler handler) {
+        UserSession session = sessionsByToken.get(token);
+        if (session == null) {
+            return null;
+        }
+
+        Message accept = buildAccept(session, getOnlineUsers(), true);
+        if (!session.resume(handler, lastSeenSeq, accept)) {
+            return null;
+        }
+        return session.getUsername();
+    }
+
+    /**
+     * Build the ACCEPT frame answering a client's HELLO
+     * Everything the client needs to start is in this one frame
+     */
+    private Message buildAccept(UserSession session, List<String> users, boolean resumed) {
+        Map<String, String> fields = new LinkedHashMap<>();
+        fields.put("welcome", Constants.WELCOME_MESSAGE);
+        fields.put("users", ProtocolFields.encodeList(users));
+        List<String> caps = new ArrayList<>(Arrays.asList(Constants.CAP_FILES, Constants.CAP_RESUME,
+                                                          Constants.CAP_SEARCH, Constants.CAP_PRIVATE_HISTORY,
+                                                          Constants.CAP_RECEIPTS));
+        if (historyStore != null) {
+            caps.add(Constants.CAP_HISTORY);
+            // Room messages from this id on arrive live; older ones are paged in
+            fields.put("history", String.valueOf(historyStore.getHead()));
+        }
+        fields.put("caps", ProtocolFields.encodeList(caps));
+        fields.put("token", session.getToken());
+        fields.put("resumed", String.valueOf(resumed));
+
+        return new Message(MessageType.ACCEPT, Constants.SYSTEM_SENDER, session.getUsername(),
+                           ProtocolFields.encode(fields));
+    }
+
+    /**
+     * Unregister a connection (when it closes)
+     * The user's session stays resumable for a grace period
+     */
+    public void unregisterClient(String username, ClientHandler handler) {
         clientHandlers.remove(handler);
 
-        System.out.println(" User disconnected: " + username + " (Total users: " + clients.size() + ")");
+        if (username == null) {
+            return; // Never logged in
+        }
 
-        // Notify all clients that user left
-        if (username != null) {
-            broadcastMessage(Message.systemMessage(username + " left the chat"));
+        UserSession session = clients.get(username);
+        if (session != null && session.detach(handler)) {
+            // Free the username if the client doesn't come back in time
+            timingWheel.schedule(() -> expireSession(session),
+                                 Constants.RESUME_GRACE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        System.out.println(" Connection dropped: " + username + " (Open connections: " + clientHandlers.size() + ")");
+    }
+
+    /**
+     * End a user's session for good (explicit logout)
+     */
+    public void endSession(String username) {
+        UserSession session = clients.get(username);
+        if (session != null) {
+            session.end();
+            removeSession(session);
+        }
+    }
+
+    /**
+     * End a session that stayed detached past the grace period
+     * Runs on the timing wheel; does nothing if the user came back
+     */
+    private void expireSession(UserSession session) {
+        if (session.expireIfDetached(System.currentTimeMillis())) {
+            removeSession(session);
+        }
+    }
+
+    /**
+     * Timing wheel shared by all connections
+     */
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Private sessions with more than two people
+     */
+    public PrivateChatHandler getPrivateChats() {
+        return privateChats;
+    }
+
+    /**
+     * Who is typing where
+     */
+    public TypingTracker getTypingTracker() {
+        return typingTracker;
+    }
+
+    /**
+     * Read receipts of every conversation
+     */
+    public ReadReceipts getReadReceipts() {
+        return readReceipts;
+    }
+
+    /**
+     * Announce everyone who joined or left since the last flush
+     * User lists get one PRESENCE delta, the chat gets one line per user -
+     * or a count when there are many. During a reconnect storm this turns
+     * thousands of join and leave broadcasts into a few per batch window.
+     */
+    private void flushPresence() {
+        PresenceDigest.Batch batch = presence.drain();
+        if (batch == null) {
+            return;
+        }
+
+        int online = clients.size() + (cluster != null ? cluster.getRemoteUserCount() : 0);
+        FrameTemplate delta = new FrameTemplate(batch.toDelta(online));
+        for (UserSession session : clients.values()) {
+            session.deliver(delta);
+        }
+
+        // Every node announces the changes it hears about to its own users,
+        // so the digest lines are not passed on to the cluster
+        for (Message line : batch.toDigest()) {
+            deliverBroadcast(line);
+        }
+    }
+
+    /**
+     * Remove an ended session and tell everyone the user left
+     */
+    private void removeSession(UserSession session) {
+        sessionsByToken.remove(session.getToken());
+
+        boolean removed;
+        // Locked like registerClient, so a user logging in at the same time
+        // either sees this user in their snapshot or hears that they left
+        synchronized (this) {
+            removed = clients.remove(session.getUsername(), session);
+            if (removed) {
+                // Notify all clients that user left (batched - see flushPresence)
+                presence.left(session.getUsername());
+                if (cluster != null) {
+                    cluster.userLeft(session.getUsername());
+                }
+            }
+        }
+
+        if (removed) {
+            System.out.println(" User left: " + session.getUsername() + " (Total users: " + clients.size() + ")");
+            privateChats.removeUser(session.getUsername());
+            readReceipts.removeUser(session.getUsername());
         }
     }
 
@@ -170,14 +913,29 @@ public class Server {
      * Used for group chat messages and system notifications
      */
     public void broadcastMessage(Message message) {
+        deliverBroadcast(message);
+
+        // ...and on every other node of the cluster
+        if (cluster != null) {
+            cluster.publishBroadcast(message);
+        }
+    }
+
+    /**
+     * Log a room message and deliver it to this node's users
+     */
+    private void deliverBroadcast(Message message) {
         System.out.println("Broadcasting: " + message.toDisplayFormat());
 
-        // Log the message
+        // Log the message (this gives room messages their conversation seq)
         logMessage(message);
+        readReceipts.messageSent(message);
 
-        // Send to all clients
-        for (ClientHandler handler : clientHandlers) {
-            handler.sendMessage(message);
+        // Send to all users - each gets it under their own sequence number,
+        // stamped on a frame that is encoded only once
+        FrameTemplate frame = new FrameTemplate(message);
+        for (UserSession session : clients.values()) {
+            session.deliver(frame);
         }
     }
 
@@ -194,48 +952,256 @@ public class Server {
         // Log the private message
         logMessage(message);
 
-        // Find recipient's handler
-        ClientHandler recipientHandler = clients.get(recipient);
+        // Find recipient's session (may be briefly disconnected - it will be replayed)
+        UserSession recipientSession = clients.get(recipient);
+        UserSession senderSession = clients.get(sender);
+
+        if (recipientSession != null) {
+            // Keep it in the conversation's history (queued, written in the background)
+            privateHistory.append(message, System.currentTimeMillis());
+            readReceipts.messageSent(message);
 
-        if (recipientHandler != null) {
             // Send to recipient
-            recipientHandler.sendMessage(message);
+            recipientSession.deliver(message);
 
             // Also send confirmation to sender (so they see their own message)
-            ClientHandler senderHandler = clients.get(sender);
-            if (senderHandler != null) {
-                senderHandler.sendMessage(message);
+            if (senderSession != null) {
+                senderSession.deliver(message);
+            }
+        } else if (cluster != null && cluster.sendPrivate(message)) {
+            // Recipient is on another node - it delivers, we keep our side of the conversation
+            privateHistory.append(message, System.currentTimeMillis());
+            readReceipts.messageSent(message);
+
+            if (senderSession != null) {
+                senderSession.deliver(message);
+            }
+        } else if (queueOfflineMessage(message)) {
+            // The queued copy has no conversation seq yet; acks are cumulative,
+            // so reading any later message covers it
+            privateHistory.append(message, System.currentTimeMillis());
+            readReceipts.messageSent(message);
+
+            // Recipient is away - the message waits in their offline queue
+            if (senderSession != null) {
+                senderSession.deliver(message);
+                senderSession.deliver(new Message(MessageType.SYSTEM,
+                                                  Constants.SYSTEM_SENDER,
+                                                  sender,
+                                                  "User '" + recipient + "' is offline - message queued for delivery."));
             }
         } else {
-            // Recipient not found - send error to sender
-            ClientHandler senderHandler = clients.get(sender);
-            if (senderHandler != null) {
+            // Recipient unknown, or their queue is full - send error to sender
+            if (senderSession != null) {
+                String reason = offlineQueues.hasQueue(recipient)
+                                ? "User '" + recipient + "' is offline and their message queue is full."
+                                : "User '" + recipient + "' is not online.";
                 Message errorMsg = new Message(MessageType.ERROR,
                                               Constants.SYSTEM_SENDER,
                                               sender,
-                                              "User '" + recipient + "' is not online.");
-                senderHandler.sendMessage(errorMsg);
+                                              reason);
+                senderSession.deliver(errorMsg);
             }
         }
     }
 
     /**
-     * Send list of online users to a specific client
+     * A room message sent on another node of the cluster
+     * Logged here too, so every node's history has the whole room
      */
-    public void sendUserList(ClientHandler handler) {
-        StringBuilder userList = new StringBuilder("Online users: ");
-        for (String username : clients.keySet()) {
-            userList.append(username).append(", ");
+    public void deliverRemoteBroadcast(Message message) {
+        deliverBroadcast(message);
+    }
+
+    /**
+     * A private message from a user on another node to a user on this one
+     */
+    public void deliverRemotePrivate(Message message) {
+        System.out.println("Private message (cluster): " + message.getSender() + " -> " + message.getRecipient());
+        logMessage(message);
+
+        UserSession recipientSession = clients.get(message.getRecipient());
+        if (recipientSession != null) {
+            privateHistory.append(message, System.currentTimeMillis());
+            recipientSession.deliver(message);
+        } else if (queueOfflineMessage(message)) {
+            // Left just as it arrived - waits in their offline queue
+            privateHistory.append(message, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * A user logged in on another node
+     */
+    public void remoteUserJoined(String username) {
+        presence.joined(username);
+    }
+
+    /**
+     * A user left another node (or that node went away)
+     */
+    public void remoteUserLeft(String username) {
+        presence.left(username);
+    }
+
+    /**
+     * Users logged in on this node, for the cluster's directory
+     */
+    public List<String> getLocalUsers() {
+        return new ArrayList<>(clients.keySet());
+    }
+
+    /**
+     * Open connections, logged in or not
+     */
+    public int getConnectionCount() {
+        return clientHandlers.size();
+    }
+
+    /**
+     * Put a private message in the recipient's offline queue
+     * @return false if the recipient has never logged in or their queue is full
+     */
+    private boolean queueOfflineMessage(Message message) {
+        String recipient = message.getRecipient();
+
+        try {
+            if (!offlineQueues.enqueue(recipient, message)) {
+                return false;
+            }
+        } catch (IOException e) {
+            System.err.println("Error queueing message for " + recipient + ": " + e.getMessage());
+            return false;
+        }
+
+        // The recipient may have logged in while we were queueing -
+        // drain again so the message is not stuck until their next login
+        UserSession recipientSession = clients.get(recipient);
+        if (recipientSession != null) {
+            deliverOfflineMessages(recipientSession);
+        }
+        return true;
+    }
+
+    /**
+     * Share a file (FILE message carrying a hash reference)
+     * If the content is already stored, it goes out right away.
+     * Otherwise the sender is asked to upload it once, and the message
+     * is held until the upload arrives.
+     */
+    public void shareFile(Message message, ClientHandler senderHandler) {
+        FileReference file = FileReference.fromContent(message.getContent());
+
+        if (file == null || file.getSize() > Constants.MAX_FILE_SIZE) {
+            senderHandler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                                 "Invalid file or file too large."));
+            return;
+        }
+
+        if (fileStore.contains(file.getHash())) {
+            System.out.println("File already stored, skipping upload: " + file.getName());
+            deliverFile(message);
+            return;
+        }
+
+        // Hold the message until the bytes arrive, then ask for them
+        pendingFiles.compute(file.getHash(), (hash, waiting) -> {
+            List<Message> list = (waiting != null) ? waiting : new ArrayList<>();
+            list.add(message);
+            return list;
+        });
+
+        if (fileStore.contains(file.getHash())) {
+            // Upload finished while we were queueing
+            releasePendingFiles(file.getHash());
+        } else {
+            senderHandler.sendMessage(new Message(MessageType.FILE_UPLOAD, Constants.SYSTEM_SENDER,
+                                                 file.getHash()));
+        }
+    }
+
+    /**
+     * Receive uploaded file content (HASH:BASE64_DATA)
+     * Stores it and releases every FILE message that was waiting for it
+     */
+    public void receiveFileUpload(Message message, ClientHandler senderHandler) {
+        String[] parts = message.getContent().split(":", 2);
+        if (parts.length < 2 || !FileReference.isValidHash(parts[0])) {
+            return;
+        }
+        String hash = parts[0];
+
+        try {
+            byte[] data = Base64.getDecoder().decode(parts[1]);
+            if (data.length > Constants.MAX_FILE_SIZE || !fileStore.store(hash, data)) {
+                pendingFiles.remove(hash);
+                senderHandler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                                     "File upload rejected."));
+                return;
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Error storing uploaded file: " + e.getMessage());
+            pendingFiles.remove(hash);
+            return;
+        }
+
+        releasePendingFiles(hash);
+    }
+
+    /**
+     * Deliver every FILE message that was waiting for this hash
+     */
+    private void releasePendingFiles(String hash) {
+        List<Message> waiting = pendingFiles.remove(hash);
+        if (waiting != null) {
+            for (Message fileMessage : waiting) {
+                deliverFile(fileMessage);
+            }
+        }
+    }
+
+    /**
+     * Send file content to a client that asked for it (FILE_FETCH)
+     * Recipients only download files they actually open
+     */
+    public void sendFileContent(Message message, ClientHandler handler) {
+        String hash = message.getContent();
+
+        try {
+            byte[] data = FileReference.isValidHash(hash) ? fileStore.load(hash) : null;
+
+            if (data == null) {
+                handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                               "File is no longer available on the server."));
+                return;
+            }
+
+            handler.sendMessage(new Message(MessageType.FILE_DATA, Constants.SYSTEM_SENDER,
+                                           hash + ":" + Base64.getEncoder().encodeToString(data)));
+        } catch (IOException e) {
+            System.err.println("Error loading file " + hash + ": " + e.getMessage());
         }
+    }
 
-        // Remove trailing comma
-        if (userList.length() > 14) {
-            userList.setLength(userList.length() - 2);
+    /**
+     * Deliver a FILE reference like any other message
+     * No recipient means it is shared with everyone
+     */
+    private void deliverFile(Message message) {
+        if (message.getRecipient() == null) {
+            broadcastMessage(message);
+        } else {
+            sendPrivateMessage(message);
         }
+    }
 
+    /**
+     * Send list of online users to a specific client
+     */
+    public void sendUserList(ClientHandler handler) {
         Message userListMsg = new Message(MessageType.USER_LIST,
                                          Constants.SYSTEM_SENDER,
-                                         userList.toString());
+                                         ProtocolFields.encodeList(getOnlineUsers()));
         handler.sendMessage(userListMsg);
     }
 
@@ -244,50 +1210,288 @@ public class Server {
      * Used by clients to show who's available for private chat
      */
     public List<String> getOnlineUsers() {
-        return new ArrayList<>(clients.keySet());
+        List<String> users = new ArrayList<>(clients.keySet());
+        if (cluster != null) {
+            users.addAll(cluster.getRemoteUsers());
+        }
+        return users;
     }
 
     /**
-     * Log message to file for chat history
+     * Rebuild the search index from the history log, in parallel
      */
-    private void logMessage(Message message) {
-        if (!Constants.ENABLE_LOGGING) {
+    private void rebuildSearchIndex() {
+        long started = System.currentTimeMillis();
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        try {
+            int indexed = searchIndex.rebuild(new File(Constants.CHAT_HISTORY_FILE), threads);
+            System.out.println("Search index ready: " + indexed + " messages in " +
+                               (System.currentTimeMillis() - started) + " ms");
+        } catch (IOException e) {
+            System.err.println("Error rebuilding search index: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Search the chat history and send one page of results
+     * Request fields: q, from, type, since, until, page
+     */
+    public void searchHistory(Message request, ClientHandler handler) {
+        Map<String, String> fields = ProtocolFields.decode(request.getContent());
+        String query = fields.getOrDefault("q", "");
+        String sender = fields.get("from");
+        MessageType type = null;
+        long since = 0;
+        long until = Long.MAX_VALUE;
+        int page = 1;
+
+        try {
+            if (fields.containsKey("type")) {
+                type = MessageType.valueOf(fields.get("type").toUpperCase());
+            }
+            if (fields.containsKey("since")) {
+                since = Long.parseLong(fields.get("since"));
+            }
+            if (fields.containsKey("until")) {
+                until = Long.parseLong(fields.get("until"));
+            }
+            if (fields.containsKey("page")) {
+                page = Math.max(1, Integer.parseInt(fields.get("page")));
+            }
+        } catch (IllegalArgumentException e) {
+            handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                            handler.getUsername(), "Invalid search: " + e.getMessage()));
+            return;
+        }
+
+        SearchIndex.Result result = searchIndex.search(query, sender, type, since, until,
+                                                       page, Constants.SEARCH_PAGE_SIZE);
+
+        List<String> hits = new ArrayList<>();
+        for (SearchIndex.Hit hit : result.hits) {
+            Map<String, String> hitFields = new LinkedHashMap<>();
+            hitFields.put("time", String.valueOf(hit.time));
+            hitFields.put("from", hit.sender);
+            hitFields.put("type", hit.type.name());
+            hitFields.put("text", hit.text);
+            hits.add(ProtocolFields.encode(hitFields));
+        }
+
+        int pages = (result.total + Constants.SEARCH_PAGE_SIZE - 1) / Constants.SEARCH_PAGE_SIZE;
+        Map<String, String> reply = new LinkedHashMap<>();
+        reply.put("q", query);
+        reply.put("page", String.valueOf(page));
+        reply.put("pages", String.valueOf(pages));
+        reply.put("total", String.valueOf(result.total));
+        reply.put("results", ProtocolFields.encodeList(hits));
+
+        handler.sendMessage(new Message(MessageType.SEARCH_RESULTS, Constants.SYSTEM_SENDER,
+                                        handler.getUsername(), ProtocolFields.encode(reply)));
+    }
+
+    /**
+     * Send one page of older room messages
+     * Request fields: before (history id) or beforeTime (epoch millis), limit
+     * With a "with" field the page comes from that private conversation instead
+     */
+    public void sendHistoryPage(Message request, ClientHandler handler) {
+        Map<String, String> fields = ProtocolFields.decode(request.getContent());
+        if (fields.containsKey("with")) {
+            sendPrivateHistoryPage(fields, handler);
+            return;
+        }
+
+        if (historyStore == null) {
             return;
         }
 
         try {
-            File logFile = new File(Constants.CHAT_HISTORY_FILE);
+            long before = fields.containsKey("before")
+                          ? Long.parseLong(fields.get("before"))
+                          : historyStore.findIdAt(Long.parseLong(fields.getOrDefault("beforeTime",
+                                                  String.valueOf(Long.MAX_VALUE))));
+            int limit = Math.min(Constants.HISTORY_PAGE_SIZE,
+                                 Integer.parseInt(fields.getOrDefault("limit",
+                                                  String.valueOf(Constants.HISTORY_PAGE_SIZE))));
 
-            // Create parent directories if they don't exist
-            logFile.getParentFile().mkdirs();
+            limit = Math.max(1, limit);
+
+            List<Message> messages = historyStore.readBefore(before, limit);
+            long first = Math.max(0, Math.min(before, historyStore.getHead()) - limit);
+
+            HistoryPage page = new HistoryPage(before, first, first > 0, messages);
+            handler.sendMessage(new Message(MessageType.HISTORY_PAGE, Constants.SYSTEM_SENDER,
+                                            handler.getUsername(), page.toContent()));
+        } catch (NumberFormatException e) {
+            handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER,
+                                            handler.getUsername(), "Invalid history request."));
+        } catch (IOException e) {
+            System.err.println("Error reading history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Send one page of a private conversation of the requesting user
+     * Request fields: with (the other user), before (id, default newest), limit
+     */
+    private void sendPrivateHistoryPage(Map<String, String> fields, ClientHandler handler) {
+        String user = handler.getUsername();
+        String peer = fields.get("with");
+
+        // The name becomes part of a file name - only real usernames get that far
+        if (!peer.matches("[a-zA-Z0-9_]{3,20}")) {
+            handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER, user,
+                                            "Invalid history request."));
+            return;
+        }
+
+        try {
+            long head = privateHistory.getHead(user, peer);
+            long before = Math.min(head, Long.parseLong(fields.getOrDefault("before", String.valueOf(head))));
+            int limit = Math.min(Constants.HISTORY_PAGE_SIZE,
+                                 Integer.parseInt(fields.getOrDefault("limit",
+                                                  String.valueOf(Constants.HISTORY_PAGE_SIZE))));
+
+            limit = Math.max(1, limit);
+
+            // One index read and one data read, however long the conversation
+            List<Message> messages = privateHistory.readBefore(user, peer, before, limit);
+            long first = Math.max(0, before - limit);
+
+            HistoryPage page = new HistoryPage(before, first, first > 0, peer, messages);
+            handler.sendMessage(new Message(MessageType.HISTORY_PAGE, Constants.SYSTEM_SENDER,
+                                            user, page.toContent()));
+        } catch (NumberFormatException e) {
+            handler.sendMessage(new Message(MessageType.ERROR, Constants.SYSTEM_SENDER, user,
+                                            "Invalid history request."));
+        } catch (IOException e) {
+            System.err.println("Error reading private history: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Log message to file for chat history
+     * Room messages are also added to the search index and history store
+     */
+    private void logMessage(Message message) {
+        if (!Constants.ENABLE_LOGGING) {
+            return;
+        }
 
-            // Append to log file
-            try (FileWriter fw = new FileWriter(logFile, true);
-                 BufferedWriter bw = new BufferedWriter(fw);
-                 PrintWriter out = new PrintWriter(bw)) {
+        LocalDateTime now = LocalDateTime.now();
+        long time = Message.toEpochMillis(now);
 
-                DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-                String timestamp = LocalDateTime.now().format(formatter);
+        // Only queued here - flushChatLog() writes it out
+        if (chatLog != null) {
+            chatLogLines.add("[" + now.format(SearchIndex.LOG_TIME) + "] " + message.toDisplayFormat());
+        }
+        searchIndex.add(message, time);
 
-                out.println("[" + timestamp + "] " + message.toDisplayFormat());
+        try {
+            if (historyStore != null && message.isRoomMessage()) {
+                message.setConversationSeq(historyStore.append(message, time) + 1);
             }
         } catch (IOException e) {
             System.err.println("Error logging message: " + e.getMessage());
         }
     }
 
+    /**
+     * Write the queued log lines out to the file
+     * Runs on the scheduler thread, and once more on shutdown
+     */
+    private void flushChatLog() {
+        if (chatLog == null) {
+            return;
+        }
+        synchronized (chatLog) {
+            String line;
+            while ((line = chatLogLines.poll()) != null) {
+                chatLog.println(line);
+            }
+            chatLog.flush();
+        }
+    }
+
     /**
      * Main method - Entry point for server application
      */
     public static void main(String[] args) {
-        Server server = new Server();
+        // Optional: --port N, --edge-port N to take clients from edge gateways
+        // (on --edge-bind ADDRESS, loopback by default, with --edge-secret S),
+        // --reuse-port to share the port with the server that will replace this one,
+        // --unix-socket PATH for clients on this machine, --transport blocking|nio,
+        // and to join a cluster --node NAME --cluster-port N --peers host:port,host:port
+        // (on --cluster-bind ADDRESS, loopback by default, with --cluster-secret S)
+        Map<String, String> options = new LinkedHashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                System.err.println("Unknown argument: " + args[i]);
+                return;
+            }
+            // A flag with no value is just switched on
+            boolean hasValue = i + 1 < args.length && !args[i + 1].startsWith("--");
+            options.put(args[i].substring(2), hasValue ? args[++i] : "true");
+        }
+
+        Server server;
+        try {
+            server = new Server(Integer.parseInt(options.getOrDefault("port",
+                                                 String.valueOf(Constants.SERVER_PORT))));
+            server.edgePort = Integer.parseInt(options.getOrDefault("edge-port", "0"));
+            server.edgeBind = options.getOrDefault("edge-bind", Constants.EDGE_BIND_ADDRESS);
+            server.edgeSecret = options.getOrDefault("edge-secret", "");
+            if (server.edgeSecret.isEmpty() && !InetAddress.getByName(server.edgeBind).isLoopbackAddress()) {
+                System.err.println("--edge-bind " + server.edgeBind + " lets other machines in: set --edge-secret too");
+                return;
+            }
+            server.unixSocketPath = options.get("unix-socket");
+            server.transportName = options.getOrDefault("transport", Constants.DEFAULT_TRANSPORT);
+            if (!server.transportName.equals("blocking") && !server.transportName.equals("nio")) {
+                System.err.println("Unknown transport: " + server.transportName + " (use blocking or nio)");
+                return;
+            }
+            server.reusePort = Boolean.parseBoolean(options.getOrDefault("reuse-port", "false"));
+            if (options.containsKey("node")) {
+                List<String> peers = new ArrayList<>();
+                for (String peer : options.getOrDefault("peers", "").split(",")) {
+                    if (!peer.trim().isEmpty()) {
+                        peers.add(peer.trim());
+                    }
+                }
+                int clusterPort = Integer.parseInt(options.getOrDefault("cluster-port",
+                                                   String.valueOf(Constants.CLUSTER_PORT)));
+                String clusterBind = options.getOrDefault("cluster-bind", Constants.CLUSTER_BIND_ADDRESS);
+                String clusterSecret = options.getOrDefault("cluster-secret", "");
+                if (clusterSecret.isEmpty() && !InetAddress.getByName(clusterBind).isLoopbackAddress()) {
+                    System.err.println("--cluster-bind " + clusterBind + " lets other machines in: set --cluster-secret too");
+                    return;
+                }
+                server.cluster = new ClusterNode(options.get("node"), clusterBind, clusterPort, clusterSecret,
+                                                 peers, server);
+            }
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid port: " + e.getMessage());
+            return;
+        } catch (UnknownHostException e) {
+            System.err.println("Invalid bind address: " + e.getMessage());
+            return;
+        }
 
         // Add shutdown hook to gracefully stop server on Ctrl+C
+        // With --reuse-port a stop means a restart, so hand the sessions over instead
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             System.out.println("\nShutdown signal received...");
+            if (server.reusePort) {
+                server.drain();
+            }
             server.stop();
         }));
 
+        // Commands typed into the server's console (drain, status...)
+        new AdminConsole(server).start();
+
         // Start the server
         server.start();
     }
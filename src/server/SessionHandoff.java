@@ -0,0 +1,126 @@
+package server;
+
+import common.Constants;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SessionHandoff.java
+ * Passes sessions from a draining server to the server replacing it
+ *
+ * The draining server saves each session to its own file, named after
+ * its resume token:
+ *   line 1:  username
+ *   line 2:  next sequence number
+ *   line 3:  when the connection was closed (ms)
+ *   then:    one "SEQ FRAME" line per message kept for replay
+ *
+ * The new server takes all of them when it starts, before accepting
+ * anyone, so a client that reconnects with its token finds its session
+ * (and the messages it missed) waiting. Sessions older than the resume
+ * grace period are thrown away rather than adopted.
+ */
+public class SessionHandoff {
+
+    private static final String SUFFIX = ".session";
+
+    private final File directory;
+
+    /**
+     * Constructor
+     * @param directory Shared by the old and the new server
+     */
+    public SessionHandoff(File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /**
+     * Save a session for the next server
+     * Written to a temporary file first, so a half-written session is
+     * never picked up
+     */
+    public void save(UserSession.Snapshot snapshot) throws IOException {
+        File temp = new File(directory, snapshot.token + ".tmp");
+        try (PrintWriter out = new PrintWriter(new OutputStreamWriter(
+                new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+            out.print(snapshot.username + "\n");
+            out.print(snapshot.nextSeq + "\n");
+            out.print(snapshot.detachedAt + "\n");
+            for (UserSession.Frame frame : snapshot.replay) {
+                out.print(frame.seq + " " + frame.data + "\n");
+            }
+            if (out.checkError()) {
+                throw new IOException("could not write " + temp);
+            }
+        }
+
+        File target = new File(directory, snapshot.token + SUFFIX);
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            throw new IOException("could not create " + target);
+        }
+    }
+
+    /**
+     * Take every session left by the previous server
+     * The files are deleted; broken or expired sessions are skipped
+     */
+    public List<UserSession.Snapshot> takeAll() {
+        List<UserSession.Snapshot> snapshots = new ArrayList<>();
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return snapshots;
+        }
+
+        long now = System.currentTimeMillis();
+        for (File file : files) {
+            String name = file.getName();
+            if (name.endsWith(SUFFIX)) {
+                try {
+                    UserSession.Snapshot snapshot = read(name.substring(0, name.length() - SUFFIX.length()), file);
+                    if (now - snapshot.detachedAt < Constants.RESUME_GRACE_MS) {
+                        snapshots.add(snapshot);
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.err.println("Skipping handed-over session " + name + ": " + e.getMessage());
+                }
+            }
+            // Leftover temporary files are from a drain that failed part way
+            file.delete();
+        }
+        return snapshots;
+    }
+
+    private static UserSession.Snapshot read(String token, File file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String username = in.readLine();
+            String nextSeq = in.readLine();
+            String detachedAt = in.readLine();
+            if (username == null || detachedAt == null) {
+                throw new IOException("file is incomplete");
+            }
+
+            List<UserSession.Frame> replay = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                replay.add(new UserSession.Frame(Long.parseLong(line.substring(0, space)),
+                                                 line.substring(space + 1)));
+            }
+            return new UserSession.Snapshot(username, token, Long.parseLong(nextSeq),
+                                            Long.parseLong(detachedAt), replay, null);
+        }
+    }
+}
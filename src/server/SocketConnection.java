@@ -0,0 +1,78 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.util.List;
+
+/**
+ * SocketConnection.java
+ * A client connected straight to this server with its own socket
+ */
+public class SocketConnection implements Connection {
+
+    private final Socket socket;
+    private final BufferedReader in;
+    private final PrintWriter out;
+
+    /**
+     * Constructor - sets up the socket's streams
+     */
+    public SocketConnection(Socket socket) throws IOException {
+        this.socket = socket;
+
+        // Input stream - read messages from client
+        this.in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+
+        // Output stream - send messages to client
+        this.out = new PrintWriter(socket.getOutputStream(), false);
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        return in.readLine();
+    }
+
+    @Override
+    public void write(List<String> frames) throws IOException {
+        StringBuilder batch = new StringBuilder();
+        for (String frame : frames) {
+            batch.append(frame).append(System.lineSeparator());
+        }
+
+        out.print(batch);
+        out.flush();
+        if (out.checkError()) {
+            throw new IOException("connection closed");
+        }
+    }
+
+    @Override
+    public void setReadTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    @Override
+    public void close() throws IOException {
+        // Close socket first - this unblocks a reader thread stuck in
+        // readLine(), which would otherwise hold the reader's lock and
+        // make in.close() wait forever when called from another thread
+        if (!socket.isClosed()) {
+            socket.close();
+        }
+        in.close();
+        out.close();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    @Override
+    public String getRemoteAddress() {
+        return socket.getInetAddress().getHostAddress();
+    }
+}
@@ -0,0 +1,239 @@
+package server;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * TimingWheel.java
+ * Hashed timing wheel for large numbers of connection timeouts
+ *
+ * Time is cut into fixed ticks and timeouts are hashed into a ring of
+ * buckets by their deadline tick. Scheduling and cancelling are O(1)
+ * and one thread drives the whole wheel, so tracking 100k connection
+ * deadlines costs no more threads than tracking one.
+ *
+ * Deadlines are accurate to one tick, which is plenty for heartbeats
+ * and idle detection. Expired tasks run on the given executor so a slow
+ * task never delays the wheel.
+ */
+public class TimingWheel {
+
+    /**
+     * Handle for a scheduled task
+     */
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;       // Nanos since the wheel started
+        private long remainingRounds;      // Full turns of the wheel left before it fires
+        private volatile boolean cancelled;
+
+        // Bucket links - only touched by the wheel thread
+        private Timeout prev;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task; it is dropped from its bucket lazily
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Doubly linked list of timeouts sharing a slot
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        Timeout remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+            return next;
+        }
+    }
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor taskExecutor;
+
+    // New timeouts are handed to the wheel thread through this lock-free queue
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts;
+
+    private final long startTime;
+    private long tick;                     // Wheel thread only
+    private volatile boolean running;
+    private Thread worker;
+
+    /**
+     * Constructor
+     * @param tickMillis Length of one tick (timer resolution)
+     * @param wheelSize Number of buckets, rounded up to a power of two
+     * @param taskExecutor Where expired tasks run
+     */
+    public TimingWheel(long tickMillis, int wheelSize, Executor taskExecutor) {
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = size - 1;
+        this.taskExecutor = taskExecutor;
+        this.pendingTimeouts = new ConcurrentLinkedQueue<>();
+        this.startTime = System.nanoTime();
+        this.tick = 0;
+    }
+
+    /**
+     * Start the wheel thread
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(this::runWheel, "timing-wheel");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * Stop the wheel thread; pending timeouts are dropped
+     */
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * Schedule a task to run once after a delay
+     * Safe to call from any thread
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+        Timeout timeout = new Timeout(task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Wheel thread: advance one bucket per tick and fire what is due
+     */
+    private void runWheel() {
+        while (running) {
+            if (!waitForNextTick()) {
+                return;
+            }
+
+            transferPendingTimeouts();
+            expireBucket(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    /**
+     * Sleep until the current tick has ended
+     * @return false if the wheel was stopped
+     */
+    private boolean waitForNextTick() {
+        long tickEnd = tickNanos * (tick + 1);
+
+        while (running) {
+            long sleepNanos = tickEnd - (System.nanoTime() - startTime);
+            if (sleepNanos <= 0) {
+                return true;
+            }
+            try {
+                Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos) + 1);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Put newly scheduled timeouts into their buckets
+     */
+    private void transferPendingTimeouts() {
+        Timeout timeout;
+        while ((timeout = pendingTimeouts.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+
+            long deadlineTick = timeout.deadline / tickNanos;
+            timeout.remainingRounds = (deadlineTick - tick) / wheel.length;
+
+            // Already overdue - fire on the current tick
+            long slotTick = Math.max(deadlineTick, tick);
+            wheel[(int) (slotTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * Fire due timeouts in a bucket, drop cancelled ones,
+     * and count down the rest by one round
+     */
+    private void expireBucket(Bucket bucket) {
+        Timeout timeout = bucket.head;
+
+        while (timeout != null) {
+            if (timeout.cancelled) {
+                timeout = bucket.remove(timeout);
+            } else if (timeout.remainingRounds <= 0) {
+                Timeout next = bucket.remove(timeout);
+                try {
+                    taskExecutor.execute(timeout.task);
+                } catch (RuntimeException e) {
+                    System.err.println("Timing wheel task rejected: " + e.getMessage());
+                }
+                timeout = next;
+            } else {
+                timeout.remainingRounds--;
+                timeout = timeout.next;
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+/**
+ * TokenBucket.java
+ * Simple token-bucket rate limiter
+ *
+ * Tokens refill at a steady rate up to a maximum burst size.
+ * Each permitted action takes one token; when the bucket is empty,
+ * callers wait until the next token is due.
+ */
+public class TokenBucket {
+
+    private final double tokensPerNano;   // Refill rate
+    private final double capacity;        // Maximum burst
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     * @param ratePerSecond Sustained rate of permitted actions
+     * @param burst How many actions may happen back-to-back after an idle period
+     */
+    public TokenBucket(double ratePerSecond, int burst) {
+        this.tokensPerNano = ratePerSecond / 1_000_000_000.0;
+        this.capacity = burst;
+        this.tokens = burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take a token, waiting until one is available
+     */
+    public synchronized void acquire() throws InterruptedException {
+        refill();
+
+        while (tokens < 1) {
+            long waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            long waitMillis = Math.max(1, waitNanos / 1_000_000);
+            wait(waitMillis);
+            refill();
+        }
+
+        tokens -= 1;
+    }
+
+    /**
+     * Take a token only if one is available right now
+     * @return true if the action is permitted
+     */
+    public synchronized boolean tryAcquire() {
+        refill();
+
+        if (tokens >= 1) {
+            tokens -= 1;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Add the tokens earned since the last refill
+     */
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
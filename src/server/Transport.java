@@ -0,0 +1,25 @@
+package server;
+
+/**
+ * Transport.java
+ * How the server takes client connections off its listening socket
+ *
+ * Whatever the transport, each client ends up as a Connection handed to
+ * Server.admitConnection(), so login, routing and sessions are the same
+ * for all of them. Chosen at startup with --transport:
+ *   blocking - a thread reads each client's socket (BlockingTransport)
+ *   nio      - one selector thread reads every socket (NioTransport)
+ */
+public interface Transport {
+
+    /**
+     * Accept clients until the listening socket is closed
+     * Runs on the server's main thread
+     */
+    void serve();
+
+    /**
+     * Release the transport's threads once every client is disconnected
+     */
+    void shutdown();
+}
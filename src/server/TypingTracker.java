@@ -0,0 +1,196 @@
+package server;
+
+import common.Constants;
+import common.Message;
+import common.MessageType;
+import common.ProtocolFields;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * TypingTracker.java
+ * Coalesces typing indicators into one "who is typing" update per room per interval
+ *
+ * Clients only send TYPING when someone starts or stops typing (and a
+ * throttled refresh while they keep going). The server merely records
+ * who is typing where. Every TYPING_INTERVAL_MS, flush() sends each room
+ * in which someone started or stopped typing one update with the whole
+ * list, however many keystrokes went into it. An unchanged list is only
+ * repeated every TYPING_REFRESH_MS, so clients know it is still true.
+ *
+ * A room is the group chat, a private conversation between two users, or
+ * a private session. Updates are ephemeral: they are not logged, get no
+ * sequence number, are never replayed, and are the first thing dropped
+ * when a connection is busy (see ClientHandler.sendEphemeral).
+ */
+public class TypingTracker {
+
+    private static final String GROUP_ROOM = "";
+
+    /**
+     * Who is typing in one room
+     */
+    private static class Room {
+        final Map<String, Long> typists = new LinkedHashMap<>();   // user -> forget after (guarded by this)
+        boolean changed;                                           // Someone started or stopped since the last update
+        long lastSent;                                             // When the last update went out
+        boolean removed;                                           // Dropped by flush() - look the room up again
+    }
+
+    private final Map<String, UserSession> clients;
+    private final PrivateChatHandler privateChats;
+    private final ConcurrentHashMap<String, Room> rooms;
+
+    /**
+     * Constructor
+     * @param clients The server's online users - only read
+     * @param privateChats Private sessions, for their member lists
+     */
+    public TypingTracker(Map<String, UserSession> clients, PrivateChatHandler privateChats) {
+        this.clients = clients;
+        this.privateChats = privateChats;
+        this.rooms = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Record a TYPING event from a client
+     * Recipient: none (group chat), a username, or a session address.
+     * Content: "start" or "stop".
+     */
+    public void update(Message message, ClientHandler handler) {
+        String user = handler.getUsername();
+        String key = roomKey(user, message.getRecipient());
+        if (key == null) {
+            return;
+        }
+
+        boolean typing = "start".equals(message.getContent());
+        while (true) {
+            Room room = typing ? rooms.computeIfAbsent(key, k -> new Room()) : rooms.get(key);
+            if (room == null) {
+                return;
+            }
+
+            synchronized (room) {
+                if (room.removed) {
+                    continue; // flush() just dropped it as empty
+                }
+                if (typing) {
+                    if (room.typists.put(user, System.currentTimeMillis() + Constants.TYPING_EXPIRE_MS) == null) {
+                        room.changed = true;
+                    }
+                } else if (room.typists.remove(user) != null) {
+                    room.changed = true;
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Send one update to every room whose typists changed since the last one
+     * Runs every TYPING_INTERVAL_MS on the server's scheduler
+     */
+    public void flush() {
+        long now = System.currentTimeMillis();
+
+        for (Iterator<Map.Entry<String, Room>> it = rooms.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, Room> entry = it.next();
+            Room room = entry.getValue();
+            List<String> typists;
+
+            synchronized (room) {
+                // Clients that vanished without a "stop"
+                if (room.typists.values().removeIf(expiresAt -> expiresAt <= now)) {
+                    room.changed = true;
+                }
+                if (room.typists.isEmpty() && !room.changed) {
+                    room.removed = true;
+                    it.remove();
+                    continue;
+                }
+                // Unchanged lists are only repeated now and then, so clients don't expire them
+                if (!room.changed && now - room.lastSent < Constants.TYPING_REFRESH_MS) {
+                    continue;
+                }
+                typists = new ArrayList<>(room.typists.keySet());
+                room.changed = false;
+                room.lastSent = now;
+            }
+
+            send(entry.getKey(), typists);
+        }
+    }
+
+    /**
+     * Send a room's typing list to everyone in it (except to the typists themselves)
+     */
+    private void send(String key, List<String> typists) {
+        if (key.equals(GROUP_ROOM)) {
+            sendTo(clients.values(), null, typists);
+        } else if (PrivateChatHandler.isSessionAddress(key)) {
+            sendTo(privateChats.getMembers(key), key, typists);
+        } else {
+            // Private conversation "alice+bob" - each side sees the other as the room
+            String[] pair = key.split("\\+", 2);
+            sendToUser(pair[0], pair[1], typists);
+            sendToUser(pair[1], pair[0], typists);
+        }
+    }
+
+    private void sendTo(Iterable<UserSession> audience, String room, List<String> typists) {
+        // Everyone not typing gets the same frame, encoded once
+        String frame = typingMessage(room, typists, null).toProtocol();
+
+        for (UserSession session : audience) {
+            ClientHandler handler = session.getHandler();
+            if (handler == null) {
+                continue; // Detached - missed typing updates are never replayed
+            }
+            if (typists.contains(session.getUsername())) {
+                handler.sendEphemeral(typingMessage(room, typists, session.getUsername()).toProtocol());
+            } else {
+                handler.sendEphemeral(frame);
+            }
+        }
+    }
+
+    private void sendToUser(String username, String room, List<String> typists) {
+        UserSession session = clients.get(username);
+        ClientHandler handler = (session != null) ? session.getHandler() : null;
+        if (handler != null) {
+            handler.sendEphemeral(typingMessage(room, typists, username).toProtocol());
+        }
+    }
+
+    /**
+     * TYPING update: recipient is the room as the receiver knows it, content the typists
+     */
+    private static Message typingMessage(String room, List<String> typists, String except) {
+        List<String> shown = new ArrayList<>(typists);
+        shown.remove(except);
+        return new Message(MessageType.TYPING, Constants.SYSTEM_SENDER, room, ProtocolFields.encodeList(shown));
+    }
+
+    /**
+     * Which room a TYPING event is for
+     * @return null if the user may not type there
+     */
+    private String roomKey(String user, String recipient) {
+        if (recipient == null) {
+            return GROUP_ROOM;
+        }
+        if (PrivateChatHandler.isSessionAddress(recipient)) {
+            return privateChats.isMember(recipient, user) ? recipient : null;
+        }
+        if (recipient.equals(user) || !clients.containsKey(recipient)) {
+            return null;
+        }
+        return PrivateHistoryStore.pairKey(user, recipient);
+    }
+}
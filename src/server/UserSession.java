@@ -0,0 +1,307 @@
+package server;
+
+import common.Constants;
+import common.Message;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * UserSession.java
+ * A logged-in user, independent of the connection they are using
+ *
+ * Every message delivered to the user gets the next per-user sequence
+ * number and is kept in a small replay buffer. If the connection drops,
+ * the session stays around for a grace period so the client can come
+ * back with its resume token and receive only the messages it missed.
+ */
+public class UserSession {
+
+    private final String username;
+    private final String token;
+
+    private ClientHandler handler;     // Current connection (null while detached)
+    private long detachedAt;           // When the connection dropped (0 while attached)
+    private boolean ended;             // Logged out or expired - cannot be resumed
+    private ClientHandler replayingTo; // Connection a resume is still queueing the replay to - live frames wait in the buffer
+
+    private long nextSeq;              // Next sequence number to hand out
+    private final ArrayDeque<Frame> replayBuffer;
+
+    /**
+     * A delivered message in wire format, kept for replay
+     */
+    static class Frame {
+        final long seq;
+        final String data;
+
+        Frame(long seq, String data) {
+            this.seq = seq;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Everything needed to carry on a session in another server process
+     */
+    public static class Snapshot {
+        final String username;
+        final String token;
+        final long nextSeq;
+        final long detachedAt;
+        final List<Frame> replay;
+        final ClientHandler handler;   // Connection it was on (not saved)
+
+        Snapshot(String username, String token, long nextSeq, long detachedAt,
+                 List<Frame> replay, ClientHandler handler) {
+            this.username = username;
+            this.token = token;
+            this.nextSeq = nextSeq;
+            this.detachedAt = detachedAt;
+            this.replay = replay;
+            this.handler = handler;
+        }
+    }
+
+    /**
+     * Constructor - new session for a freshly logged-in user
+     */
+    public UserSession(String username, ClientHandler handler) {
+        this.username = username;
+        this.token = UUID.randomUUID().toString().replace("-", "");
+        this.handler = handler;
+        this.detachedAt = 0;
+        this.ended = false;
+        this.nextSeq = 1;
+        this.replayBuffer = new ArrayDeque<>();
+    }
+
+    /**
+     * Constructor - session handed over by the server this one replaced
+     * It starts detached; the client resumes it with its token as usual
+     */
+    public UserSession(Snapshot snapshot) {
+        this.username = snapshot.username;
+        this.token = snapshot.token;
+        this.handler = null;
+        this.detachedAt = snapshot.detachedAt;
+        this.ended = false;
+        this.nextSeq = snapshot.nextSeq;
+        this.replayBuffer = new ArrayDeque<>(snapshot.replay);
+    }
+
+    /**
+     * Deliver a message to this user
+     * Stamps it with the next sequence number, remembers it for replay,
+     * and sends it right away if the user is connected
+     */
+    public synchronized void deliver(Message message) {
+        long seq = nextSeq++;
+        remember(seq, message.toProtocol(seq));
+    }
+
+    /**
+     * Deliver a message that was encoded once for many recipients
+     * Same as deliver(Message), without encoding it again
+     */
+    public synchronized void deliver(FrameTemplate template) {
+        long seq = nextSeq++;
+        remember(seq, template.withSeq(seq));
+    }
+
+    /**
+     * Keep a frame for replay and send it if connected (caller holds the lock)
+     */
+    private void remember(long seq, String frame) {
+        replayBuffer.addLast(new Frame(seq, frame));
+        if (replayBuffer.size() > Constants.RESUME_BUFFER_SIZE) {
+            replayBuffer.removeFirst();
+        }
+
+        if (handler != null && handler != replayingTo) {
+            handler.sendFrame(frame);
+        }
+    }
+
+    /**
+     * Deliver several messages at once, e.g. a drained offline queue
+     * Each gets its own sequence number, but they go out in one write
+     */
+    public synchronized void deliverAll(List<Message> messages) {
+        List<String> frames = new ArrayList<>(messages.size());
+
+        for (Message message : messages) {
+            long seq = nextSeq++;
+            String frame = message.toProtocol(seq);
+
+            replayBuffer.addLast(new Frame(seq, frame));
+            if (replayBuffer.size() > Constants.RESUME_BUFFER_SIZE) {
+                replayBuffer.removeFirst();
+            }
+            frames.add(frame);
+        }
+
+        if (handler != null && handler != replayingTo) {
+            handler.sendFrames(frames);
+        }
+    }
+
+    /**
+     * Attach a new connection and replay everything after lastSeenSeq
+     * The session lock is only held to attach the connection and copy the
+     * frames to replay - closing the old connection and queueing the
+     * replay happen outside it, so threads delivering to this user never
+     * wait on a resume. Frames delivered meanwhile only go into the
+     * replay buffer, and are sent once the replay is queued, in order.
+     * @param accept The ACCEPT frame, sent before anything is replayed
+     * @return false if the session has already ended
+     */
+    public boolean resume(ClientHandler newHandler, long lastSeenSeq, Message accept) {
+        ClientHandler previous;
+        List<Frame> replay = new ArrayList<>();
+        boolean missed;
+        synchronized (this) {
+            if (ended) {
+                return false;
+            }
+
+            // A half-open old connection may still be attached - replace it
+            previous = handler;
+            handler = newHandler;
+            detachedAt = 0;
+            replayingTo = newHandler;
+
+            // Gap is older than our buffer - tell the user rather than pretend
+            Frame oldest = replayBuffer.peekFirst();
+            missed = oldest != null && oldest.seq > lastSeenSeq + 1;
+            for (Frame frame : replayBuffer) {
+                if (frame.seq > lastSeenSeq) {
+                    replay.add(frame);
+                }
+            }
+        }
+
+        if (previous != null) {
+            previous.disconnect();
+        }
+
+        newHandler.sendMessage(accept);
+        if (missed) {
+            newHandler.sendMessage(Message.systemMessage(
+                "Some messages were missed while you were disconnected."));
+        }
+        long replayedUpTo = lastSeenSeq;
+        for (Frame frame : replay) {
+            newHandler.sendFrame(frame.data);
+            replayedUpTo = frame.seq;
+        }
+
+        // Catch up on what arrived while the replay was queued, then go live
+        int caughtUp = 0;
+        synchronized (this) {
+            if (replayingTo == newHandler) {
+                replayingTo = null;
+            }
+            if (handler == newHandler) {
+                for (Frame frame : replayBuffer) {
+                    if (frame.seq > replayedUpTo) {
+                        newHandler.sendFrame(frame.data);
+                        caughtUp++;
+                    }
+                }
+            }
+        }
+        System.out.println(" Session resumed: " + username + " (replayed " + (replay.size() + caughtUp) + " messages)");
+
+        return true;
+    }
+
+    /**
+     * Detach the connection, keeping the session for a later resume
+     * Ignored if a newer connection has already taken over
+     * @return true if the session is now detached
+     */
+    public synchronized boolean detach(ClientHandler oldHandler) {
+        if (ended || handler != oldHandler) {
+            return false;
+        }
+        handler = null;
+        detachedAt = System.currentTimeMillis();
+        return true;
+    }
+
+    /**
+     * End the session if it has been detached past the grace period
+     * @return true if the session ended
+     */
+    public synchronized boolean expireIfDetached(long now) {
+        if (!ended && handler == null && now - detachedAt >= Constants.RESUME_GRACE_MS) {
+            ended = true;
+            replayBuffer.clear();
+        }
+        return ended;
+    }
+
+    /**
+     * End the session only if no connection is attached
+     * Used when the same username logs in again without a resume token
+     * @return false if the session is in use
+     */
+    public synchronized boolean endIfDetached() {
+        if (handler != null) {
+            return false;
+        }
+        end();
+        return true;
+    }
+
+    /**
+     * End the session for good (user logged out, or replaced)
+     * It can no longer be resumed
+     */
+    public synchronized void end() {
+        ended = true;
+        replayBuffer.clear();
+    }
+
+    /**
+     * End the session here so another server can carry it on
+     * The connection it was on comes back in the snapshot, to be closed
+     * once the snapshot is saved
+     * @return null if the session has already ended
+     */
+    public synchronized Snapshot handOff() {
+        if (ended) {
+            return null;
+        }
+        ended = true;
+
+        Snapshot snapshot = new Snapshot(username, token, nextSeq,
+                                         (handler != null) ? System.currentTimeMillis() : detachedAt,
+                                         new ArrayList<>(replayBuffer), handler);
+        handler = null;
+        replayBuffer.clear();
+        return snapshot;
+    }
+
+    /**
+     * Check if a connection is currently attached
+     */
+    public synchronized boolean isAttached() {
+        return handler != null;
+    }
+
+    public synchronized ClientHandler getHandler() {
+        return handler;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getToken() {
+        return token;
+    }
+}